@@ -0,0 +1,640 @@
+package bench.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.bazaarvoice.maven.plugin.s3repo.create.ArtifactItem;
+import com.bazaarvoice.maven.plugin.s3repo.create.CreateOrUpdateS3RepoMojo;
+import com.bazaarvoice.maven.plugin.s3repo.list.ListS3RepoMojo;
+import com.bazaarvoice.maven.plugin.s3repo.rebuild.RebuildS3RepoMojo;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.AbstractMojoExecutionException;
+import org.apache.maven.plugin.Mojo;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import test.s3repo.FakeS3;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs goals end to end against a {@link FakeS3} that holds a synthetic repository of N packages, behind the network
+ * costs of a {@link SimulatedS3}, and reports the wall time, S3 requests (by type) and bytes moved of each goal. Each
+ * goal is a subclass that hands its S3 stand-in out from <code>newS3Client()</code>. By default create-update adds a few
+ * packages (resolved from a stand-in for Maven's repository system), rebuild-repo rebuilds the repository's metadata
+ * from the RPM headers (s3repo.headersOnly, so that createrepo isn't needed) and list-repo lists it.
+ * <p/>
+ * Goals are configured like Maven would from the plugin descriptor (target/classes/META-INF/maven/plugin.xml): each
+ * parameter gets its default value, and an argument "s3repo.&lt;property&gt;=&lt;value&gt;" sets the parameter whose
+ * property it is, e.g. "s3repo.downloadConcurrency=32". Other arguments (all "name=value") set up the simulation:
+ * <ul>
+ * <li>packages: number of packages in the repository (1000)</li>
+ * <li>newPackages: number of packages create-update adds (10)</li>
+ * <li>packageSize: bytes per package (65536)</li>
+ * <li>latency: milliseconds before each request is served (20)</li>
+ * <li>streamKBps: KB per second of each request or response body, 0 for unlimited (8192)</li>
+ * <li>linkKBps: KB per second of all bodies together, 0 for unlimited (0)</li>
+ * <li>goals: comma-separated goals to run, in order (create-update,rebuild-repo,list-repo)</li>
+ * <li>workDir: where the seed repository, staging directories and each goal's metrics go (a new temporary directory)</li>
+ * <li>resultFile: where to write the report as JSON (none)</li>
+ * <li>verbose: log the goals' info and debug messages (false)</li>
+ * <li>faults: comma-separated {@link FaultProfile}s to run the goals under, each against a freshly seeded S3 (none)</li>
+ * <li>fault.&lt;property&gt;: adjusts every fault profile, e.g. "fault.stallMillis=5000"</li>
+ * <li>runs: how many times the goals run under each fault profile (1)</li>
+ * <li>seed: seed of the faults' random draws (1)</li>
+ * </ul>
+ * Under faults, each goal's S3 retries (by kind of operation) and the injected faults (by kind) are reported too, and a
+ * goal that fails is reported as such rather than ending the benchmark.
+ */
+public final class EndToEndBenchmark {
+
+    private static final String BUCKET = "s3repo-bench";
+    private static final String REPOSITORY_FOLDER = "repo";
+    private static final String DESCRIPTOR = "META-INF/maven/plugin.xml";
+    private static final Pattern EXPRESSION = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    private final Map<String, String> settings = new HashMap<String, String>();
+    private final Map<String, String> overrides = new HashMap<String, String>();
+    private final File workDir;
+    private final Log log;
+    private final Document descriptor;
+    /** The seed repository, relative paths by file. */
+    private final Map<File, String> seedFiles = new LinkedHashMap<File, String>();
+    /** Packages create-update adds, by artifact id. */
+    private final Map<String, File> newPackages = new LinkedHashMap<String, File>();
+
+    private EndToEndBenchmark(String[] args) throws Exception {
+        settings.put("packages", "1000");
+        settings.put("newPackages", "10");
+        settings.put("packageSize", "65536");
+        settings.put("latency", "20");
+        settings.put("streamKBps", "8192");
+        settings.put("linkKBps", "0");
+        settings.put("goals", "create-update,rebuild-repo,list-repo");
+        settings.put("verbose", "false");
+        settings.put("faults", "none");
+        settings.put("runs", "1");
+        settings.put("seed", "1");
+        overrides.put("s3repo.allowCreateRepository", "true");
+        overrides.put("s3repo.useBuiltinGenerator", "true");
+        overrides.put("s3repo.headersOnly", "true");
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            (arg.startsWith("s3repo.") ? overrides : settings).put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        workDir = settings.containsKey("workDir") ? new File(settings.get("workDir")) : Files.createTempDir();
+        log = new QuietLog(Boolean.parseBoolean(settings.get("verbose")));
+        descriptor = loadDescriptor();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EndToEndBenchmark(args).run();
+    }
+
+    private void run() throws Exception {
+        System.out.println("Generating a repository of " + settings.get("packages") + " packages of " + settings.get("packageSize")
+            + " bytes in " + workDir + "...");
+        generatePackages();
+        final List<Result> results = new ArrayList<Result>();
+        for (String profileName : settings.get("faults").split(",")) {
+            final FaultProfile profile = newFaultProfile(profileName.trim());
+            for (int run = 1; run <= getInt("runs"); ++run) {
+                final SimulatedS3 s3 = newSimulatedS3();
+                final File runDir = new File(workDir, profile.getName() + File.separator + run);
+                for (String goal : settings.get("goals").split(",")) {
+                    System.out.println("Running " + goal.trim() + " (faults: " + profile.getName() + ", run " + run + ")...");
+                    results.add(runGoal(goal.trim(), s3, profile, run, runDir));
+                }
+            }
+        }
+        report(results);
+    }
+
+    /** Write the seed repository and the packages create-update adds. */
+    private void generatePackages() throws Exception {
+        final int packageCount = getInt("packages");
+        final int packageSize = getInt("packageSize");
+        final File seedRoot = new File(workDir, "seed");
+        final List<File> packages = new ArrayList<File>();
+        for (int i = 0; i < packageCount; ++i) {
+            final File rpm = new File(seedRoot, SyntheticRpms.path(i));
+            SyntheticRpms.write(rpm, SyntheticRpms.name(i), SyntheticRpms.version(i), "1", packageSize);
+            packages.add(rpm);
+        }
+        new LocalYumRepoFacade(seedRoot, "createrepo", "", log).generateRepoData(packages);
+        final String rootPath = seedRoot.getAbsolutePath();
+        for (File file : ExtraIOUtils.listAllFiles(seedRoot)) {
+            seedFiles.put(file, file.getAbsolutePath().substring(rootPath.length() + 1).replace(File.separatorChar, '/'));
+        }
+        // the packages create-update adds, as if resolved from a Maven repository
+        final File resolved = new File(workDir, "resolved");
+        for (int i = 0; i < getInt("newPackages"); ++i) {
+            final String artifactId = "new-service-" + i;
+            final File rpm = new File(resolved, artifactId + "-2.0.rpm");
+            SyntheticRpms.write(rpm, artifactId, "2.0", "1", packageSize);
+            newPackages.put(artifactId, rpm);
+        }
+    }
+
+    /** Answer a new simulated S3 that holds the seed repository. */
+    private SimulatedS3 newSimulatedS3() throws IOException {
+        final FakeS3 store = new FakeS3(BUCKET, 1000);
+        for (Map.Entry<File, String> file : seedFiles.entrySet()) {
+            store.putObject(REPOSITORY_FOLDER + "/" + file.getValue(), file.getKey());
+        }
+        return new SimulatedS3(store.client(), getLong("latency"), getLong("streamKBps") * 1024, getLong("linkKBps") * 1024);
+    }
+
+    private FaultProfile newFaultProfile(String name) {
+        final FaultProfile profile = FaultProfile.named(name);
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            if (setting.getKey().startsWith("fault.")) {
+                profile.set(setting.getKey().substring("fault.".length()), setting.getValue());
+            }
+        }
+        return profile;
+    }
+
+    private Result runGoal(String goal, SimulatedS3 s3, FaultProfile profile, int run, File runDir) throws Exception {
+        final Element mojoDescriptor = findMojo(goal);
+        final AtomicReference<AmazonS3> s3Session = new AtomicReference<AmazonS3>();
+        final Mojo mojo = newMojo(text(mojoDescriptor, "implementation"), s3Session);
+        final File goalDir = new File(runDir, goal);
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("project.build.directory", goalDir.getPath());
+        properties.put("user.home", goalDir.getPath()); // e.g. keep s3repo.cacheDirectory out of the real home
+        configure(mojo, mojoDescriptor, properties);
+
+        final FaultInjectingS3 faults = new FaultInjectingS3(s3.client(), profile,
+            ((Number) getField(mojo, "socketTimeout")).longValue(), getLong("seed") * 1000 + run);
+        s3Session.set(faults.client());
+        setField(mojo, "repositorySession", new DefaultRepositorySystemSession());
+        setField(mojo, "mojoExecution", new MojoExecution(null, goal, "benchmark"));
+        setField(mojo, "s3RepositoryPath", "s3://" + BUCKET + "/" + REPOSITORY_FOLDER);
+        if (hasField(mojo, "stagingDirectory") && getField(mojo, "stagingDirectory") == null) {
+            setField(mojo, "stagingDirectory", new File(goalDir, "s3repo"));
+        }
+        if (hasField(mojo, "artifactItems")) {
+            setField(mojo, "project", new MavenProject());
+            setField(mojo, "repositorySystem", newRepositorySystem());
+            setField(mojo, "artifactItems", newArtifactItems());
+        }
+        mojo.setLog(log);
+
+        final SimulatedS3.Stats before = s3.getStats();
+        final long start = System.nanoTime();
+        String failure = null;
+        try {
+            mojo.execute();
+        } catch (AbstractMojoExecutionException e) {
+            failure = e.getMessage();
+            System.out.println(goal + " failed: " + failure);
+        }
+        final long millis = (System.nanoTime() - start) / 1000000;
+        final S3Retrier retrier = (S3Retrier) getField(mojo, "retrier");
+        return new Result(profile.getName(), run, goal, millis, s3.getStats().since(before),
+            retrier != null ? retrier.getRetries() : new TreeMap<String, Long>(), faults.getFaults(), failure,
+            new File(goalDir, "s3repo-metrics.json"));
+    }
+
+    /** Answer a new goal of the given implementation class whose S3 client is <code>s3Session</code>'s. */
+    private static Mojo newMojo(String implementation, final AtomicReference<AmazonS3> s3Session) {
+        if (implementation.equals(CreateOrUpdateS3RepoMojo.class.getName())) {
+            return new CreateOrUpdateS3RepoMojo() {
+                @Override
+                protected AmazonS3 newS3Client() {
+                    return s3Session.get();
+                }
+            };
+        }
+        if (implementation.equals(RebuildS3RepoMojo.class.getName())) {
+            return new RebuildS3RepoMojo() {
+                @Override
+                protected AmazonS3 newS3Client() {
+                    return s3Session.get();
+                }
+            };
+        }
+        if (implementation.equals(ListS3RepoMojo.class.getName())) {
+            return new ListS3RepoMojo() {
+                @Override
+                protected AmazonS3 newS3Client() {
+                    return s3Session.get();
+                }
+            };
+        }
+        throw new IllegalArgumentException("unknown goal implementation: " + implementation);
+    }
+
+    private List<ArtifactItem> newArtifactItems() {
+        final List<ArtifactItem> items = new ArrayList<ArtifactItem>();
+        for (String artifactId : newPackages.keySet()) {
+            final ArtifactItem item = new ArtifactItem();
+            item.setGroupId("com.example");
+            item.setArtifactId(artifactId);
+            item.setVersion("2.0");
+            item.setType("rpm");
+            item.setTargetSubfolder(artifactId);
+            items.add(item);
+        }
+        return items;
+    }
+
+    /** Answer a repository system that resolves the artifact items to the new packages. */
+    private RepositorySystem newRepositorySystem() {
+        return (RepositorySystem) Proxy.newProxyInstance(RepositorySystem.class.getClassLoader(),
+            new Class<?>[]{RepositorySystem.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("resolveArtifact")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    final ArtifactRequest request = (ArtifactRequest) args[1];
+                    final File file = newPackages.get(request.getArtifact().getArtifactId());
+                    return new ArtifactResult(request).setArtifact(request.getArtifact().setFile(file));
+                }
+            });
+    }
+
+    /**
+     * Set each of <code>mojo</code>'s parameters to its overridden value (by property) or else its default value, as
+     * the descriptor declares them; parameters whose values aren't simple (e.g. ${project}) are left alone.
+     */
+    private void configure(Mojo mojo, Element mojoDescriptor, Map<String, String> properties) throws Exception {
+        final Element configuration = child(mojoDescriptor, "configuration");
+        if (configuration == null) {
+            return;
+        }
+        final NodeList parameters = configuration.getChildNodes();
+        for (int i = 0; i < parameters.getLength(); ++i) {
+            if (!(parameters.item(i) instanceof Element)) {
+                continue;
+            }
+            final Element parameter = (Element) parameters.item(i);
+            final Matcher property = EXPRESSION.matcher(parameter.getTextContent().trim());
+            String value = property.matches() && overrides.containsKey(property.group(1))
+                ? overrides.get(property.group(1))
+                : parameter.hasAttribute("default-value") ? parameter.getAttribute("default-value") : null;
+            value = value != null ? interpolate(value, properties) : null;
+            if (value == null || !hasField(mojo, parameter.getTagName())) {
+                continue;
+            }
+            final Class<?> type = findField(mojo.getClass(), parameter.getTagName()).getType();
+            if (type == String.class) {
+                setField(mojo, parameter.getTagName(), value);
+            } else if (type == File.class) {
+                setField(mojo, parameter.getTagName(), new File(value));
+            } else if (type == int.class || type == Integer.class) {
+                setField(mojo, parameter.getTagName(), Integer.parseInt(value));
+            } else if (type == long.class || type == Long.class) {
+                setField(mojo, parameter.getTagName(), Long.parseLong(value));
+            } else if (type == boolean.class || type == Boolean.class) {
+                setField(mojo, parameter.getTagName(), Boolean.parseBoolean(value));
+            }
+        }
+    }
+
+    /** Answer <code>value</code> with its expressions replaced, or null if it has any that can't be. */
+    private static String interpolate(String value, Map<String, String> properties) {
+        final Matcher expressions = EXPRESSION.matcher(value);
+        final StringBuffer interpolated = new StringBuffer();
+        while (expressions.find()) {
+            final String replacement = properties.get(expressions.group(1));
+            if (replacement == null) {
+                return null;
+            }
+            expressions.appendReplacement(interpolated, Matcher.quoteReplacement(replacement));
+        }
+        expressions.appendTail(interpolated);
+        return interpolated.toString();
+    }
+
+    private void report(List<Result> results) throws IOException {
+        System.out.println();
+        System.out.println(String.format("%d packages of %s bytes (+%s), latency %s ms, %s KB/s per stream, %s KB/s in all",
+            getInt("packages"), settings.get("packageSize"), settings.get("newPackages"), settings.get("latency"),
+            settings.get("streamKBps"), settings.get("linkKBps")));
+        System.out.println("Medians over " + settings.get("runs") + " run(s); requests by type, retries by operation and"
+            + " faults by kind are totals.");
+        System.out.println(String.format("%-14s %-16s %6s %10s %10s %9s %8s %7s %14s %14s", "faults", "goal", "failed",
+            "time (ms)", "max (ms)", "requests", "retries", "faults", "bytes up", "bytes down"));
+        // results of the runs, by fault profile and goal
+        final Map<String, List<Result>> groups = new LinkedHashMap<String, List<Result>>();
+        for (Result result : results) {
+            final String key = result.profile + " " + result.goal;
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<Result>());
+            }
+            groups.get(key).add(result);
+        }
+        for (List<Result> group : groups.values()) {
+            final long[] millis = new long[group.size()];
+            final long[] requests = new long[group.size()];
+            final long[] retries = new long[group.size()];
+            final long[] faults = new long[group.size()];
+            final long[] bytesUp = new long[group.size()];
+            final long[] bytesDown = new long[group.size()];
+            final Map<String, Long> requestsByType = new TreeMap<String, Long>();
+            final Map<String, Long> retriesByOperation = new TreeMap<String, Long>();
+            final Map<String, Long> faultsByKind = new TreeMap<String, Long>();
+            int failed = 0;
+            for (int i = 0; i < group.size(); ++i) {
+                final Result result = group.get(i);
+                millis[i] = result.millis;
+                requests[i] = result.stats.getRequestCount();
+                retries[i] = sum(result.retries);
+                faults[i] = sum(result.faults);
+                bytesUp[i] = result.stats.getBytesUploaded();
+                bytesDown[i] = result.stats.getBytesDownloaded();
+                add(requestsByType, result.stats.getRequests());
+                add(retriesByOperation, result.retries);
+                add(faultsByKind, result.faults);
+                if (result.failure != null) {
+                    ++failed;
+                }
+            }
+            System.out.println(String.format("%-14s %-16s %6d %10d %10d %9d %8d %7d %14d %14d", group.get(0).profile,
+                group.get(0).goal, failed, median(millis), max(millis), median(requests), median(retries), median(faults),
+                median(bytesUp), median(bytesDown)));
+            System.out.println("    requests " + requestsByType);
+            if (!retriesByOperation.isEmpty() || !faultsByKind.isEmpty()) {
+                System.out.println("    retries " + retriesByOperation + ", faults " + faultsByKind);
+            }
+        }
+        System.out.println("Per-phase metrics of each goal are in " + workDir + "/<faults>/<run>/<goal>/s3repo-metrics.json.");
+        if (settings.containsKey("resultFile")) {
+            writeJson(results, new File(settings.get("resultFile")));
+        }
+    }
+
+    private void writeJson(List<Result> results, File file) throws IOException {
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"settings\": {");
+        String separator = "";
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            json.append(separator).append('"').append(setting.getKey()).append("\": \"").append(setting.getValue()).append('"');
+            separator = ", ";
+        }
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            json.append(separator).append('"').append(override.getKey()).append("\": \"").append(override.getValue()).append('"');
+        }
+        json.append("},\n  \"goals\": [");
+        separator = "\n";
+        for (Result result : results) {
+            json.append(separator).append("    {\"faults\": \"").append(result.profile).append("\", \"run\": ").append(result.run)
+                .append(", \"goal\": \"").append(result.goal).append("\", \"failed\": ").append(result.failure != null)
+                .append(", \"millis\": ").append(result.millis)
+                .append(", \"requests\": ").append(toJson(result.stats.getRequests()))
+                .append(", \"retries\": ").append(toJson(result.retries))
+                .append(", \"injectedFaults\": ").append(toJson(result.faults))
+                .append(", \"bytesUploaded\": ").append(result.stats.getBytesUploaded())
+                .append(", \"bytesDownloaded\": ").append(result.stats.getBytesDownloaded())
+                .append(", \"metricsFile\": \"").append(result.metricsFile.getPath().replace("\\", "\\\\")).append("\"}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+        Files.createParentDirs(file);
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            ExtraIOUtils.closeQuietly(writer);
+        }
+        System.out.println("Wrote results to " + file.getPath());
+    }
+
+    private static String toJson(Map<String, Long> counts) {
+        final StringBuilder json = new StringBuilder("{");
+        String separator = "";
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            json.append(separator).append('"').append(count.getKey()).append("\": ").append(count.getValue());
+            separator = ", ";
+        }
+        return json.append('}').toString();
+    }
+
+    private static long sum(Map<String, Long> counts) {
+        long sum = 0;
+        for (Long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static void add(Map<String, Long> totals, Map<String, Long> counts) {
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            final Long total = totals.get(count.getKey());
+            totals.put(count.getKey(), (total != null ? total : 0) + count.getValue());
+        }
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long max(long[] values) {
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private Element findMojo(String goal) {
+        final NodeList mojos = descriptor.getElementsByTagName("mojo");
+        for (int i = 0; i < mojos.getLength(); ++i) {
+            if (goal.equals(text((Element) mojos.item(i), "goal"))) {
+                return (Element) mojos.item(i);
+            }
+        }
+        throw new IllegalArgumentException("no such goal: " + goal);
+    }
+
+    private static Document loadDescriptor() throws Exception {
+        final InputStream in = EndToEndBenchmark.class.getClassLoader().getResourceAsStream(DESCRIPTOR);
+        if (in == null) {
+            throw new IllegalStateException(DESCRIPTOR + " is not on the classpath; build the plugin first"
+                + " (e.g. mvn -P benchmarks -DskipTests verify)");
+        }
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && node.getNodeName().equals(name)) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static String text(Element parent, String name) {
+        final Element child = child(parent, name);
+        return child != null ? child.getTextContent().trim() : null;
+    }
+
+    private static Field findField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getName().equals(name)) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasField(Object target, String name) {
+        return findField(target.getClass(), name) != null;
+    }
+
+    private static Object getField(Object target, String name) throws IllegalAccessException {
+        return findField(target.getClass(), name).get(target);
+    }
+
+    private static void setField(Object target, String name, Object value) throws IllegalAccessException {
+        final Field field = findField(target.getClass(), name);
+        if (field == null) {
+            throw new IllegalArgumentException(target.getClass().getSimpleName() + " has no field " + name);
+        }
+        field.set(target, value);
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(settings.get(name));
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(settings.get(name));
+    }
+
+    private static final class Result {
+        private final String profile;
+        private final int run;
+        private final String goal;
+        private final long millis;
+        private final SimulatedS3.Stats stats;
+        /** Retries by kind of operation. */
+        private final Map<String, Long> retries;
+        /** Injected faults by kind. */
+        private final Map<String, Long> faults;
+        /** Why the goal failed, or null if it didn't. */
+        private final String failure;
+        private final File metricsFile;
+
+        private Result(String profile, int run, String goal, long millis, SimulatedS3.Stats stats, Map<String, Long> retries,
+                       Map<String, Long> faults, String failure, File metricsFile) {
+            this.profile = profile;
+            this.run = run;
+            this.goal = goal;
+            this.millis = millis;
+            this.stats = stats;
+            this.retries = retries;
+            this.faults = faults;
+            this.failure = failure;
+            this.metricsFile = metricsFile;
+        }
+    }
+
+    /** Logs warnings and errors, and info and debug messages only if verbose (the goals log every file they move). */
+    private static final class QuietLog extends SystemStreamLog {
+        private final boolean verbose;
+
+        private QuietLog(boolean verbose) {
+            this.verbose = verbose;
+        }
+
+        @Override
+        public boolean isDebugEnabled() {
+            return verbose;
+        }
+
+        @Override
+        public void debug(CharSequence content) {
+            if (verbose) {
+                super.debug(content);
+            }
+        }
+
+        @Override
+        public void debug(CharSequence content, Throwable error) {
+            if (verbose) {
+                super.debug(content, error);
+            }
+        }
+
+        @Override
+        public void debug(Throwable error) {
+            if (verbose) {
+                super.debug(error);
+            }
+        }
+
+        @Override
+        public boolean isInfoEnabled() {
+            return verbose;
+        }
+
+        @Override
+        public void info(CharSequence content) {
+            if (verbose) {
+                super.info(content);
+            }
+        }
+
+        @Override
+        public void info(CharSequence content, Throwable error) {
+            if (verbose) {
+                super.info(content, error);
+            }
+        }
+
+        @Override
+        public void info(Throwable error) {
+            if (verbose) {
+                super.info(error);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package bench.s3repo;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps an {@link AmazonS3} client (e.g. of a {@link SimulatedS3}) to make its requests fail, or slow them down, the way
+ * requests to S3 do in production, as a {@link FaultProfile} says: "503 SlowDown" and "500 InternalError" responses,
+ * connection resets, response bodies that break off, and stalls. Failures look like the SDK's: service errors are
+ * {@link AmazonS3Exception}s, broken requests are {@link AmazonClientException}s caused by a {@link SocketException} or
+ * {@link SocketTimeoutException}, and response bodies throw those directly. A stall longer than the client's socket
+ * timeout ends in a {@link SocketTimeoutException} after the timeout, like a read on a silent connection does.
+ * <p/>
+ * Faults are drawn from a seeded random, and counted by kind (see {@link #getFaults()}).
+ */
+public final class FaultInjectingS3 implements InvocationHandler {
+
+    private final AmazonS3 s3Session;
+    private final FaultProfile profile;
+    private final long socketTimeoutMillis;
+    private final Random random;
+    private final Map<String, AtomicLong> faults = new TreeMap<String, AtomicLong>();
+    /** Token bucket of {@link FaultProfile#getRequestRateLimit()}; holds a quarter second's worth of requests. */
+    private double tokens;
+    private long tokensUpdated = System.nanoTime();
+
+    public FaultInjectingS3(AmazonS3 s3Session, FaultProfile profile, long socketTimeoutMillis, long seed) {
+        this.s3Session = s3Session;
+        this.profile = profile;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.random = new Random(seed);
+        this.tokens = getBucketCapacity();
+    }
+
+    /** Answer a client whose requests suffer this wrapper's faults. */
+    public AmazonS3 client() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, this);
+    }
+
+    /** Answer the number of faults injected so far, by kind (e.g. "SlowDown", "reset", "timeout"). */
+    public Map<String, Long> getFaults() {
+        final Map<String, Long> snapshot = new TreeMap<String, Long>();
+        synchronized (faults) {
+            for (Map.Entry<String, AtomicLong> entry : faults.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class || method.getName().equals("shutdown")) {
+            return invokeTarget(method, args);
+        }
+        if (profile.getLatencyMedianMillis() > 0) {
+            final double gaussian;
+            synchronized (random) {
+                gaussian = random.nextGaussian();
+            }
+            TimeUnit.MICROSECONDS.sleep((long) (1000 * profile.getLatencyMedianMillis() * Math.exp(profile.getLatencySigma() * gaussian)));
+        }
+        if (isOverRateLimit()) {
+            count("throttled");
+            throw serviceError(503, "SlowDown", "Please reduce your request rate.");
+        }
+        if (chance(profile.getSlowDownRate())) {
+            count("SlowDown");
+            throw serviceError(503, "SlowDown", "Please reduce your request rate.");
+        }
+        if (chance(profile.getInternalErrorRate())) {
+            count("InternalError");
+            throw serviceError(500, "InternalError", "We encountered an internal error. Please try again.");
+        }
+        if (chance(profile.getResetRate())) {
+            count("reset");
+            throw new AmazonClientException("Unable to execute HTTP request: Connection reset", new SocketException("Connection reset"));
+        }
+        final boolean isGet = method.getName().equals("getObject");
+        if (!isGet && chance(profile.getStallRate())) {
+            try {
+                stall();
+            } catch (SocketTimeoutException e) {
+                throw new AmazonClientException("Unable to execute HTTP request: " + e.getMessage(), e);
+            }
+        }
+        final Object result = invokeTarget(method, args);
+        if (result instanceof S3Object) {
+            injectResponseBodyFaults((S3Object) result);
+        }
+        return result;
+    }
+
+    private void injectResponseBodyFaults(S3Object object) {
+        final S3ObjectInputStream content = object.getObjectContent();
+        final long length = object.getObjectMetadata().getContentLength();
+        if (content == null || length <= 0) {
+            return;
+        }
+        final boolean breakOff = chance(profile.getMidStreamFailureRate());
+        final boolean stall = chance(profile.getStallRate());
+        if (!breakOff && !stall) {
+            return;
+        }
+        final long faultPosition;
+        synchronized (random) {
+            faultPosition = (long) (random.nextDouble() * length);
+        }
+        object.setObjectContent(new S3ObjectInputStream(new FilterInputStream(content) {
+            private long position;
+            private boolean stalled;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= faultPosition) {
+                    if (stall && !stalled) {
+                        stalled = true;
+                        stall();
+                    }
+                    if (breakOff) {
+                        count("midStreamReset");
+                        throw new SocketException("Connection reset");
+                    }
+                }
+                final int read = super.read(b, off, position < faultPosition ? (int) Math.min(len, faultPosition - position) : len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+        }, content.getHttpRequest()));
+    }
+
+    /** Stall for the profile's stall time, or until the socket timeout if that is shorter (and then time out). */
+    private void stall() throws SocketTimeoutException {
+        try {
+            if (profile.getStallMillis() < socketTimeoutMillis) {
+                count("stall");
+                TimeUnit.MILLISECONDS.sleep(profile.getStallMillis());
+                return;
+            }
+            count("timeout");
+            TimeUnit.MILLISECONDS.sleep(socketTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new SocketTimeoutException("Read timed out");
+    }
+
+    private boolean isOverRateLimit() {
+        if (profile.getRequestRateLimit() <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            final long now = System.nanoTime();
+            tokens = Math.min(getBucketCapacity(), tokens + (now - tokensUpdated) * profile.getRequestRateLimit() / 1e9);
+            tokensUpdated = now;
+            if (tokens >= 1) {
+                --tokens;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private double getBucketCapacity() {
+        return Math.max(1, profile.getRequestRateLimit() / 4);
+    }
+
+    private boolean chance(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void count(String kind) {
+        AtomicLong count;
+        synchronized (faults) {
+            count = faults.get(kind);
+            if (count == null) {
+                count = new AtomicLong();
+                faults.put(kind, count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(s3Session, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static AmazonS3Exception serviceError(int statusCode, String errorCode, String message) {
+        final AmazonS3Exception e = new AmazonS3Exception(message);
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+}
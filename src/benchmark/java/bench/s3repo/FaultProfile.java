@@ -0,0 +1,136 @@
+package bench.s3repo;
+
+/**
+ * What a {@link FaultInjectingS3} does to requests: extra latency with a log-normal distribution (so that a few requests
+ * are much slower than the median), throttling (at random, or of requests over a rate limit), errors and broken
+ * connections before a response, failures in the middle of a response body, and stalls that last until the client's
+ * socket timeout if they are longer. Rates are probabilities per request.
+ * <p/>
+ * The named profiles ({@link #named}) cover one kind of trouble each, plus "mixed"; {@link #set} adjusts a profile.
+ */
+public final class FaultProfile {
+
+    private final String name;
+    /** Median extra latency, in milliseconds. */
+    private double latencyMedianMillis;
+    /** Standard deviation of the logarithm of the extra latency; the 99th percentile is median * e^(2.33 * sigma). */
+    private double latencySigma;
+    /** Requests per second beyond which requests are throttled; 0 for no limit. */
+    private double requestRateLimit;
+    private double slowDownRate;
+    private double internalErrorRate;
+    /** Rate of connection resets before a response. */
+    private double resetRate;
+    /** Rate of GETs whose response body breaks off (with a connection reset) part of the way through. */
+    private double midStreamFailureRate;
+    /** Rate of requests (or, for GETs, response bodies) that stall for {@link #stallMillis}. */
+    private double stallRate;
+    private long stallMillis = 60000;
+
+    private FaultProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Answer the profile called <code>name</code>: "none", "tail-latency", "throttling" (by a request rate limit),
+     * "errors" (SlowDown, InternalError and connection resets), "mid-stream" (response bodies that break off), "stalls"
+     * (reads that last longer than the socket timeout) or "mixed" (a bit of everything).
+     */
+    public static FaultProfile named(String name) {
+        final FaultProfile profile = new FaultProfile(name);
+        if (name.equals("tail-latency") || name.equals("mixed")) {
+            profile.latencyMedianMillis = 5;
+            profile.latencySigma = 1.5;
+        }
+        if (name.equals("throttling")) {
+            profile.requestRateLimit = 200;
+        }
+        if (name.equals("errors") || name.equals("mixed")) {
+            profile.slowDownRate = 0.01;
+            profile.internalErrorRate = 0.005;
+            profile.resetRate = 0.005;
+        }
+        if (name.equals("mid-stream") || name.equals("mixed")) {
+            profile.midStreamFailureRate = 0.02;
+        }
+        if (name.equals("stalls") || name.equals("mixed")) {
+            profile.stallRate = 0.002;
+        }
+        if (!name.equals("none") && profile.isNone()) {
+            throw new IllegalArgumentException("unknown fault profile: " + name);
+        }
+        return profile;
+    }
+
+    /** Set <code>property</code> (e.g. "slowDownRate") of this profile to <code>value</code>. */
+    public FaultProfile set(String property, String value) {
+        if (property.equals("latencyMedianMillis")) {
+            latencyMedianMillis = Double.parseDouble(value);
+        } else if (property.equals("latencySigma")) {
+            latencySigma = Double.parseDouble(value);
+        } else if (property.equals("requestRateLimit")) {
+            requestRateLimit = Double.parseDouble(value);
+        } else if (property.equals("slowDownRate")) {
+            slowDownRate = Double.parseDouble(value);
+        } else if (property.equals("internalErrorRate")) {
+            internalErrorRate = Double.parseDouble(value);
+        } else if (property.equals("resetRate")) {
+            resetRate = Double.parseDouble(value);
+        } else if (property.equals("midStreamFailureRate")) {
+            midStreamFailureRate = Double.parseDouble(value);
+        } else if (property.equals("stallRate")) {
+            stallRate = Double.parseDouble(value);
+        } else if (property.equals("stallMillis")) {
+            stallMillis = Long.parseLong(value);
+        } else {
+            throw new IllegalArgumentException("unknown fault profile property: " + property);
+        }
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLatencyMedianMillis() {
+        return latencyMedianMillis;
+    }
+
+    public double getLatencySigma() {
+        return latencySigma;
+    }
+
+    public double getRequestRateLimit() {
+        return requestRateLimit;
+    }
+
+    public double getSlowDownRate() {
+        return slowDownRate;
+    }
+
+    public double getInternalErrorRate() {
+        return internalErrorRate;
+    }
+
+    public double getResetRate() {
+        return resetRate;
+    }
+
+    public double getMidStreamFailureRate() {
+        return midStreamFailureRate;
+    }
+
+    public double getStallRate() {
+        return stallRate;
+    }
+
+    public long getStallMillis() {
+        return stallMillis;
+    }
+
+    private boolean isNone() {
+        return latencyMedianMillis == 0 && requestRateLimit == 0 && slowDownRate == 0 && internalErrorRate == 0
+            && resetRate == 0 && midStreamFailureRate == 0 && stallRate == 0;
+    }
+
+}
@@ -0,0 +1,85 @@
+package bench.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading a local repository's metadata, as every create-update and rebuild-repo does, for repositories of
+ * 1k, 10k and 100k packages. Each invocation uses a new {@link LocalYumRepoFacade}, as each goal execution does, so
+ * nothing is served from the facade's caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RepoMetadataBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int packages;
+
+    private File repositoryRoot;
+
+    @Setup(Level.Trial)
+    public void writeRepoData() throws IOException {
+        repositoryRoot = SyntheticRepoData.generate(packages);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepoData() throws IOException {
+        FileUtils.deleteDirectory(repositoryRoot);
+    }
+
+    @Benchmark
+    public List<String> parseFileListFromRepoMetadata() throws MojoExecutionException {
+        return newFacade().parseFileListFromRepoMetadata();
+    }
+
+    @Benchmark
+    public LocalYumRepoFacade verifyRepoDataFileChecksums() throws MojoExecutionException {
+        final LocalYumRepoFacade facade = newFacade();
+        facade.verifyRepoDataFileChecksums();
+        return facade;
+    }
+
+    @Benchmark
+    public Document parseRepomdXml() throws MojoExecutionException {
+        return XmlUtils.parseXmlFile(new File(repositoryRoot,
+            WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME));
+    }
+
+    /** The whole primary metadata as a DOM; its allocation and peak heap are what streaming parsers avoid. */
+    @Benchmark
+    public Document parsePrimaryXml() throws MojoExecutionException {
+        return XmlUtils.parseXmlFile(new File(repositoryRoot, WellKnowns.YUM_REPODATA_FOLDERNAME + "/primary.xml.gz"));
+    }
+
+    private LocalYumRepoFacade newFacade() {
+        return new LocalYumRepoFacade(repositoryRoot, "createrepo", "", new SystemStreamLog());
+    }
+
+}
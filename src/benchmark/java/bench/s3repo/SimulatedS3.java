@@ -0,0 +1,233 @@
+package bench.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulated network costs in front of an S3 client, typically one of a test.s3repo.FakeS3. Every request waits
+ * {@link #latencyMillis} before it is served (the round trip to S3 and its time to first byte); request and response
+ * bodies then move at no more than {@link #streamBandwidth} bytes per second each, and all of them together at no more
+ * than {@link #linkBandwidth} bytes per second (the host's link); 0 means unlimited. That is enough to see how the
+ * goals' request counts and concurrency settings play out in wall time, without an AWS account.
+ * <p/>
+ * Requests and bytes are counted by type (the name of the {@link AmazonS3} method), see {@link #getStats()}. Objects
+ * stored through the underlying client directly bypass the simulation and are not counted.
+ */
+public final class SimulatedS3 implements InvocationHandler {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Requests, by type, and bytes moved since this S3 was created; immutable. */
+    public static final class Stats {
+        private final Map<String, Long> requests;
+        private final long bytesUploaded;
+        private final long bytesDownloaded;
+
+        private Stats(Map<String, Long> requests, long bytesUploaded, long bytesDownloaded) {
+            this.requests = Collections.unmodifiableMap(requests);
+            this.bytesUploaded = bytesUploaded;
+            this.bytesDownloaded = bytesDownloaded;
+        }
+
+        /** Answer the requests and bytes of these stats that are not in <code>earlier</code>. */
+        public Stats since(Stats earlier) {
+            final Map<String, Long> difference = new TreeMap<String, Long>();
+            for (Map.Entry<String, Long> entry : requests.entrySet()) {
+                final Long before = earlier.requests.get(entry.getKey());
+                final long count = entry.getValue() - (before != null ? before : 0);
+                if (count > 0) {
+                    difference.put(entry.getKey(), count);
+                }
+            }
+            return new Stats(difference, bytesUploaded - earlier.bytesUploaded, bytesDownloaded - earlier.bytesDownloaded);
+        }
+
+        /** Requests by type. */
+        public Map<String, Long> getRequests() {
+            return requests;
+        }
+
+        public long getRequestCount() {
+            long count = 0;
+            for (Long one : requests.values()) {
+                count += one;
+            }
+            return count;
+        }
+
+        public long getBytesUploaded() {
+            return bytesUploaded;
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+    }
+
+    private final AmazonS3 s3Session;
+    private final long latencyMillis;
+    private final long streamBandwidth;
+    private final long linkBandwidth;
+    private final Map<String, AtomicLong> requests = new TreeMap<String, AtomicLong>();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    /** When (System.nanoTime) the link is done with the bytes scheduled on it so far. */
+    private long linkBusyUntil;
+
+    /**
+     * @param s3Session       the client that serves the requests
+     * @param latencyMillis   milliseconds each request waits before it is served
+     * @param streamBandwidth bytes per second of each request or response body; 0 for unlimited
+     * @param linkBandwidth   bytes per second of all bodies together; 0 for unlimited
+     */
+    public SimulatedS3(AmazonS3 s3Session, long latencyMillis, long streamBandwidth, long linkBandwidth) {
+        this.s3Session = s3Session;
+        this.latencyMillis = latencyMillis;
+        this.streamBandwidth = streamBandwidth;
+        this.linkBandwidth = linkBandwidth;
+    }
+
+    /** Answer a client whose requests pay the simulated costs. */
+    public AmazonS3 client() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, this);
+    }
+
+    /** Answer the requests and bytes so far. */
+    public Stats getStats() {
+        final Map<String, Long> snapshot = new TreeMap<String, Long>();
+        synchronized (requests) {
+            for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return new Stats(snapshot, bytesUploaded.get(), bytesDownloaded.get());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (method.getDeclaringClass() != Object.class && !name.equals("shutdown")) {
+            countRequest(name);
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            receive(requestBodySize(args));
+        }
+        final Object result;
+        try {
+            result = method.invoke(s3Session, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        if (result instanceof S3Object && ((S3Object) result).getObjectContent() != null) {
+            final S3Object object = (S3Object) result;
+            final S3ObjectInputStream content = object.getObjectContent();
+            object.setObjectContent(new S3ObjectInputStream(new ThrottledInputStream(content), content.getHttpRequest()));
+        }
+        return result;
+    }
+
+    private void countRequest(String type) {
+        AtomicLong count;
+        synchronized (requests) {
+            count = requests.get(type);
+            if (count == null) {
+                count = new AtomicLong();
+                requests.put(type, count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /** Answer the size of the body of the request with <code>args</code>; 0 if it has none. */
+    private static long requestBodySize(Object[] args) {
+        if (args == null || args.length != 1) {
+            return 0;
+        }
+        if (args[0] instanceof PutObjectRequest) {
+            final PutObjectRequest request = (PutObjectRequest) args[0];
+            if (request.getFile() != null) {
+                return request.getFile().length();
+            }
+            return request.getMetadata() != null ? request.getMetadata().getContentLength() : 0;
+        }
+        if (args[0] instanceof UploadPartRequest) {
+            return ((UploadPartRequest) args[0]).getPartSize();
+        }
+        return 0;
+    }
+
+    /** Wait until a request body of <code>size</code> bytes has been sent. */
+    private void receive(long size) throws InterruptedException {
+        long streamBusyUntil = System.nanoTime();
+        for (long sent = 0; sent < size; sent += CHUNK_SIZE) {
+            streamBusyUntil = transfer(Math.min(CHUNK_SIZE, size - sent), streamBusyUntil);
+        }
+        bytesUploaded.addAndGet(size);
+    }
+
+    /**
+     * Wait until <code>bytes</code> more of a body have moved, given that the body's stream is busy until
+     * <code>streamBusyUntil</code>; answer when the stream is done with them.
+     */
+    private long transfer(long bytes, long streamBusyUntil) throws InterruptedException {
+        final long now = System.nanoTime();
+        long done = streamBandwidth > 0 ? Math.max(now, streamBusyUntil) + bytes * 1000000000L / streamBandwidth : now;
+        if (linkBandwidth > 0) {
+            synchronized (this) {
+                linkBusyUntil = Math.max(now, linkBusyUntil) + bytes * 1000000000L / linkBandwidth;
+                done = Math.max(done, linkBusyUntil);
+            }
+        }
+        final long wait = done - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return done;
+    }
+
+    /** Response body that moves no faster than the simulated bandwidth. */
+    private final class ThrottledInputStream extends FilterInputStream {
+        private long streamBusyUntil = System.nanoTime();
+
+        private ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, Math.min(len, CHUNK_SIZE));
+            if (read > 0) {
+                try {
+                    streamBusyUntil = transfer(read, streamBusyUntil);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+                bytesDownloaded.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package bench.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a synthetic YUM repository's metadata (repomd.xml and gzipped primary, filelists and other metadata) in the
+ * shape createrepo produces, for a given number of packages. Packages get a handful of dependencies, files and changelog
+ * entries each, so that the metadata is about as large per package as that of a typical repository of services. The
+ * content is derived from a fixed seed, so every run of a benchmark reads the same bytes.
+ */
+public final class SyntheticRepoData {
+
+    private static final String[] ARCHES = {"noarch", "x86_64"};
+
+    private SyntheticRepoData() {}
+
+    /** Write the metadata of <code>packageCount</code> packages to a new temporary repository root and answer it. */
+    public static File generate(int packageCount) throws IOException {
+        final File repositoryRoot = Files.createTempDir();
+        final File repodata = new File(repositoryRoot, WellKnowns.YUM_REPODATA_FOLDERNAME);
+        if (!repodata.mkdirs()) {
+            throw new IOException("Failed to create " + repodata);
+        }
+        final StringBuilder repomd = new StringBuilder()
+            .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<repomd xmlns=\"http://linux.duke.edu/metadata/repo\" xmlns:rpm=\"http://linux.duke.edu/metadata/rpm\">\n")
+            .append("  <revision>1</revision>\n");
+        for (String type : new String[]{"primary", "filelists", "other"}) {
+            final byte[] xml = metadata(type, packageCount);
+            final byte[] gzipped = gzip(xml);
+            Files.write(gzipped, new File(repodata, type + ".xml.gz"));
+            repomd.append("  <data type=\"").append(type).append("\">\n")
+                .append("    <checksum type=\"sha256\">").append(DigestUtils.sha256Hex(gzipped)).append("</checksum>\n")
+                .append("    <open-checksum type=\"sha256\">").append(DigestUtils.sha256Hex(xml)).append("</open-checksum>\n")
+                .append("    <location href=\"repodata/").append(type).append(".xml.gz\"/>\n")
+                .append("    <timestamp>1500000000</timestamp>\n")
+                .append("    <size>").append(gzipped.length).append("</size>\n")
+                .append("    <open-size>").append(xml.length).append("</open-size>\n")
+                .append("  </data>\n");
+        }
+        repomd.append("</repomd>\n");
+        Files.write(repomd.toString().getBytes("UTF-8"), new File(repodata, WellKnowns.YUM_REPOMETADATA_FILENAME));
+        return repositoryRoot;
+    }
+
+    private static byte[] metadata(String type, int packageCount) throws IOException {
+        final Random random = new Random(packageCount);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Writer out = new OutputStreamWriter(bytes, "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            if ("primary".equals(type)) {
+                out.write("<metadata xmlns=\"http://linux.duke.edu/metadata/common\" xmlns:rpm=\"http://linux.duke.edu/metadata/rpm\" packages=\""
+                    + packageCount + "\">\n");
+            } else {
+                out.write("<" + type + "data xmlns=\"http://linux.duke.edu/metadata/" + type + "\" packages=\"" + packageCount + "\">\n");
+            }
+            for (int i = 0; i < packageCount; ++i) {
+                final String name = "service-" + (i / 10);
+                final String version = "1." + (i % 10);
+                final String release = String.valueOf(1 + random.nextInt(20));
+                final String arch = ARCHES[i % ARCHES.length];
+                final String pkgid = DigestUtils.sha256Hex(name + version + release + arch + i);
+                if ("primary".equals(type)) {
+                    writePrimaryPackage(out, random, name, version, release, arch, pkgid);
+                } else if ("filelists".equals(type)) {
+                    out.write("<package pkgid=\"" + pkgid + "\" name=\"" + name + "\" arch=\"" + arch + "\">\n");
+                    out.write("  <version epoch=\"0\" ver=\"" + version + "\" rel=\"" + release + "\"/>\n");
+                    for (int file = 0; file < 12; ++file) {
+                        out.write("  <file>/opt/" + name + "/lib/" + name + "-module-" + file + ".jar</file>\n");
+                    }
+                    out.write("  <file type=\"dir\">/opt/" + name + "</file>\n");
+                    out.write("</package>\n");
+                } else {
+                    out.write("<package pkgid=\"" + pkgid + "\" name=\"" + name + "\" arch=\"" + arch + "\">\n");
+                    out.write("  <version epoch=\"0\" ver=\"" + version + "\" rel=\"" + release + "\"/>\n");
+                    for (int entry = 0; entry < 3; ++entry) {
+                        out.write("  <changelog author=\"Build Bot &lt;builds@example.com&gt; - " + version + "-" + entry
+                            + "\" date=\"" + (1400000000 + random.nextInt(100000000)) + "\">- Release " + entry + " of "
+                            + name + "</changelog>\n");
+                    }
+                    out.write("</package>\n");
+                }
+            }
+            out.write("primary".equals(type) ? "</metadata>\n" : "</" + type + "data>\n");
+        } finally {
+            ExtraIOUtils.closeQuietly(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writePrimaryPackage(Writer out, Random random, String name, String version, String release,
+                                            String arch, String pkgid) throws IOException {
+        final int size = 100000 + random.nextInt(50000000);
+        out.write("<package type=\"rpm\">\n");
+        out.write("  <name>" + name + "</name>\n");
+        out.write("  <arch>" + arch + "</arch>\n");
+        out.write("  <version epoch=\"0\" ver=\"" + version + "\" rel=\"" + release + "\"/>\n");
+        out.write("  <checksum type=\"sha256\" pkgid=\"YES\">" + pkgid + "</checksum>\n");
+        out.write("  <summary>" + name + " service</summary>\n");
+        out.write("  <description>The " + name + " service, packaged for deployment.</description>\n");
+        out.write("  <packager>Build Bot</packager>\n");
+        out.write("  <url>https://example.com/" + name + "</url>\n");
+        out.write("  <time file=\"1500000000\" build=\"1500000000\"/>\n");
+        out.write("  <size package=\"" + size + "\" installed=\"" + (size * 2) + "\" archive=\"" + (size * 2 + 1024) + "\"/>\n");
+        out.write("  <location href=\"" + name + "/" + name + "-" + version + "-" + release + "." + arch + ".rpm\"/>\n");
+        out.write("  <format>\n");
+        out.write("    <rpm:license>Proprietary</rpm:license>\n");
+        out.write("    <rpm:vendor/>\n");
+        out.write("    <rpm:group>Applications/System</rpm:group>\n");
+        out.write("    <rpm:buildhost>build.example.com</rpm:buildhost>\n");
+        out.write("    <rpm:sourcerpm>" + name + "-" + version + "-" + release + ".src.rpm</rpm:sourcerpm>\n");
+        out.write("    <rpm:header-range start=\"440\" end=\"" + (4000 + random.nextInt(20000)) + "\"/>\n");
+        out.write("    <rpm:provides>\n");
+        out.write("      <rpm:entry name=\"" + name + "\" flags=\"EQ\" epoch=\"0\" ver=\"" + version + "\" rel=\"" + release + "\"/>\n");
+        out.write("    </rpm:provides>\n");
+        out.write("    <rpm:requires>\n");
+        out.write("      <rpm:entry name=\"/bin/sh\" pre=\"1\"/>\n");
+        out.write("      <rpm:entry name=\"java\" flags=\"GE\" epoch=\"0\" ver=\"1.8.0\"/>\n");
+        out.write("      <rpm:entry name=\"shadow-utils\"/>\n");
+        out.write("    </rpm:requires>\n");
+        out.write("    <file>/opt/" + name + "/bin/" + name + "</file>\n");
+        out.write("    <file type=\"dir\">/opt/" + name + "</file>\n");
+        out.write("  </format>\n");
+        out.write("</package>\n");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,126 @@
+package bench.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.RpmHeader;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Writes synthetic RPMs: a lead, an empty signature, a header with the tags YUM metadata is built from (name, version,
+ * files, provides, requires...) and a payload of random bytes up to the requested package size. They can't be
+ * installed, but to the goals (and the built-in metadata generator) they look like any other package.
+ */
+public final class SyntheticRpms {
+
+    private static final int RPMSENSE_EQUAL = 8;
+    private static final int RPMSENSE_GREATER_EQUAL = 12;
+
+    private SyntheticRpms() {}
+
+    /** Answer the repository-relative path of the <code>index</code>th package of a synthetic repository. */
+    public static String path(int index) {
+        final String name = name(index);
+        return name + "/" + name + "-" + version(index) + "-1.noarch.rpm";
+    }
+
+    /** Answer the name of the <code>index</code>th package of a synthetic repository (ten versions per name). */
+    public static String name(int index) {
+        return "service-" + (index / 10);
+    }
+
+    /** Answer the version of the <code>index</code>th package of a synthetic repository. */
+    public static String version(int index) {
+        return "1." + (index % 10);
+    }
+
+    /** Write an RPM of about <code>size</code> bytes for the given package to <code>file</code>. */
+    public static void write(File file, String name, String version, String release, int size) throws IOException {
+        final HeaderBuilder header = new HeaderBuilder()
+            .string(RpmHeader.NAME, name)
+            .string(RpmHeader.VERSION, version)
+            .string(RpmHeader.RELEASE, release)
+            .string(RpmHeader.SUMMARY, name + " service")
+            .string(RpmHeader.DESCRIPTION, "The " + name + " service, packaged for deployment.")
+            .int32(RpmHeader.BUILDTIME, 1500000000)
+            .string(RpmHeader.BUILDHOST, "build.example.com")
+            .int32(RpmHeader.SIZE, size * 2)
+            .string(RpmHeader.LICENSE, "Proprietary")
+            .string(RpmHeader.PACKAGER, "Build Bot")
+            .string(RpmHeader.GROUP, "Applications/System")
+            .string(RpmHeader.URL, "https://example.com/" + name)
+            .string(RpmHeader.ARCH, "noarch")
+            .string(RpmHeader.SOURCERPM, name + "-" + version + "-" + release + ".src.rpm")
+            .int32(RpmHeader.FILEMODES, 040755, 0100755, 0100644, 0100644)
+            .int32(RpmHeader.DIRINDEXES, 0, 1, 2, 2)
+            .stringArray(RpmHeader.BASENAMES, name, name, name + ".jar", name + "-lib.jar")
+            .stringArray(RpmHeader.DIRNAMES, "/opt/", "/opt/" + name + "/bin/", "/opt/" + name + "/lib/")
+            .stringArray(RpmHeader.PROVIDENAME, name)
+            .int32(RpmHeader.PROVIDEFLAGS, RPMSENSE_EQUAL)
+            .stringArray(RpmHeader.PROVIDEVERSION, version + "-" + release)
+            .stringArray(RpmHeader.REQUIRENAME, "/bin/sh", "java")
+            .int32(RpmHeader.REQUIREFLAGS, 0, RPMSENSE_GREATER_EQUAL)
+            .stringArray(RpmHeader.REQUIREVERSION, "", "1.8.0");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        final ByteBuffer lead = ByteBuffer.allocate(RpmHeader.LEAD_SIZE);
+        lead.putInt(0xedabeedb);
+        out.write(lead.array());
+        out.write(new HeaderBuilder().build()); // signature
+        out.write(header.build());
+        // payload; random, so that it doesn't compress
+        final byte[] payload = new byte[Math.max(4, size - out.size())];
+        new Random((name + version + release).hashCode()).nextBytes(payload);
+        out.write(payload);
+        Files.createParentDirs(file);
+        Files.write(out.toByteArray(), file);
+    }
+
+    private static final class HeaderBuilder {
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int count;
+
+        HeaderBuilder string(int tag, String value) throws IOException {
+            entry(tag, 6, 1);
+            data.write(value.getBytes("UTF-8"));
+            data.write(0);
+            return this;
+        }
+
+        HeaderBuilder stringArray(int tag, String... values) throws IOException {
+            entry(tag, 8, values.length);
+            for (String value : values) {
+                data.write(value.getBytes("UTF-8"));
+                data.write(0);
+            }
+            return this;
+        }
+
+        HeaderBuilder int32(int tag, int... values) throws IOException {
+            while (data.size() % 4 != 0) {
+                data.write(0);
+            }
+            entry(tag, 4, values.length);
+            for (int value : values) {
+                data.write(ByteBuffer.allocate(4).putInt(value).array());
+            }
+            return this;
+        }
+
+        private void entry(int tag, int type, int valueCount) throws IOException {
+            index.write(ByteBuffer.allocate(16).putInt(tag).putInt(type).putInt(data.size()).putInt(valueCount).array());
+            ++count;
+        }
+
+        byte[] build() {
+            final ByteBuffer header = ByteBuffer.allocate(RpmHeader.PREAMBLE_SIZE + index.size() + data.size());
+            header.putInt(0x8eade801).putInt(0).putInt(count).putInt(data.size());
+            header.put(index.toByteArray()).put(data.toByteArray());
+            return header.array();
+        }
+    }
+
+}
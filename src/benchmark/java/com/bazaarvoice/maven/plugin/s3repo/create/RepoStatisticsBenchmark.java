@@ -0,0 +1,73 @@
+package com.bazaarvoice.maven.plugin.s3repo.create;
+
+import bench.s3repo.SyntheticRepoData;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RepoStatistics} creation, which create-update does before and after it updates a repository.
+ * (It lives in this package because RepoStatistics is only created from a package-private context.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RepoStatisticsBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int packages;
+
+    private File repositoryRoot;
+    private CreateOrUpdateContext warmContext;
+
+    @Setup(Level.Trial)
+    public void writeRepoData() throws IOException {
+        repositoryRoot = SyntheticRepoData.generate(packages);
+        warmContext = newContext();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepoData() throws IOException {
+        FileUtils.deleteDirectory(repositoryRoot);
+    }
+
+    /** The first statistics of a goal execution: the metadata is read. */
+    @Benchmark
+    public RepoStatistics createRepoStatistics() throws MojoExecutionException {
+        return RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(newContext());
+    }
+
+    /** Statistics of metadata that the facade has already read (and that did not change since). */
+    @Benchmark
+    public RepoStatistics createRepoStatisticsUnchanged() throws MojoExecutionException {
+        return RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(warmContext);
+    }
+
+    private CreateOrUpdateContext newContext() {
+        final CreateOrUpdateContext context = new CreateOrUpdateContext();
+        context.setLocalYumRepo(new LocalYumRepoFacade(repositoryRoot, "createrepo", "", new SystemStreamLog()));
+        return context;
+    }
+
+}
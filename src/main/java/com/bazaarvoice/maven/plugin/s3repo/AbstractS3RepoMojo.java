@@ -0,0 +1,224 @@
+package com.bazaarvoice.maven.plugin.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.bazaarvoice.maven.plugin.s3repo.util.AdaptiveConcurrencyLimiter;
+import com.bazaarvoice.maven.plugin.s3repo.util.BandwidthLimiter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3ClientFactory;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Metrics;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.eclipse.aether.RepositorySystemSession;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base of the goals that talk to S3: credentials, the S3 client's connection settings and retries. All goals of a build
+ * share one client (and so one connection pool) per configuration; see {@link S3ClientFactory}. Each goal retries its
+ * own S3 operations (see {@link S3Retrier}) and logs a summary of the retries when it is done, along with the time,
+ * S3 requests and bytes of each of its phases (see {@link S3Metrics}), which are also written to {@link #metricsFile}.
+ * Optionally, a goal adapts the number of its transfers in flight to how S3 copes (see
+ * {@link AdaptiveConcurrencyLimiter}) and caps their bandwidth (see {@link BandwidthLimiter}).
+ */
+public abstract class AbstractS3RepoMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${repositorySystemSession}", readonly = true)
+    private RepositorySystemSession repositorySession;
+
+    @Parameter(defaultValue = "${mojoExecution}", readonly = true)
+    private MojoExecution mojoExecution;
+
+    @Parameter(property = "s3repo.accessKey")
+    private String s3AccessKey;
+
+    @Parameter(property = "s3repo.secretKey")
+    private String s3SecretKey;
+
+    /** Maximum number of open connections to S3; keep it at least as large as the sum of the concurrency settings. */
+    @Parameter(property = "s3repo.maxConnections", defaultValue = "64")
+    private int maxConnections;
+
+    /** Milliseconds after which a pooled connection is no longer reused; -1 reuses connections indefinitely. */
+    @Parameter(property = "s3repo.connectionTTL", defaultValue = "-1")
+    private long connectionTTL;
+
+    /** Milliseconds to wait for data on an open connection before the request fails (and is retried). */
+    @Parameter(property = "s3repo.socketTimeout", defaultValue = "30000")
+    private int socketTimeout;
+
+    /** Milliseconds to wait for a connection to S3 to be established. */
+    @Parameter(property = "s3repo.connectionTimeout", defaultValue = "30000")
+    private int connectionTimeout;
+
+    /** Enable TCP keep-alive on connections to S3, so that idle pooled connections are not silently dropped. */
+    @Parameter(property = "s3repo.tcpKeepAlive", defaultValue = "true")
+    private boolean tcpKeepAlive;
+
+    /** How many times an operation that failed with a retryable error (throttling, 5xx, I/O error) is retried. */
+    @Parameter(property = "s3repo.maxErrorRetry", defaultValue = "5")
+    private int maxErrorRetry;
+
+    /** Milliseconds of backoff before the first retry of an operation; it doubles with every further retry. */
+    @Parameter(property = "s3repo.retryBaseDelay", defaultValue = "200")
+    private long retryBaseDelay;
+
+    /** Maximum milliseconds of backoff before a retry. */
+    @Parameter(property = "s3repo.retryMaxDelay", defaultValue = "20000")
+    private long retryMaxDelay;
+
+    /** Maximum number of retries of each kind of operation (e.g. downloads, uploads of parts) in one goal execution. */
+    @Parameter(property = "s3repo.retryBudget", defaultValue = "500")
+    private int retryBudget;
+
+    /** S3 region of the bucket(s), e.g. "us-west-2"; by default the SDK's default endpoint is used. */
+    @Parameter(property = "s3repo.region")
+    private String region;
+
+    /** Custom S3 endpoint, e.g. of an S3-compatible service; overrides {@link #region}'s endpoint. */
+    @Parameter(property = "s3repo.endpoint")
+    private String endpoint;
+
+    /** Address buckets by path ("endpoint/bucket") rather than by virtual host ("bucket.endpoint"). */
+    @Parameter(property = "s3repo.pathStyleAccess", defaultValue = "false")
+    private boolean pathStyleAccess;
+
+    /**
+     * Adapt the number of transfer requests in flight to how S3 copes: start at 4, raise the limit while requests
+     * succeed with steady latency, and halve it on throttling ("503 SlowDown"), up to {@link #maxConcurrency}.
+     * Transfers then run on {@link #maxConcurrency} threads rather than the goal's concurrency settings.
+     */
+    @Parameter(property = "s3repo.adaptiveConcurrency", defaultValue = "false")
+    private boolean adaptiveConcurrency;
+
+    /** Upper bound of the adaptive concurrency limit; keep {@link #maxConnections} at least as large. */
+    @Parameter(property = "s3repo.maxConcurrency", defaultValue = "32")
+    private int maxConcurrency;
+
+    /** Maximum aggregate bandwidth of S3 transfers (downloads and uploads together), in bytes/s; 0 for no limit. */
+    @Parameter(property = "s3repo.maxBandwidth", defaultValue = "0")
+    private long maxBandwidth;
+
+    /** Where the time, S3 requests and bytes of each phase of the goal are written (as JSON) when it is done. */
+    @Parameter(property = "s3repo.metricsFile", defaultValue = "${project.build.directory}/s3repo-metrics.json")
+    private File metricsFile;
+
+    private S3Retrier retrier;
+    private S3Metrics metrics;
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private BandwidthLimiter bandwidthLimiter;
+
+    @Override
+    public final void execute() throws MojoExecutionException, MojoFailureException {
+        startPhase("setup");
+        try {
+            doExecute();
+        } finally {
+            getMetrics().endPhase();
+            if (retrier != null) {
+                retrier.logSummary();
+            }
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.logSummary();
+            }
+            if (bandwidthLimiter != null) {
+                bandwidthLimiter.logSummary();
+            }
+            reportMetrics();
+        }
+    }
+
+    protected abstract void doExecute() throws MojoExecutionException, MojoFailureException;
+
+    protected final RepositorySystemSession getRepositorySession() {
+        return repositorySession;
+    }
+
+    /** End the current phase of this goal (see {@link S3Metrics}) and start <code>name</code>. */
+    protected final void startPhase(String name) {
+        getMetrics().startPhase(name);
+    }
+
+    /** Answer the retrier of this goal's S3 operations. */
+    protected final S3Retrier getRetrier() {
+        if (retrier == null) {
+            retrier = new S3Retrier(maxErrorRetry, retryBaseDelay, retryMaxDelay, retryBudget, getLog());
+        }
+        return retrier;
+    }
+
+    /**
+     * Answer the number of threads to run transfers on, given the goal's <code>configured</code> concurrency: with
+     * {@link #adaptiveConcurrency}, enough for the adaptive limit to reach {@link #maxConcurrency}.
+     */
+    protected final int getTransferConcurrency(int configured) {
+        return adaptiveConcurrency ? Math.max(configured, maxConcurrency) : configured;
+    }
+
+    /**
+     * Answer the S3 client shared by the goals of this build (created on first use), retrying every call, counting
+     * every request against the current phase and, if so configured, limiting the concurrency and bandwidth of
+     * transfers.
+     */
+    protected final AmazonS3 createS3Client() throws MojoExecutionException {
+        AmazonS3 s3Session = getMetrics().wrap(newS3Client());
+        if (maxBandwidth > 0) {
+            if (bandwidthLimiter == null) {
+                bandwidthLimiter = new BandwidthLimiter(maxBandwidth, getLog());
+            }
+            s3Session = bandwidthLimiter.wrap(s3Session);
+        }
+        if (adaptiveConcurrency) {
+            if (concurrencyLimiter == null) {
+                concurrencyLimiter = new AdaptiveConcurrencyLimiter(Math.min(4, maxConcurrency), maxConcurrency, getLog());
+            }
+            s3Session = concurrencyLimiter.wrap(s3Session);
+        }
+        return getRetrier().wrap(s3Session);
+    }
+
+    /**
+     * Answer the plain client that {@link #createS3Client()} wraps: the client shared by the goals of this build, as
+     * {@link S3ClientFactory} creates it for this configuration. Overridden to run a goal against an S3 stand-in (see
+     * the end-to-end benchmark in src/benchmark/java).
+     */
+    protected AmazonS3 newS3Client() throws MojoExecutionException {
+        return new S3ClientFactory()
+            .withCredentials(s3AccessKey, s3SecretKey)
+            .withMaxConnections(maxConnections)
+            .withConnectionTTL(connectionTTL)
+            .withSocketTimeout(socketTimeout)
+            .withConnectionTimeout(connectionTimeout)
+            .withTcpKeepAlive(tcpKeepAlive)
+            .withMaxErrorRetry(0) // retried by getRetrier(), which counts every retry against its budget
+            .withRegion(region)
+            .withEndpoint(endpoint)
+            .withPathStyleAccess(pathStyleAccess)
+            .getClient(repositorySession);
+    }
+
+    private S3Metrics getMetrics() {
+        if (metrics == null) {
+            metrics = new S3Metrics(mojoExecution != null ? mojoExecution.getGoal() : getClass().getSimpleName(), getLog());
+        }
+        return metrics;
+    }
+
+    private void reportMetrics() {
+        getMetrics().logSummary();
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            getMetrics().writeJson(metricsFile);
+            getLog().info("Wrote metrics to " + metricsFile.getPath());
+        } catch (IOException e) {
+            // metrics are no reason to fail the build
+            getLog().warn("Couldn't write metrics to " + metricsFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+}
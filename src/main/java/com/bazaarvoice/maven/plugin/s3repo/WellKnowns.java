@@ -8,7 +8,8 @@ public final class WellKnowns {
     public static final String YUM_REPODATA_FOLDERNAME = "repodata";
     public static final String YUM_REPOMETADATA_FILENAME = "repomd.xml";
     public static final String[] YUM_REPOMETADATA_FILE_TYPES = {"primary", "filelists", "other"};
-
-    public static final int SOCKET_TIMEOUT = 30 * 1000;
+    /** Repo-relative folder for this plugin's own bookkeeping (never part of the YUM repository proper). */
+    public static final String S3REPO_FOLDERNAME = ".s3repo";
+    public static final String S3REPO_MANIFEST_PATH = S3REPO_FOLDERNAME + "/manifest.gz";
 
 }
@@ -3,17 +3,24 @@ package com.bazaarvoice.maven.plugin.s3repo.create;
 import com.amazonaws.services.s3.AmazonS3;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoManifest;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 final class CreateOrUpdateContext {
 
     private AmazonS3 s3Session;
     private S3RepositoryPath s3RepositoryPath;
     private LocalYumRepoFacade localYumRepo;
+    private RepoManifest remoteManifest;
     private final List<File> synthesizedFiles = new ArrayList<File>();
+    /** Repo-relative paths of files declared by existing metadata (populated when they are not synthesized). */
+    private final Set<String> declaredFiles = new HashSet<String>();
+    private final List<File> copiedFiles = new ArrayList<File>();
 
     public AmazonS3 getS3Session() {
         return s3Session;
@@ -39,6 +46,15 @@ final class CreateOrUpdateContext {
         this.localYumRepo = localYumRepo;
     }
 
+    /** Objects in the S3 repository (before this update), or null if they are unknown (see useBuiltinGenerator). */
+    public RepoManifest getRemoteManifest() {
+        return remoteManifest;
+    }
+
+    public void setRemoteManifest(RepoManifest remoteManifest) {
+        this.remoteManifest = remoteManifest;
+    }
+
     public void addSynthesizedFile(File synthesizedFile) {
         synthesizedFiles.add(synthesizedFile);
     }
@@ -47,4 +63,21 @@ final class CreateOrUpdateContext {
         return synthesizedFiles;
     }
 
+    public void setDeclaredFiles(List<String> repoRelativePaths) {
+        declaredFiles.clear();
+        declaredFiles.addAll(repoRelativePaths);
+    }
+
+    public boolean isDeclaredFile(String repoRelativePath) {
+        return declaredFiles.contains(repoRelativePath);
+    }
+
+    public void addCopiedFile(File copiedFile) {
+        copiedFiles.add(copiedFile);
+    }
+
+    public List<File> getCopiedFiles() {
+        return copiedFiles;
+    }
+
 }
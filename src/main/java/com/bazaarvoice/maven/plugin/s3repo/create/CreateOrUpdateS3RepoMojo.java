@@ -1,25 +1,24 @@
 package com.bazaarvoice.maven.plugin.s3repo.create;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.AbstractS3RepoMojo;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoManifest;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoMetadata;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Uploader;
 import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.UploadJournal;
 import com.google.common.io.Files;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.maven.plugin.AbstractMojo;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Component;
@@ -30,7 +29,6 @@ import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.io.InputStreamFacade;
 import org.eclipse.aether.RepositorySystem;
-import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
@@ -39,15 +37,21 @@ import org.eclipse.aether.util.StringUtils;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Creates or updates a YUM repository in S3.
  */
 @Mojo(name = "create-update", defaultPhase = LifecyclePhase.DEPLOY)
-public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
+public class CreateOrUpdateS3RepoMojo extends AbstractS3RepoMojo {
 
     @Parameter(defaultValue = "${project}", readonly = true)
     private MavenProject project;
@@ -55,9 +59,6 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Component
     private RepositorySystem repositorySystem;
 
-    @Parameter(property = "session.repositorySession", required = true, readonly = true)
-    private RepositorySystemSession session;
-
     /** Staging directory. This is where we will generate *bucket-relative* files. */
     @Parameter(property = "s3repo.stagingDirectory", defaultValue = "${project.build.directory}/s3repo")
     private File stagingDirectory;
@@ -88,12 +89,6 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.repositoryPath", required = true)
     private String s3RepositoryPath;
 
-    @Parameter(property = "s3repo.accessKey")
-    private String s3AccessKey;
-
-    @Parameter(property = "s3repo.secretKey")
-    private String s3SecretKey;
-
     /** Execute all steps up to and excluding the upload to the S3. This can be set to true to perform a "dryRun" execution. */
     @Parameter(property = "s3repo.doNotUpload", defaultValue = "false")
     private boolean doNotUpload;
@@ -106,8 +101,53 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.createrepoOpts", defaultValue = "")
     private String createrepoOpts;
 
+    /** Maximum number of S3 upload requests (whole files or parts of large files) in flight at the same time. */
+    @Parameter(property = "s3repo.uploadConcurrency", defaultValue = "8")
+    private int uploadConcurrency;
+
+    /** Files at least this large (in bytes) are uploaded with a multipart upload. */
+    @Parameter(property = "s3repo.multipartUploadThreshold", defaultValue = "33554432")
+    private long multipartUploadThreshold;
+
+    /** Part size (in bytes) of multipart uploads: 5 MB to 5 GB, and no more than multipartUploadThreshold. */
+    @Parameter(property = "s3repo.uploadPartSize", defaultValue = "16777216")
+    private long uploadPartSize;
+
+    /**
+     * Checkpoint multipart uploads in the staging directory (see {@link UploadJournal}) so that a build with the same
+     * staging directory resumes the uploads a failed build left incomplete; when false, such uploads are aborted.
+     */
+    @Parameter(property = "s3repo.resumeUploads", defaultValue = "true")
+    private boolean resumeUploads;
+
+    /**
+     * Generate repository metadata in-process instead of running createrepo. Only the new packages are read; existing
+     * packages are carried over from the existing metadata, so they are neither synthesized locally nor checked for
+     * existence in S3, and the repository is not listed: its manifest is updated only if it is current.
+     */
+    @Parameter(property = "s3repo.useBuiltinGenerator", defaultValue = "false")
+    private boolean useBuiltinGenerator;
+
+    /**
+     * List every object in the repository instead of trusting its manifest (see {@link RepoManifest}); with
+     * useBuiltinGenerator, this is how to (re)create a missing or out of date manifest.
+     */
+    @Parameter(property = "s3repo.forceListing", defaultValue = "false")
+    private boolean forceListing;
+
+    /** Maximum number of concurrent list requests when listing all objects in a repository. */
+    @Parameter(property = "s3repo.listConcurrency", defaultValue = "8")
+    private int listConcurrency;
+
+    /**
+     * How many levels of "/"-delimited subfolders are discovered (one delimiter listing each) to partition a full
+     * listing into subfolders that are listed concurrently; 0 lists serially.
+     */
+    @Parameter(property = "s3repo.listDepth", defaultValue = "2")
+    private int listDepth;
+
     @Override
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void doExecute() throws MojoExecutionException, MojoFailureException {
         CreateOrUpdateContext context = new CreateOrUpdateContext();
 
         // parse s3 repository path and set bucketAndFolder field
@@ -116,32 +156,60 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         context.setLocalYumRepo(determineLocalYumRepo());
 
         // always clean the staging directory -- it never makes sense to start with existing staging directory
-        ExtraFileUtils.createOrCleanDirectory(stagingDirectory);
+        // (except for the journal of uploads that a failed build left incomplete)
+        cleanStagingDirectory(context);
 
+        startPhase("metadata pull");
         // require S3 bucket to exist before continuing
         ensureS3BucketExists(context);
         // download existing repository metadata
         pullExistingRepositoryMetadata(context);
         // require existing repository metadata if allowCreateRepository = false
         maybeEnsureExistingRepositoryMetadata(context);
+        startPhase("listing");
+        if (useBuiltinGenerator && !forceListing) {
+            // nothing but the manifest itself needs the repository's objects, so don't list them just to update it
+            context.setRemoteManifest(RepoManifest.loadCurrent(context.getS3Session(), getRetrier(), context.getS3RepositoryPath()));
+        } else {
+            // determine which objects the repository has (from its manifest if that is current)
+            context.setRemoteManifest(RepoManifest.fetch(context.getS3Session(), getRetrier(), context.getS3RepositoryPath(), forceListing, listConcurrency, listDepth, getLog()));
+        }
+        startPhase("synthesis");
         // synthesize/touch zero-size files to represent existing repository-managed files
         synthesizeExistingRepositoryFiles(context);
         // save some stats about the original repo
         final RepoStatistics originalRepoStatistics = RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(context);
+        startPhase("artifact resolution");
         // resolve artifacts, copy to staging directory
         resolveAndCopyArtifactItems(context);
+        startPhase("createrepo");
         // create the actual repository
         createRepo(context);
+        startPhase("verification");
         // save some stats about the updated repo
         final RepoStatistics updatedRepoStatistics = RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(context);
         // pathologically delete files that we do not wish to push to target repository
         cleanupSynthesizedFiles(context);
         // verify that the repo we created is sane
         verifyUpdatedRepo(originalRepoStatistics, updatedRepoStatistics);
+        startPhase("upload");
         // push/upload staging directory to repository if doNotUpload = false
         maybeUploadRepositoryUpdate(context);
     }
 
+    private void cleanStagingDirectory(CreateOrUpdateContext context) throws MojoExecutionException {
+        if (resumeUploads) {
+            ExtraFileUtils.createOrCleanDirectory(stagingDirectory, UploadJournal.getFile(stagingDirectory));
+            return;
+        }
+        try {
+            UploadJournal.abortPendingUploads(stagingDirectory, context.getS3Session(), getLog());
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to read upload journal in " + stagingDirectory, e);
+        }
+        ExtraFileUtils.createOrCleanDirectory(stagingDirectory);
+    }
+
     /** Create a {@link LocalYumRepoFacade} which will allow us to query and operate on a local (on-disk) yum repository. */
     private LocalYumRepoFacade determineLocalYumRepo() {
         return new LocalYumRepoFacade(stagingDirectory, createrepo, createrepoOpts, getLog());
@@ -155,14 +223,62 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         }
         final S3RepositoryPath targetRepository = context.getS3RepositoryPath();
         final String targetBucket = targetRepository.getBucketName();
-        AmazonS3 s3Session = context.getS3Session();
-        for (File toUpload : ExtraIOUtils.listAllFiles(stagingDirectory)) {
-            String bucketKey = localFileToTargetS3BucketKey(toUpload, targetRepository);
-            getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
+        UploadJournal journal = null;
+        if (resumeUploads && !doNotUpload) {
+            try {
+                journal = UploadJournal.open(stagingDirectory, getLog());
+            } catch (IOException e) {
+                throw new MojoExecutionException("failed to open upload journal in " + stagingDirectory, e);
+            }
+        }
+        S3Uploader uploader = new S3Uploader(context.getS3Session(), getTransferConcurrency(uploadConcurrency), uploadPartSize, multipartUploadThreshold,
+            journal, getLog());
+        try {
+            final Collection<File> filesToUpload = listStagedFiles();
+            for (File toUpload : filesToUpload) {
+                String bucketKey = localFileToTargetS3BucketKey(toUpload, targetRepository);
+                getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
+                if (!doNotUpload) {
+                    uploader.upload(targetBucket, bucketKey, toUpload);
+                }
+            }
+            uploader.awaitCompletion();
             if (!doNotUpload) {
-                s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload).withCannedAcl(CannedAccessControlList.BucketOwnerFullControl));
+                uploader.abortStaleUploads();
+                // record what we published so the next build needn't list the repository
+                final RepoManifest manifest = context.getRemoteManifest();
+                if (manifest != null) {
+                    final Map<String, String> uploadedETags = uploader.getUploadedETags();
+                    final long now = System.currentTimeMillis();
+                    for (File uploaded : filesToUpload) {
+                        final String bucketKey = localFileToTargetS3BucketKey(uploaded, targetRepository);
+                        manifest.put(S3Utils.toRepoRelativePath(bucketKey, targetRepository), uploaded.length(),
+                            uploadedETags.get(bucketKey), now);
+                    }
+                    manifest.save(context.getS3Session(), targetRepository);
+                } else {
+                    // the stale manifest stays stale: it records a repomd.xml that we just replaced
+                    getLog().info("Repository manifest is missing or out of date; not updating it (use -Ds3repo.forceListing=true to rebuild it).");
+                }
+            }
+        } finally {
+            uploader.shutdown();
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /** List the files in the staging directory, leaving out this plugin's own bookkeeping. */
+    private List<File> listStagedFiles() {
+        final String bookkeeping = new File(stagingDirectory, WellKnowns.S3REPO_FOLDERNAME).getAbsolutePath() + File.separator;
+        final List<File> files = new ArrayList<File>();
+        for (File file : ExtraIOUtils.listAllFiles(stagingDirectory)) {
+            if (!file.getAbsolutePath().startsWith(bookkeeping)) {
+                files.add(file);
             }
         }
+        return files;
     }
 
     /** Convert local file in staging directory to bucket key (in target s3 repository). */
@@ -192,28 +308,25 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         if (context.getLocalYumRepo().isRepoDataExists()) { // if repo exists...
             // determine primary metadata file from metadata xml and parse it to determine repository files *declared* by the metadata
             List<String> repoRelativeFilePathList = context.getLocalYumRepo().parseFileListFromRepoMetadata();
-            S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
-            ListObjectsRequest request = new ListObjectsRequest()
-                    .withBucketName(context.getS3RepositoryPath().getBucketName());
-            if (s3RepositoryPath.hasBucketRelativeFolder()) {
-                request.withPrefix(s3RepositoryPath.getBucketRelativeFolder() + "/");
+            if (useBuiltinGenerator) {
+                // the builtin generator never looks at existing packages; just remember them to detect collisions
+                context.setDeclaredFiles(repoRelativeFilePathList);
+                return;
             }
-            List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), request);
-            // we will start with a set of metadata-declared files and remove any file we find that exists in the repo;
-            // we expect the Set to be empty when finished iteration. note that s3 api returns bucket-relative
-            // paths, so we prefix each of our repoRelativeFilePaths with the repository path.
+            S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+            // collect the metadata-declared files that do not exist in the repo; we expect the Set to be empty. we
+            // report bucket-relative paths, so we prefix each of our repoRelativeFilePaths with the repository path.
             Set<String> bucketRelativePaths = new HashSet<String>();
             for (String repoRelativeFilePath : repoRelativeFilePathList) {
+                if (context.getRemoteManifest().get(repoRelativeFilePath) != null) {
+                    continue;
+                }
                 if (s3RepositoryPath.hasBucketRelativeFolder()) {
                     bucketRelativePaths.add(s3RepositoryPath.getBucketRelativeFolder() + "/" + repoRelativeFilePath);
                 } else {
                     bucketRelativePaths.add(repoRelativeFilePath);
                 }
             }
-            // for each bucket relative path in the listObjects result, remove from our set
-            for (S3ObjectSummary summary : result) {
-                bucketRelativePaths.remove(summary.getKey());
-            }
             // now, expect set to be empty
             if (!bucketRelativePaths.isEmpty()) {
                 throw new MojoExecutionException("Primary metadata file declared files that did not exist in the repository: " + bucketRelativePaths);
@@ -292,7 +405,7 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                             ? new File(stagingDirectory, artifactItem.getTargetSubfolder())
                             : stagingDirectory;
                     targetFile = new File(targetDirectory, targetFileName);
-                    if (targetFile.exists()) {
+                    if (targetFile.exists() || context.isDeclaredFile(toRepoRelativePath(artifactItem.getTargetSubfolder(), targetFileName))) {
                         if (!artifactItem.isSnapshot() || !autoIncrementSnapshotArtifacts) {
                             // fail on file collisions!
                             throw new MojoExecutionException("Dependency " + artifactItem.getResolvedArtifact().getArtifact() + " already exists in repository!");
@@ -306,17 +419,27 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                 } while (true);
                 getLog().info("Copying artifact to " + targetFile.getPath() + "...");
                 FileUtils.copyFile(artifactItem.getResolvedArtifact().getArtifact().getFile(), targetFile);
+                context.addCopiedFile(targetFile);
             } catch (IOException e) {
                 throw new MojoExecutionException("failed to copy artifact " + artifactItem + " to target", e);
             }
         }
     }
 
+    /** Answer the repository-relative path (as written in the metadata) of a file in the given target subfolder. */
+    private static String toRepoRelativePath(String targetSubfolder, String fileName) {
+        if (StringUtils.isEmpty(targetSubfolder)) {
+            return fileName;
+        }
+        final String folder = targetSubfolder.replaceAll("\\\\", "/").replaceAll("^/", "").replaceAll("/$", "");
+        return folder.isEmpty() ? fileName : folder + "/" + fileName;
+    }
+
     private List<ArtifactItem> resolveArtifactItems(List<ArtifactItem> artifactItems) throws MojoExecutionException {
         // resolved artifacts have been downloaded and are available locally
         for (ArtifactItem item : artifactItems) {
             try {
-                item.setResolvedArtifact(repositorySystem.resolveArtifact(session, toArtifactRequest(item)));
+                item.setResolvedArtifact(repositorySystem.resolveArtifact(getRepositorySession(), toArtifactRequest(item)));
             } catch (ArtifactResolutionException e) {
                 throw new MojoExecutionException("couldn't resolve: " + item, e);
             }
@@ -332,21 +455,13 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         return new DefaultArtifact(item.getGroupId(), item.getArtifactId(), item.getClassifier(), item.getType()/*extension*/, item.getVersion());
     }
 
-    private AmazonS3Client createS3Client() {
-        if (s3AccessKey != null || s3SecretKey != null) {
-            return new AmazonS3Client(new BasicAWSCredentials(s3AccessKey, s3SecretKey));
-        } else {
-            return new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
-        }
-    }
-
     private void ensureS3BucketExists(CreateOrUpdateContext context) throws MojoExecutionException {
         if (!context.getS3Session().doesBucketExist(context.getS3RepositoryPath().getBucketName())) {
             throw new MojoExecutionException("Bucket doesn't exist in S3: " + context.getS3RepositoryPath().getBucketName());
         }
     }
 
-    private void pullExistingRepositoryMetadata(CreateOrUpdateContext context) throws MojoExecutionException {
+    private void pullExistingRepositoryMetadata(final CreateOrUpdateContext context) throws MojoExecutionException {
         S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
         // build bucket-relative metadata folder path *with "/" suffix*
         String bucketRelativeMetadataFolderPath = WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
@@ -360,42 +475,74 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
         getLog().debug("Found " + result.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
                 + "' with prefix '" + bucketRelativeMetadataFolderPath + "'...");
-        for (S3ObjectSummary summary : result) {
+        // download repomd.xml first; it declares the checksums of the other metadata files, which we then compute
+        // while downloading them (so verifying them before "createrepo --update" needs no second read)
+        final String repoMetadataKey = bucketRelativeMetadataFolderPath + WellKnowns.YUM_REPOMETADATA_FILENAME;
+        Collections.sort(result, new Comparator<S3ObjectSummary>() {
+            @Override
+            public int compare(S3ObjectSummary left, S3ObjectSummary right) {
+                return Boolean.valueOf(!left.getKey().equals(repoMetadataKey))
+                    .compareTo(!right.getKey().equals(repoMetadataKey));
+            }
+        });
+        for (final S3ObjectSummary summary : result) {
             final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
             if (summary.getKey().endsWith("/")) {
                 getLog().info("Downloading: "
                     + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; it's a folder)");
                 continue;
             }
-            final S3Object object = context.getS3Session()
-                    .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
+            final RepoMetadata.Entry declared = context.getLocalYumRepo().isRepoDataExists()
+                ? context.getLocalYumRepo().findMetadataEntry(asRepoRelativePath)
+                : null;
             try {
-                File targetFile = new File(stagingDirectory, asRepoRelativePath);
-                getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile);
-                Files.createParentDirs(targetFile);
-
-                RequestConfig config = RequestConfig.custom()
-                        .setSocketTimeout(WellKnowns.SOCKET_TIMEOUT)
-                        .setConnectTimeout(WellKnowns.SOCKET_TIMEOUT)
-                        .build();
-
-                final S3ObjectInputStream objectContent = object.getObjectContent();
-                objectContent.getHttpRequest().setConfig(config);
-
-                FileUtils.copyStreamToFile(new InputStreamFacade() {
+                getRetrier().call("download", summary.getKey(), new S3Retrier.Task<Void, IOException>() {
                     @Override
-                    public InputStream getInputStream() throws IOException {
-                        return objectContent;
+                    public Void run() throws IOException {
+                        downloadMetadataFile(context, summary, asRepoRelativePath, declared);
+                        return null;
                     }
-                }, targetFile);
+                });
             } catch (IOException e) {
                 throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
             }
         }
     }
 
+    private void downloadMetadataFile(CreateOrUpdateContext context, S3ObjectSummary summary, String asRepoRelativePath,
+                                      RepoMetadata.Entry declared) throws IOException {
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        final S3Object object = context.getS3Session()
+                .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
+        try {
+            File targetFile = new File(stagingDirectory, asRepoRelativePath);
+            getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile);
+            Files.createParentDirs(targetFile);
+
+            final S3ObjectInputStream objectContent = object.getObjectContent();
+
+            final DigestInputStream digestingContent = declared == null
+                ? null
+                : new DigestInputStream(objectContent, LocalYumRepoFacade.newMessageDigest(declared.getChecksumType()));
+            FileUtils.copyStreamToFile(new InputStreamFacade() {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return digestingContent != null ? digestingContent : objectContent;
+                }
+            }, targetFile);
+            if (digestingContent != null) {
+                context.getLocalYumRepo().recordDigest(targetFile, declared.getChecksumType(),
+                    Hex.encodeHexString(digestingContent.getMessageDigest().digest()));
+            }
+        } finally {
+            ExtraIOUtils.closeQuietly(object);
+        }
+    }
+
     private void createRepo(CreateOrUpdateContext context) throws MojoExecutionException {
-        if (context.getLocalYumRepo().isRepoDataExists()) {
+        if (useBuiltinGenerator) {
+            context.getLocalYumRepo().generateRepoData(context.getCopiedFiles());
+        } else if (context.getLocalYumRepo().isRepoDataExists()) {
             context.getLocalYumRepo().updateRepo();
         } else {
             context.getLocalYumRepo().createRepo();
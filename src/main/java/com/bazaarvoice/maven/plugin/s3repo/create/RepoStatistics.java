@@ -6,7 +6,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 public class RepoStatistics {
     static RepoStatistics createRepoStatisticsFromCreateOrUpdateContext(CreateOrUpdateContext context) throws MojoExecutionException {
         if (context.getLocalYumRepo().isRepoDataExists()) {
-            return new RepoStatistics(context.getLocalYumRepo().parseFileListFromRepoMetadata().size());
+            return new RepoStatistics(context.getLocalYumRepo().countPackages());
         } else {
             return new RepoStatistics(0);
         }
@@ -1,16 +1,22 @@
 package com.bazaarvoice.maven.plugin.s3repo.rebuild;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.support.DownloadJournal;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalArtifactCache;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoManifest;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class RebuildContext {
 
@@ -18,6 +24,9 @@ final class RebuildContext {
     private S3RepositoryPath s3RepositoryPath;
     private S3RepositoryPath s3TargetRepositoryPath; // may be the same as s3RepositoryPath
     private LocalYumRepoFacade localYumRepo;
+    private LocalArtifactCache artifactCache; // null unless s3repo.useCache = true
+    private DownloadJournal downloadJournal; // null unless s3repo.resumeDownloads = true
+    private RepoManifest targetManifest;
     /**
      * Here we keep track of a Map of bucket key *prefixes* to full bucket keys that represent SNAPSHOTS of
      * the same artifact.  For example, we may discover these files in the repository:
@@ -40,8 +49,18 @@ final class RebuildContext {
     /** Repo-relative file paths that we will delete remotely. */
     private final Set<String> excludedFilesToDeleteFromSource = new HashSet<String>();
     private final Set<String> excludedFilesToDeleteFromTarget = new HashSet<String>();
-    /** Files that exist in target. */
-    private final Set<File> filesFromTargetRepo = new HashSet<File>();
+    /** Files that exist in target. (Populated concurrently by download workers.) */
+    private final Set<File> filesFromTargetRepo = Collections.synchronizedSet(new HashSet<File>());
+    /** Objects listed in the target repository, by bucket key. */
+    private final Map<String, S3ObjectSummary> targetRepoObjects = new HashMap<String, S3ObjectSummary>();
+    /**
+     * Packages of which only the header was downloaded (s3repo.headersOnly = true), by current repo-relative path.
+     * (Populated concurrently by download workers.)
+     */
+    private final Map<String, S3ObjectSummary> headerOnlyPackages = Collections.synchronizedMap(new HashMap<String, S3ObjectSummary>());
+    private final AtomicLong headerBytesDownloaded = new AtomicLong();
+    /** Objects staged from the source repository (when it is not the target), by current repo-relative path. */
+    private final Map<String, S3ObjectSummary> sourceRepoObjects = new HashMap<String, S3ObjectSummary>();
 
     public AmazonS3 getS3Session() {
         return s3Session;
@@ -79,6 +98,31 @@ final class RebuildContext {
         this.localYumRepo = localYumRepo;
     }
 
+    public LocalArtifactCache getArtifactCache() {
+        return artifactCache;
+    }
+
+    public void setArtifactCache(LocalArtifactCache artifactCache) {
+        this.artifactCache = artifactCache;
+    }
+
+    public DownloadJournal getDownloadJournal() {
+        return downloadJournal;
+    }
+
+    public void setDownloadJournal(DownloadJournal downloadJournal) {
+        this.downloadJournal = downloadJournal;
+    }
+
+    /** Objects in the target repository (as found before rebuilding). */
+    public RepoManifest getTargetManifest() {
+        return targetManifest;
+    }
+
+    public void setTargetManifest(RepoManifest targetManifest) {
+        this.targetManifest = targetManifest;
+    }
+
     public void addSnapshotDescription(SnapshotDescription snapshotDescription) {
         List<SnapshotDescription> existing = bucketKeyPrefixToSnapshots.get(snapshotDescription.getBucketKeyPrefix());
         if (existing == null) {
@@ -146,4 +190,51 @@ final class RebuildContext {
         return filesFromTargetRepo;
     }
 
+    public void addTargetRepoObject(S3ObjectSummary summary) {
+        targetRepoObjects.put(summary.getKey(), summary);
+    }
+
+    public void addHeaderOnlyPackage(String repoRelativePath, S3ObjectSummary summary, long headerBytes) {
+        headerOnlyPackages.put(repoRelativePath, summary);
+        headerBytesDownloaded.addAndGet(headerBytes);
+    }
+
+    /** Keep track of a header-only package that was renamed locally (e.g., a snapshot). */
+    public void moveHeaderOnlyPackage(String fromRepoRelativePath, String toRepoRelativePath) {
+        final S3ObjectSummary summary = headerOnlyPackages.remove(fromRepoRelativePath);
+        if (summary != null) {
+            headerOnlyPackages.put(toRepoRelativePath, summary);
+        }
+    }
+
+    public Map<String, S3ObjectSummary> getHeaderOnlyPackages() {
+        return headerOnlyPackages;
+    }
+
+    public long getHeaderBytesDownloaded() {
+        return headerBytesDownloaded.get();
+    }
+
+    public void addSourceRepoObject(String repoRelativePath, S3ObjectSummary summary) {
+        sourceRepoObjects.put(repoRelativePath, summary);
+    }
+
+    /** Keep track of a source repository object that was renamed locally (e.g., a snapshot). */
+    public void moveSourceRepoObject(String fromRepoRelativePath, String toRepoRelativePath) {
+        final S3ObjectSummary summary = sourceRepoObjects.remove(fromRepoRelativePath);
+        if (summary != null) {
+            sourceRepoObjects.put(toRepoRelativePath, summary);
+        }
+    }
+
+    /** Answer the source repository object staged at <code>repoRelativePath</code> (or null if there is none). */
+    public S3ObjectSummary getSourceRepoObject(String repoRelativePath) {
+        return sourceRepoObjects.get(repoRelativePath);
+    }
+
+    /** Answer the listed target repository object at <code>bucketKey</code> (or null if there was none). */
+    public S3ObjectSummary getTargetRepoObject(String bucketKey) {
+        return targetRepoObjects.get(bucketKey);
+    }
+
 }
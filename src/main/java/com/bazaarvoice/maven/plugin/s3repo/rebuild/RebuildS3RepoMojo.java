@@ -1,48 +1,64 @@
 package com.bazaarvoice.maven.plugin.s3repo.rebuild;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.CannedAccessControlList;
-import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.AbstractS3RepoMojo;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.support.DownloadJournal;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalArtifactCache;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.PrimaryMetadataParser;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoManifest;
+import com.bazaarvoice.maven.plugin.s3repo.support.RpmDescription;
+import com.bazaarvoice.maven.plugin.s3repo.support.RpmHeader;
+import com.bazaarvoice.maven.plugin.s3repo.support.YumPackage;
+import com.bazaarvoice.maven.plugin.s3repo.util.BoundedExecutor;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3BatchDeleter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Copier;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Uploader;
 import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.UploadJournal;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.io.InputStreamFacade;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.SocketTimeoutException;
+import java.security.DigestInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Mojo (name = "rebuild-repo", requiresProject = false)
-public final class RebuildS3RepoMojo extends AbstractMojo {
+public class RebuildS3RepoMojo extends AbstractS3RepoMojo {
+
+    /** Size of the first ranged GET for an RPM header (s3repo.headersOnly); most headers fit, larger ones need another. */
+    private static final int HEADER_FETCH_SIZE = 64 * 1024;
 
     /** Staging directory. This is where we will recreate the relevant *bucket* files (i.e., this acts as the
        root of the repository). */
@@ -68,12 +84,6 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.allowCreateRepository", defaultValue = "false")
     private boolean allowCreateRepository;
 
-    @Parameter(property = "s3repo.accessKey")
-    private String s3AccessKey;
-
-    @Parameter(property = "s3repo.secretKey")
-    private String s3SecretKey;
-
     /** Do not try to validate the current repository metadata before recreating the repository. */
     @Parameter(property = "s3repo.doNotValidate", defaultValue = "false")
     private boolean doNotValidate;
@@ -113,8 +123,109 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.createrepoOpts", defaultValue = "")
     private String createrepoOpts;
 
+    /** Maximum number of objects to download from S3 at the same time. */
+    @Parameter(property = "s3repo.downloadConcurrency", defaultValue = "8")
+    private int downloadConcurrency;
+
+    /**
+     * Maximum number of S3 upload requests (whole files or parts of large files) in flight at the same time; also
+     * used for server-side copies (snapshot renames).
+     */
+    @Parameter(property = "s3repo.uploadConcurrency", defaultValue = "8")
+    private int uploadConcurrency;
+
+    /** Files at least this large (in bytes) are uploaded with a multipart upload. */
+    @Parameter(property = "s3repo.multipartUploadThreshold", defaultValue = "33554432")
+    private long multipartUploadThreshold;
+
+    /** Part size (in bytes) of multipart uploads: 5 MB to 5 GB, and no more than multipartUploadThreshold. */
+    @Parameter(property = "s3repo.uploadPartSize", defaultValue = "16777216")
+    private long uploadPartSize;
+
+    /** Do not upload files whose size and MD5 (or multipart ETag) match the object already in the target repository. */
+    @Parameter(property = "s3repo.skipUnchangedUploads", defaultValue = "true")
+    private boolean skipUnchangedUploads;
+
+    /** Keep downloaded objects in a persistent local cache so that later rebuilds only download what changed. */
+    @Parameter(property = "s3repo.useCache", defaultValue = "false")
+    private boolean useCache;
+
+    /**
+     * Journal completed package downloads in the staging directory (see {@link DownloadJournal}) and keep the files that
+     * are still current when the staging directory is cleaned, so a rebuild that is rerun with the same
+     * s3repo.stagingDirectory only downloads what it is still missing (partial downloads are resumed). Ignored with
+     * s3repo.headersOnly.
+     */
+    @Parameter(property = "s3repo.resumeDownloads", defaultValue = "true")
+    private boolean resumeDownloads;
+
+    /**
+     * Checkpoint multipart uploads in the staging directory (see {@link UploadJournal}) so that a rebuild that is rerun
+     * with the same s3repo.stagingDirectory resumes the uploads a failed rebuild left incomplete; when false, such
+     * uploads are aborted when the staging directory is cleaned.
+     */
+    @Parameter(property = "s3repo.resumeUploads", defaultValue = "true")
+    private boolean resumeUploads;
+
+    /** Location of the local cache used when {@link #useCache} is true; it may be shared by several builds. */
+    @Parameter(property = "s3repo.cacheDirectory", defaultValue = "${user.home}/.s3repo/cache")
+    private File cacheDirectory;
+
+    /** Size (in bytes) beyond which least recently used cache entries are evicted. */
+    @Parameter(property = "s3repo.cacheMaxSize", defaultValue = "10737418240")
+    private long cacheMaxSize;
+
+    /**
+     * Rebuild the metadata from RPM headers fetched with ranged GETs instead of downloading whole packages; createrepo
+     * is not used. Package checksums are taken from the existing metadata (when the package's ETag is still the one the
+     * repository manifest recorded when that metadata was published), else from the object's ETag as an MD5 (once a
+     * HEAD shows a single-part upload without SSE-KMS/SSE-C), else by streaming the object once. Staged packages then contain only their headers, so this requires uploadMetadataOnly = true and the same
+     * source and target repository.
+     */
+    @Parameter(property = "s3repo.headersOnly", defaultValue = "false")
+    private boolean headersOnly;
+
+    /**
+     * Read the repositories' objects from their manifests, when current (see {@link RepoManifest}), instead of listing
+     * them. A manifest misses objects that were put into the bucket without new metadata (e.g., packages dropped in
+     * to be picked up by this rebuild), so by default the repositories are listed.
+     */
+    @Parameter(property = "s3repo.useManifest", defaultValue = "false")
+    private boolean useManifest;
+
+    /** Maximum number of concurrent list requests when listing all objects in a repository. */
+    @Parameter(property = "s3repo.listConcurrency", defaultValue = "8")
+    private int listConcurrency;
+
+    /**
+     * How many levels of "/"-delimited subfolders are discovered (one delimiter listing each) to partition a full
+     * listing into subfolders that are listed concurrently; 0 lists serially.
+     */
+    @Parameter(property = "s3repo.listDepth", defaultValue = "2")
+    private int listDepth;
+
+    /** Objects at least this large (in bytes) are copied server-side with a multipart copy; at most 5 GB. */
+    @Parameter(property = "s3repo.multipartCopyThreshold", defaultValue = "1073741824")
+    private long multipartCopyThreshold;
+
+    /** Part size (in bytes) used for multipart copies. */
+    @Parameter(property = "s3repo.copyPartSize", defaultValue = "268435456")
+    private long copyPartSize;
+
+    /**
+     * When relocating a repository (a target repository that differs from the source), copy packages from the source
+     * to the target server-side instead of uploading the downloaded files again. Combined with headersOnly, only
+     * package headers are downloaded at all.
+     */
+    @Parameter(property = "s3repo.serverSideCopy", defaultValue = "false")
+    private boolean serverSideCopy;
+
+    /** Maximum number of multi-object delete requests (of up to 1000 keys each) in flight at the same time. */
+    @Parameter(property = "s3repo.deleteConcurrency", defaultValue = "4")
+    private int deleteConcurrency;
+
     @Override
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void doExecute() throws MojoExecutionException, MojoFailureException {
         determineAndSetStagingDirectoryIfNeeded();
         determineAndSetTargetRepositoryPathIfNeeded();
 
@@ -127,24 +238,41 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         context.setExcludedFiles(parseExcludedFiles());
 
         logRepositories(context);
+        ensureHeadersOnlyIsPossible(context);
 
         // always clean staging directory
-        maybeCleanStagingDirectory();
+        maybeCleanStagingDirectory(context);
 
-        // download source (and target, if needed) repositories
+        // download source (and target, if needed) repositories (listings are streamed into the downloads)
+        startPhase("listing/download");
         downloadRepositories(context);
         // perform some checks to ensure repository is as expected if doNotValidate = false
+        startPhase("verification");
         maybeValidateRepository(context);
         // remove old snapshots if removeOldSnapshots = true
+        startPhase("snapshots/excludes");
         maybeRemoveOldSnapshots(context);
         // we don't download excluded files but they may already exist if doNotPreClean = true
         deleteExcludes(context);
         // rebuild -- rerun createrepo
+        startPhase("createrepo");
         rebuildRepo(context);
         // upload repository and delete old snapshots etc. if doNotUpload = false
+        startPhase("upload");
         maybeUploadRepository(context);
     }
 
+    private void ensureHeadersOnlyIsPossible(RebuildContext context) throws MojoExecutionException {
+        if (!headersOnly) {
+            return;
+        }
+        // staged packages will be truncated to their headers; they must never be uploaded (or reused by a later build)
+        if (!uploadMetadataOnly || doNotPreClean || (!context.sourceAndTargetRepositoryAreSame() && !serverSideCopy)) {
+            throw new MojoExecutionException("s3repo.headersOnly requires s3repo.uploadMetadataOnly = true,"
+                + " s3repo.doNotPreClean = false and either no separate target repository or s3repo.serverSideCopy = true");
+        }
+    }
+
     private void logRepositories(RebuildContext context) {
         getLog().info("For source repository, using " + context.getS3RepositoryPath() + ".");
         if (context.sourceAndTargetRepositoryAreSame()) {
@@ -179,12 +307,32 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         getLog().info("I will use " + stagingDirectory.getAbsolutePath() + " as your staging directory.");
     }
 
-    private void maybeCleanStagingDirectory() throws MojoExecutionException {
+    private void maybeCleanStagingDirectory(RebuildContext context) throws MojoExecutionException {
+        if (resumeDownloads && !headersOnly) {
+            try {
+                context.setDownloadJournal(DownloadJournal.open(stagingDirectory, getLog()));
+            } catch (IOException e) {
+                throw new MojoExecutionException("failed to open download journal in " + stagingDirectory, e);
+            }
+        }
         if (doNotPreClean) {
             getLog().warn("Not cleaning staging directory!!!");
             return;
         }
-        ExtraFileUtils.createOrCleanDirectory(stagingDirectory);
+        if (!resumeUploads) {
+            try {
+                UploadJournal.abortPendingUploads(stagingDirectory, context.getS3Session(), getLog());
+            } catch (IOException e) {
+                throw new MojoExecutionException("failed to read upload journal in " + stagingDirectory, e);
+            }
+        }
+        if (context.getDownloadJournal() != null) {
+            // keep what earlier builds downloaded (and still have intact); it is checked against the listings
+            context.getDownloadJournal().cleanStagingDirectory();
+        } else {
+            // keep the journal of uploads that a failed build left incomplete (if any)
+            ExtraFileUtils.createOrCleanDirectory(stagingDirectory, UploadJournal.getFile(stagingDirectory));
+        }
     }
 
     private void maybeUploadRepository(RebuildContext context) throws MojoExecutionException {
@@ -224,72 +372,243 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
             }
         }
 
-        // Upload repository files
-        for (File toUpload : ExtraIOUtils.listAllFiles(directoryToUpload)) {
-            final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
-            getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
-            if (!doNotUpload) {
-                s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload).withCannedAcl(CannedAccessControlList.BucketOwnerFullControl));
-            }
-        }
-
-        // Upload non-local files (e.g: moving repository)
-        if (uploadMetadataOnly && !context.sourceAndTargetRepositoryAreSame()) {
-            // we just uploaded metadata but there are files in the source repository
-            // that don't exist in the target, so we upload those here.
-            for (File toUpload : ExtraIOUtils.listAllFiles(stagingDirectory)) {
-                if (!context.getFilesFromTargetRepo().contains(toUpload)) {
-                    // upload if it's not already in the target repo.
-                    final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
-                    getLog().info(logPrefix + "Uploading: " + toUpload.getName()
-                        + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
-                    if (!doNotUpload) {
-                        s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload).withCannedAcl(CannedAccessControlList.BucketOwnerFullControl));
+        int unchangedFiles = 0;
+        long unchangedBytes = 0;
+        final List<File> uploadedFiles = new ArrayList<File>();
+        final Map<String, String> uploadedETags;
+        final Map<String, String> copiedETags;
+        UploadJournal journal = null;
+        if (resumeUploads && !doNotUpload) {
+            try {
+                journal = UploadJournal.open(stagingDirectory, getLog());
+            } catch (IOException e) {
+                throw new MojoExecutionException("failed to open upload journal in " + stagingDirectory, e);
+            }
+        }
+        S3Uploader uploader = new S3Uploader(s3Session, getTransferConcurrency(uploadConcurrency), uploadPartSize, multipartUploadThreshold, journal, getLog());
+        S3Copier copier = new S3Copier(s3Session, getTransferConcurrency(uploadConcurrency), copyPartSize, multipartCopyThreshold);
+        try {
+            // Upload repository files
+            for (File toUpload : listStagedFiles(directoryToUpload)) {
+                final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
+                if (isUnchangedInTarget(context, toUpload, bucketKey)) {
+                    getLog().info("Not uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (unchanged)");
+                    ++unchangedFiles;
+                    unchangedBytes += toUpload.length();
+                    continue;
+                }
+                getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
+                if (!doNotUpload) {
+                    uploader.upload(targetBucket, bucketKey, toUpload);
+                    uploadedFiles.add(toUpload);
+                }
+            }
+
+            // Upload non-local files (e.g: moving repository)
+            if (uploadMetadataOnly && !context.sourceAndTargetRepositoryAreSame()) {
+                // we just uploaded metadata but there are files in the source repository
+                // that don't exist in the target, so we upload those here.
+                for (File toUpload : listStagedFiles(stagingDirectory)) {
+                    if (!context.getFilesFromTargetRepo().contains(toUpload)) {
+                        // upload if it's not already in the target repo.
+                        final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
+                        final S3ObjectSummary source = serverSideCopy
+                            ? context.getSourceRepoObject(S3Utils.toRepoRelativePath(bucketKey, targetRepository))
+                            : null;
+                        if (source != null) {
+                            if (isCopyInTarget(context, source, bucketKey)) {
+                                getLog().info("Not copying: " + source.getKey()
+                                    + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (unchanged)");
+                                ++unchangedFiles;
+                                unchangedBytes += source.getSize();
+                                continue;
+                            }
+                            getLog().info(logPrefix + "Copying: s3://" + source.getBucketName() + "/" + source.getKey()
+                                + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
+                            if (!doNotUpload) {
+                                copier.copy(source.getBucketName(), source.getKey(), targetBucket, bucketKey, source.getSize());
+                            }
+                            continue;
+                        }
+                        if (context.getHeaderOnlyPackages().containsKey(S3Utils.toRepoRelativePath(bucketKey, targetRepository))) {
+                            // never upload a package that was truncated to its header
+                            continue;
+                        }
+                        if (isUnchangedInTarget(context, toUpload, bucketKey)) {
+                            getLog().info("Not uploading: " + toUpload.getName()
+                                + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (unchanged)");
+                            ++unchangedFiles;
+                            unchangedBytes += toUpload.length();
+                            continue;
+                        }
+                        getLog().info(logPrefix + "Uploading: " + toUpload.getName()
+                            + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
+                        if (!doNotUpload) {
+                            uploader.upload(targetBucket, bucketKey, toUpload);
+                            uploadedFiles.add(toUpload);
+                        }
                     }
                 }
             }
-        }
 
-        // delete any excluded files remotely from the TARGET only.
-        for (String repoRelativePath : context.getExcludedFilesToDeleteFromTarget()) {
-            final String bucketKey = toBucketKey(targetRepository, repoRelativePath);
-            getLog().info(logPrefix + "Deleting: "
-                + "s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (excluded file)");
+            // every upload (and copy) must have succeeded before we delete or rename anything remotely
+            uploader.awaitCompletion();
             if (!doNotUpload) {
-                context.getS3Session().deleteObject(targetBucket, bucketKey);
+                uploader.abortStaleUploads();
             }
+            uploadedETags = uploader.getUploadedETags();
+            copier.awaitCompletion();
+            copiedETags = copier.getCopiedETags();
+        } finally {
+            uploader.shutdown();
+            copier.shutdown();
+            if (journal != null) {
+                journal.close();
+            }
+        }
+        if (skipUnchangedUploads) {
+            getLog().info("Skipped " + unchangedFiles + " unchanged file(s) already in the target repository, avoiding "
+                + unchangedBytes + " bytes of upload and at least " + unchangedFiles + " request(s).");
         }
 
-        // and finally, delete any remote bucket keys we wish to remove (e.g., old snaphots)...from the TARGET only.
-        for (SnapshotDescription toDelete : context.getSnapshotsToDeleteRemotely()) {
-            getLog().info(logPrefix + "Deleting: "
-                + "s3://" + targetRepository.getBucketName() + "/" + toDelete.getBucketKey() + " (excluded file)");
-            getLog().info(logPrefix + "Deleting: " + toDelete + " (old snapshot)");
-            if (!doNotUpload) {
-                context.getS3Session().deleteObject(targetBucket, toDelete.getBucketKey());
+        // keep track of the target repository's objects as we change them, to publish its manifest at the end
+        final RepoManifest manifest = context.getTargetManifest();
+        final long now = System.currentTimeMillis();
+        for (File uploaded : uploadedFiles) {
+            final String bucketKey = localFileToTargetS3BucketKey(uploaded, context);
+            manifest.put(S3Utils.toRepoRelativePath(bucketKey, targetRepository), uploaded.length(), uploadedETags.get(bucketKey), now);
+        }
+        for (Map.Entry<String, String> copied : copiedETags.entrySet()) {
+            manifest.put(S3Utils.toRepoRelativePath(copied.getKey(), targetRepository),
+                context.getSourceRepoObject(S3Utils.toRepoRelativePath(copied.getKey(), targetRepository)).getSize(), copied.getValue(), now);
+        }
+
+        // deletes are batched (up to 1000 keys per request) and sent while we go on; all of them are done (or have
+        // failed) before the manifest is saved below.
+        startPhase("delete/rename");
+        final S3BatchDeleter deleter = new S3BatchDeleter(s3Session, targetBucket, deleteConcurrency, getLog());
+        MojoExecutionException deleteFailure = null;
+        try {
+            // delete any excluded files remotely from the TARGET only.
+            for (String repoRelativePath : context.getExcludedFilesToDeleteFromTarget()) {
+                final String bucketKey = toBucketKey(targetRepository, repoRelativePath);
+                getLog().info(logPrefix + "Deleting: "
+                    + "s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (excluded file)");
+                if (!doNotUpload) {
+                    deleter.delete(bucketKey);
+                }
+            }
+
+            // and delete any remote bucket keys we wish to remove (e.g., old snaphots)...from the TARGET only.
+            for (SnapshotDescription toDelete : context.getSnapshotsToDeleteRemotely()) {
+                getLog().info(logPrefix + "Deleting: "
+                    + "s3://" + targetRepository.getBucketName() + "/" + toDelete.getBucketKey() + " (excluded file)");
+                getLog().info(logPrefix + "Deleting: " + toDelete + " (old snapshot)");
+                if (!doNotUpload) {
+                    deleter.delete(toDelete.getBucketKey());
+                }
+            }
+
+            // rename any snapshots...in TARGET only.
+            renameSnapshots(context, manifest, deleter, now, logPrefix);
+
+            // Delete old YUM metadata
+            for (S3ObjectSummary repoDataSummary : s3RepoDataToDeleteList) {
+                getLog().info(logPrefix + "Deleting metadata: " + repoDataSummary.getKey());
+                if (!doNotUpload) {
+                    deleter.delete(repoDataSummary.getKey());
+                }
+            }
+
+            try {
+                deleter.awaitCompletion();
+            } catch (MojoExecutionException e) {
+                // still publish a manifest without the objects that *were* deleted
+                deleteFailure = e;
             }
+        } finally {
+            deleter.shutdown();
+        }
+        for (String deletedKey : deleter.getDeletedKeys()) {
+            manifest.remove(S3Utils.toRepoRelativePath(deletedKey, targetRepository));
         }
 
-        // rename any snapshots...in TARGET only.
+        if (!doNotUpload) {
+            manifest.save(s3Session, targetRepository);
+        }
+        if (deleteFailure != null) {
+            throw deleteFailure;
+        }
+    }
+
+    /**
+     * Copy every snapshot to be renamed to its new key (concurrently and server-side) and, once all copies have
+     * succeeded, queue the old keys for deletion.
+     */
+    private void renameSnapshots(RebuildContext context, RepoManifest manifest, S3BatchDeleter deleter, long now, String logPrefix)
+            throws MojoExecutionException {
+        final S3RepositoryPath targetRepository = context.getS3TargetRepositoryPath();
+        final String targetBucket = targetRepository.getBucketName();
+        final Map<String, String> copiedETags;
+        S3Copier copier = new S3Copier(context.getS3Session(), getTransferConcurrency(uploadConcurrency), copyPartSize, multipartCopyThreshold);
+        try {
+            for (RemoteSnapshotRename toRename : context.getSnapshotsToRenameRemotely()) {
+                final String sourceBucketKey = toRename.getSource().getBucketKey();
+                final String targetBucketKey = toRename.getNewBucketKey();
+                getLog().info(logPrefix + "Renaming: "
+                    + "s3://" + targetRepository.getBucketName() + "/" + sourceBucketKey
+                    + " => s3://" + targetRepository.getBucketName() + "/" + targetBucketKey);
+                if (!doNotUpload) {
+                    final RepoManifest.Entry source = manifest.get(S3Utils.toRepoRelativePath(sourceBucketKey, targetRepository));
+                    copier.copy(targetBucket, sourceBucketKey, targetBucket, targetBucketKey, source == null ? -1 : source.getSize());
+                }
+            }
+            // no source may be deleted unless every copy succeeded
+            copier.awaitCompletion();
+            copiedETags = copier.getCopiedETags();
+        } finally {
+            copier.shutdown();
+        }
+        if (doNotUpload) {
+            return;
+        }
         for (RemoteSnapshotRename toRename : context.getSnapshotsToRenameRemotely()) {
             final String sourceBucketKey = toRename.getSource().getBucketKey();
             final String targetBucketKey = toRename.getNewBucketKey();
-            getLog().info(logPrefix + "Renaming: "
-                + "s3://" + targetRepository.getBucketName() + "/" + sourceBucketKey
-                + " => s3://" + targetRepository.getBucketName() + "/" + targetBucketKey);
-            if (!doNotUpload) {
-                s3Session.copyObject(new CopyObjectRequest(targetBucket, sourceBucketKey, targetBucket, targetBucketKey)
-                        .withCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl));
-                s3Session.deleteObject(targetBucket, sourceBucketKey);
+            deleter.delete(sourceBucketKey);
+            final RepoManifest.Entry source = manifest.get(S3Utils.toRepoRelativePath(sourceBucketKey, targetRepository));
+            if (source != null) {
+                manifest.put(S3Utils.toRepoRelativePath(targetBucketKey, targetRepository), source.getSize(),
+                    copiedETags.get(targetBucketKey), now);
             }
         }
+    }
 
-        // Delete old YUM metadata
-        for (S3ObjectSummary repoDataSummary : s3RepoDataToDeleteList) {
-            getLog().info(logPrefix + "Deleting metadata: " + repoDataSummary.getKey());
-            if (!doNotUpload) {
-                s3Session.deleteObject(repoDataSummary.getBucketName(), repoDataSummary.getKey());
-            }
+    /** Answer true if the target repository (as listed during download) already has a copy of <code>source</code> at <code>bucketKey</code>. */
+    private boolean isCopyInTarget(RebuildContext context, S3ObjectSummary source, String bucketKey) {
+        if (!skipUnchangedUploads) {
+            return false;
+        }
+        final S3ObjectSummary existing = context.getTargetRepoObject(bucketKey);
+        return existing != null
+            && existing.getSize() == source.getSize()
+            && source.getETag() != null
+            && StringUtils.strip(source.getETag(), "\"").equals(StringUtils.strip(existing.getETag(), "\""));
+    }
+
+    /** Answer true if the target repository (as listed during download) already has <code>file</code> at <code>bucketKey</code>. */
+    private boolean isUnchangedInTarget(RebuildContext context, File file, String bucketKey) throws MojoExecutionException {
+        if (!skipUnchangedUploads) {
+            return false;
+        }
+        final S3ObjectSummary existing = context.getTargetRepoObject(bucketKey);
+        if (existing == null || existing.getSize() != file.length()) {
+            return false;
+        }
+        try {
+            return S3Utils.matchesETag(file, existing.getETag(), uploadPartSize);
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to compute digest of " + file.getPath(), e);
         }
     }
 
@@ -323,7 +642,161 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
 
     private void rebuildRepo(RebuildContext context) throws MojoExecutionException {
         getLog().info("Rebuilding repo...");
-        context.getLocalYumRepo().createRepo();
+        if (headersOnly) {
+            rebuildRepoFromHeaders(context);
+        } else {
+            context.getLocalYumRepo().createRepo();
+        }
+    }
+
+    /** Generate metadata from the staged RPM headers, determining each package's checksum without downloading it if possible. */
+    private void rebuildRepoFromHeaders(final RebuildContext context) throws MojoExecutionException {
+        final LocalYumRepoFacade localYumRepo = context.getLocalYumRepo();
+        // checksums declared by the existing metadata, by (original) location
+        final Map<String, YumPackage> declaredPackages = new HashMap<String, YumPackage>();
+        if (localYumRepo.isRepoDataExists()) {
+            localYumRepo.visitPackages(new PrimaryMetadataParser.Visitor() {
+                @Override
+                public void visit(YumPackage yumPackage) {
+                    declaredPackages.put(yumPackage.getLocation(), yumPackage);
+                }
+            });
+        }
+        // the packages' ETags when that metadata was published (null if unknown), to tell whether they changed since
+        final RepoManifest published = declaredPackages.isEmpty()
+            ? null
+            : RepoManifest.loadCurrent(context.getS3Session(), getRetrier(), context.getS3TargetRepositoryPath());
+        final List<String> repoRelativePaths = new ArrayList<String>(context.getHeaderOnlyPackages().keySet());
+        Collections.sort(repoRelativePaths);
+        final RpmDescription[] descriptions = new RpmDescription[repoRelativePaths.size()];
+        final AtomicInteger fullDownloads = new AtomicInteger();
+        final AtomicLong fullDownloadBytes = new AtomicLong();
+        BoundedExecutor workers = new BoundedExecutor("checksum", getTransferConcurrency(downloadConcurrency));
+        try {
+            for (int i = 0; i < repoRelativePaths.size(); ++i) {
+                final int index = i;
+                final String repoRelativePath = repoRelativePaths.get(i);
+                final File file = new File(stagingDirectory, repoRelativePath);
+                if (!file.isFile()) {
+                    continue; // removed locally (e.g., an old snapshot)
+                }
+                final S3ObjectSummary summary = context.getHeaderOnlyPackages().get(repoRelativePath);
+                workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws MojoExecutionException {
+                        final RpmHeader header = readHeader(file);
+                        // only the target repository's metadata is known; it describes only the target's own objects
+                        final String targetRelativePath = context.getTargetRepoObject(summary.getKey()) == summary
+                            ? S3Utils.toRepoRelativePath(summary, context.getS3TargetRepositoryPath())
+                            : null;
+                        final YumPackage declared = targetRelativePath != null ? declaredPackages.get(targetRelativePath) : null;
+                        final String eTag = StringUtils.strip(summary.getETag(), "\"");
+                        final String checksumType;
+                        final String checksum;
+                        if (declared != null && !StringUtils.isEmpty(declared.getChecksum())
+                                && declared.getPackageSize() == summary.getSize()
+                                && isPublishedETag(published, targetRelativePath, eTag)) {
+                            checksumType = declared.getChecksumType();
+                            checksum = declared.getChecksum();
+                        } else if (eTag != null && eTag.matches("[0-9a-fA-F]{32}") && isETagMd5(context, summary, eTag)) {
+                            // a single-part upload without SSE-KMS/SSE-C: the ETag is the MD5 of the object
+                            checksumType = "md5";
+                            checksum = eTag.toLowerCase();
+                        } else {
+                            getLog().info("Computing checksum of s3://" + summary.getBucketName() + "/" + summary.getKey()
+                                + " (not declared by metadata of the same object and ETag is not an MD5)...");
+                            checksumType = "sha256";
+                            checksum = digestRemoteObject(context, summary, checksumType);
+                            fullDownloads.incrementAndGet();
+                            fullDownloadBytes.addAndGet(summary.getSize());
+                        }
+                        descriptions[index] = new RpmDescription(header, checksumType, checksum, summary.getSize(),
+                            summary.getLastModified().getTime() / 1000, repoRelativePath.replaceAll("\\\\", "/"));
+                        return null;
+                    }
+                });
+            }
+            workers.awaitCompletion();
+        } finally {
+            workers.shutdown();
+        }
+        final List<RpmDescription> packages = new ArrayList<RpmDescription>();
+        long packageBytes = 0;
+        for (RpmDescription description : descriptions) {
+            if (description != null) {
+                packages.add(description);
+                packageBytes += description.getPackageSize();
+            }
+        }
+        getLog().info("Downloaded " + context.getHeaderBytesDownloaded() + " bytes of RPM headers (plus "
+            + fullDownloadBytes.get() + " bytes streamed to compute " + fullDownloads.get() + " checksum(s)) for "
+            + packages.size() + " package(s) totalling " + packageBytes + " bytes.");
+        localYumRepo.createRepoFromDescriptions(packages);
+    }
+
+    /** Answer true if the manifest published with the existing metadata recorded <code>eTag</code> for the package. */
+    private static boolean isPublishedETag(RepoManifest published, String repoRelativePath, String eTag) {
+        final RepoManifest.Entry entry = published != null ? published.get(repoRelativePath) : null;
+        return entry != null && eTag != null && eTag.equals(entry.getETag());
+    }
+
+    /**
+     * Answer true if <code>eTag</code>, which looks like that of a single-part upload, is the MD5 of the object: a HEAD
+     * must show the same ETag and neither SSE-KMS nor SSE-C encryption, whose ETags are not MD5s of the content.
+     */
+    private static boolean isETagMd5(RebuildContext context, S3ObjectSummary summary, String eTag) throws MojoExecutionException {
+        final ObjectMetadata metadata;
+        try {
+            metadata = context.getS3Session().getObjectMetadata(summary.getBucketName(), summary.getKey());
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to read metadata of object in s3: " + summary.getKey(), e);
+        }
+        return eTag.equals(StringUtils.strip(metadata.getETag(), "\""))
+            && metadata.getSSECustomerAlgorithm() == null
+            && metadata.getSSEAwsKmsKeyId() == null
+            && !"aws:kms".equals(metadata.getSSEAlgorithm());
+    }
+
+    private static RpmHeader readHeader(File file) throws MojoExecutionException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return RpmHeader.read(in);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read RPM header from " + file.getPath(), e);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stream an object from S3 (without storing it) and answer its hex digest; like a download, the whole transfer is
+     * retried if the connection breaks while the content is being read.
+     */
+    private String digestRemoteObject(final RebuildContext context, final S3ObjectSummary summary, final String checksumType)
+            throws MojoExecutionException {
+        try {
+            return getRetrier().call("download", summary.getKey(), new S3Retrier.Task<String, IOException>() {
+                @Override
+                public String run() throws IOException {
+                    final S3Object object = context.getS3Session().getObject(
+                        new GetObjectRequest(summary.getBucketName(), summary.getKey()));
+                    final DigestInputStream in = new DigestInputStream(object.getObjectContent(),
+                        LocalYumRepoFacade.newMessageDigest(checksumType));
+                    try {
+                        final byte[] buffer = new byte[64 * 1024];
+                        while (in.read(buffer) >= 0) {
+                            // keep reading
+                        }
+                        return Hex.encodeHexString(in.getMessageDigest().digest());
+                    } finally {
+                        ExtraIOUtils.closeQuietly(in);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
+        }
     }
 
     private void deleteExcludes(RebuildContext context) throws MojoExecutionException {
@@ -389,9 +862,16 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         getLog().info("Renaming " + ExtraIOUtils.relativize(stagingDirectory, latestSnapshotFile)
                 + " => " + renameTo.getName() /*note can't relativize non-existent file*/);
         if (latestSnapshotFile.renameTo(renameTo)) {
-            // rename was successful -- also ensure that we queue up the snapshot to rename it remotely
-            context.addSnapshotToRename(
-                RemoteSnapshotRename.withNewBucketKey(snapshotDescription, localFileToTargetS3BucketKey(renameTo, context)));
+            final String fromRepoRelativePath = S3Utils.toRepoRelativePath(snapshotDescription.getBucketKey(), snapshotDescription.getS3RepositoryPath());
+            final String toRepoRelativePath = ExtraIOUtils.relativize(stagingDirectory, renameTo).replaceAll("\\\\", "/").replaceAll("^/", "");
+            context.moveHeaderOnlyPackage(fromRepoRelativePath, toRepoRelativePath);
+            context.moveSourceRepoObject(fromRepoRelativePath, toRepoRelativePath);
+            // rename was successful -- also ensure that we queue up the snapshot to rename it remotely (if it is in the
+            // target repository; a source repository object is uploaded or copied under its new name instead)
+            if (snapshotDescription.existsInRepository(context.getS3TargetRepositoryPath())) {
+                context.addSnapshotToRename(
+                    RemoteSnapshotRename.withNewBucketKey(snapshotDescription, localFileToTargetS3BucketKey(renameTo, context)));
+            }
         } else {
             getLog().warn("Failed to rename " + latestSnapshotFile.getPath() + " to " + renameTo.getPath());
         }
@@ -410,22 +890,46 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     /** Ensure that at least all files listed in the <em>target</em> repository's metadata are present among
      * the repository files that we downloaded.
      */
-    private void maybeValidateRepository(RebuildContext context) throws MojoExecutionException {
+    private void maybeValidateRepository(final RebuildContext context) throws MojoExecutionException {
         if (doNotValidate) {
             return;
         }
         getLog().info("Validating downloaded repository...");
-        LocalYumRepoFacade localYumRepo = context.getLocalYumRepo();
+        final LocalYumRepoFacade localYumRepo = context.getLocalYumRepo();
         if (!localYumRepo.isRepoDataExists()) {
             throw new MojoExecutionException("Repository does not exist!");
         }
-        // list of files (repo-relative paths)
-        List<String> fileList = localYumRepo.parseFileListFromRepoMetadata();
-        for (String repoRelativePath : fileList) {
-            if (!context.getExcludedFiles().contains(repoRelativePath)
-                && !localYumRepo.hasFile(repoRelativePath)) {
-                // repository metadata declared a (non-excluded) file that did not exist.
-                throw new MojoExecutionException("Repository metadata declared file " + repoRelativePath + " but the file did not exist.");
+        // check each declared file (repo-relative path) as the metadata is read
+        localYumRepo.visitPackages(new PrimaryMetadataParser.Visitor() {
+            @Override
+            public void visit(YumPackage yumPackage) throws MojoExecutionException {
+                final String repoRelativePath = yumPackage.getLocation();
+                if (!context.getExcludedFiles().contains(repoRelativePath)
+                    && !localYumRepo.hasFile(repoRelativePath)) {
+                    // repository metadata declared a (non-excluded) file that did not exist.
+                    throw new MojoExecutionException("Repository metadata declared file " + repoRelativePath + " but the file did not exist.");
+                }
+            }
+        });
+    }
+
+    /** List the files under <code>directory</code>, leaving out this plugin's own bookkeeping in the staging directory. */
+    private List<File> listStagedFiles(File directory) {
+        final String bookkeeping = new File(stagingDirectory, WellKnowns.S3REPO_FOLDERNAME).getAbsolutePath() + File.separator;
+        final List<File> files = new ArrayList<File>();
+        for (File file : ExtraIOUtils.listAllFiles(directory)) {
+            if (!file.getAbsolutePath().startsWith(bookkeeping)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /** Delete partial downloads that were not resumed (their objects changed or are no longer wanted). */
+    private void deletePartialDownloads() {
+        for (File file : listStagedFiles(stagingDirectory)) {
+            if (S3Utils.isPartialDownload(file) && !file.delete()) {
+                getLog().warn("Couldn't delete " + file.getPath());
             }
         }
     }
@@ -435,118 +939,234 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         return new LocalYumRepoFacade(stagingDirectory, createrepo, createrepoOpts, getLog());
     }
 
-    private AmazonS3Client createS3Client() {
-        if (s3AccessKey != null || s3SecretKey != null) {
-            return new AmazonS3Client(new BasicAWSCredentials(s3AccessKey, s3SecretKey));
-        } else {
-            return new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
-        }
-    }
-
     /** Download the entire repository into the staging area. The paths for the files downloaded into the staging area
      * are <em>repo-relative</em> paths. (Also adds SNAPSHOT metadata to the provided <code>context</code>.) */
     private void downloadRepositories(RebuildContext context) throws MojoExecutionException {
         getLog().debug("Excluded files = " + context.getExcludedFiles());
+        if (useCache) {
+            getLog().info("Using artifact cache " + cacheDirectory.getAbsolutePath() + "...");
+            context.setArtifactCache(new LocalArtifactCache(cacheDirectory, cacheMaxSize, getLog()));
+        }
         // NOTE: we download target repository first just in case both source and target share some files, we
         // want the target repository's files to override. (Download logic does not replace any local files.)
         // ALSO: we only download metadata files from the target repository (or target and source if they're
         // the same.)
-        getLog().info("Downloading TARGET repository...");
-        internalDownload(context, context.getS3TargetRepositoryPath(), /*isTargetRepo*/true); // target repo
-        if (!context.sourceAndTargetRepositoryAreSame()) {
-            getLog().info("Downloading SOURCE repository...");
-            internalDownload(context, context.getS3RepositoryPath(),/*isTargetRepo=*/false); // source repo
+        try {
+            getLog().info("Downloading TARGET repository...");
+            internalDownload(context, context.getS3TargetRepositoryPath(), /*isTargetRepo*/true); // target repo
+            if (!context.sourceAndTargetRepositoryAreSame()) {
+                getLog().info("Downloading SOURCE repository...");
+                internalDownload(context, context.getS3RepositoryPath(),/*isTargetRepo=*/false); // source repo
+            }
+            if (context.getDownloadJournal() != null) {
+                // files kept from an earlier build whose objects are gone must not become part of the repository
+                context.getDownloadJournal().deleteUnconfirmedFiles();
+            }
+            deletePartialDownloads();
+        } finally {
+            if (context.getDownloadJournal() != null) {
+                context.getDownloadJournal().close();
+            }
+        }
+        if (context.getArtifactCache() != null) {
+            context.getArtifactCache().evict();
         }
     }
 
-    private void internalDownload(RebuildContext context, S3RepositoryPath s3RepositoryPath, boolean isTargetRepo)
+    private void internalDownload(final RebuildContext context, final S3RepositoryPath s3RepositoryPath, final boolean isTargetRepo)
             throws MojoExecutionException {
-        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-                .withBucketName(s3RepositoryPath.getBucketName());
-        String prefix = ""; // capture prefix for debug logging
-        if (s3RepositoryPath.hasBucketRelativeFolder()) {
-            prefix = s3RepositoryPath.getBucketRelativeFolder() + "/";
-            listObjectsRequest.withPrefix(prefix);
-        }
-        List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
-        getLog().debug("Found " + result.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
-                + "' with prefix '" + s3RepositoryPath.getBucketRelativeFolder() + "/" + "'...");
-        for (S3ObjectSummary summary : result) {
-            final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
-            if (summary.getKey().endsWith("/")) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; it's a folder)");
-                continue;
-            }
-            final boolean isMetadataFile = isMetadataFile(summary, s3RepositoryPath);
-            if (doNotValidate && isMetadataFile) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file and not validating, so will not download)");
-                continue;
-            }
-            if (!isTargetRepo && isMetadataFile) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file in source repo; will not download)");
-                continue;
-            }
-            if (context.getExcludedFiles().contains(asRepoRelativePath)) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (explicitly excluded; will be removed from S3)");
+        // decisions (exclusions, snapshot bookkeeping, etc.) are made here on the calling thread, in listing order, as
+        // objects are listed; only the actual transfers are handed to the bounded pool of download workers.
+        final BoundedExecutor downloads = new BoundedExecutor("download", getTransferConcurrency(downloadConcurrency));
+        try {
+            final RepoManifest manifest = RepoManifest.fetch(context.getS3Session(), getRetrier(), s3RepositoryPath, !useManifest,
+                listConcurrency, listDepth, getLog(), new RepoManifest.Visitor() {
+                    @Override
+                    public void visit(S3ObjectSummary summary) throws MojoExecutionException {
+                        maybeDownload(context, s3RepositoryPath, isTargetRepo, summary, downloads);
+                    }
+                });
+            if (isTargetRepo) {
+                context.setTargetManifest(manifest);
+            }
+            getLog().debug("Found " + manifest.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
+                    + "' with prefix '" + s3RepositoryPath.getBucketRelativeFolder() + "/" + "'...");
+            downloads.awaitCompletion();
+        } finally {
+            downloads.shutdown();
+        }
+    }
+
+    private void maybeDownload(final RebuildContext context, final S3RepositoryPath s3RepositoryPath,
+                               final boolean isTargetRepo, final S3ObjectSummary summary, BoundedExecutor downloads)
+            throws MojoExecutionException {
+        final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
+        if (summary.getKey().endsWith("/")) {
+            getLog().info("Downloading: "
+                + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; it's a folder)");
+            return;
+        }
+        if (isTargetRepo) {
+            // remember what the target already has so unchanged files need not be uploaded again
+            context.addTargetRepoObject(summary);
+        }
+        final boolean isMetadataFile = isMetadataFile(summary, s3RepositoryPath);
+        if (doNotValidate && isMetadataFile) {
+            getLog().info("Downloading: "
+                + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file and not validating, so will not download)");
+            return;
+        }
+        if (!isTargetRepo && isMetadataFile) {
+            getLog().info("Downloading: "
+                + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file in source repo; will not download)");
+            return;
+        }
+        if (context.getExcludedFiles().contains(asRepoRelativePath)) {
+            getLog().info("Downloading: "
+                + s3RepositoryPath + "/" + asRepoRelativePath + " => (explicitly excluded; will be removed from S3)");
+            if (isTargetRepo) {
+                // enqueue file for deletion only if it is in the target repo. (we never want to do remote mutation
+                // operations on the source repo if it is different than the target repo)
+                context.addExcludedFileToDelete(asRepoRelativePath, s3RepositoryPath);
+            }
+            return;
+        }
+        // for every item in the repository, add it to our snapshot metadata if it's a snapshot artifact
+        maybeAddSnapshotMetadata(summary, context, s3RepositoryPath);
+        if (!isTargetRepo && !isMetadataFile) {
+            // this file would be new in the target; remember where it came from (s3repo.serverSideCopy)
+            context.addSourceRepoObject(asRepoRelativePath, summary);
+        }
+        final File stagedFile = new File(stagingDirectory, asRepoRelativePath);
+        final DownloadJournal journal = context.getDownloadJournal();
+        if (journal != null && journal.contains(asRepoRelativePath) && !journal.isConfirmed(asRepoRelativePath)) {
+            if (journal.isCurrent(asRepoRelativePath, summary)) {
+                getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; downloaded by an earlier build)");
                 if (isTargetRepo) {
-                    // enqueue file for deletion only if it is in the target repo. (we never want to do remote mutation
-                    // operations on the source repo if it is different than the target repo)
-                    context.addExcludedFileToDelete(asRepoRelativePath, s3RepositoryPath);
+                    context.addFileFromTargetRepo(stagedFile);
                 }
-                continue;
-            }
-            // for every item in the repository, add it to our snapshot metadata if it's a snapshot artifact
-            maybeAddSnapshotMetadata(summary, context, s3RepositoryPath);
-            if (new File(stagingDirectory, asRepoRelativePath).isFile()) {
-                // file exists (likely due to doNotPreClean = true); do not download
-                getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; already downloaded/exists)");
-            } else {
-                // file doesn't yet exist
+                return;
+            }
+            // the object (or the staged file) changed since then
+            if (!stagedFile.delete() && stagedFile.exists()) {
+                throw new MojoExecutionException("failed to delete outdated file " + stagedFile);
+            }
+        }
+        if (stagedFile.isFile()) {
+            // file exists (likely due to doNotPreClean = true); do not download
+            getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; already downloaded/exists)");
+            return;
+        }
+        if (headersOnly && !isMetadataFile && !summary.getKey().endsWith(".rpm")) {
+            getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; not a package)");
+            return;
+        }
+        // file doesn't yet exist
+        downloads.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws MojoExecutionException {
                 try {
-                    downloadFile(context, s3RepositoryPath, asRepoRelativePath, isTargetRepo, summary);
-                } catch (SocketTimeoutException e) {
-                    // Retry due to socket timeout
-                    getLog().warn("Retrying Download due to socket timeout: " + s3RepositoryPath + "/" + asRepoRelativePath);
-                    try {
-                        downloadFile(context, s3RepositoryPath, asRepoRelativePath, isTargetRepo, summary);
-                    } catch (IOException ex) {
-                        throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), ex);
+                    // retry the whole transfer: a connection can also break while the content is being read
+                    getRetrier().call("download", summary.getKey(), new S3Retrier.Task<Void, IOException>() {
+                        @Override
+                        public Void run() throws IOException {
+                            downloadFile(context, s3RepositoryPath, asRepoRelativePath, isTargetRepo, summary);
+                            return null;
+                        }
+                    });
+                    if (journal != null && !isMetadataFile) {
+                        journal.record(asRepoRelativePath, summary);
                     }
                 } catch (IOException e) {
                     throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
                 }
+                return null;
             }
-        }
+        });
     }
 
     private void downloadFile(RebuildContext context, S3RepositoryPath s3RepositoryPath, String asRepoRelativePath, boolean isTargetRepo, S3ObjectSummary summary) throws IOException {
-        final S3Object object = context.getS3Session()
-                .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
+        if (headersOnly && !isMetadataFile(summary, s3RepositoryPath)) {
+            downloadHeader(context, s3RepositoryPath, asRepoRelativePath, isTargetRepo, summary);
+            return;
+        }
+        final LocalArtifactCache cache = context.getArtifactCache();
+        File targetFile = new File(stagingDirectory, asRepoRelativePath);
+        if (cache != null && fetchFromCache(cache, summary, targetFile)) {
+            getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile + " (from cache)");
+            if (isTargetRepo) {
+                context.addFileFromTargetRepo(targetFile);
+            }
+            return;
+        }
+        downloadFromS3(context, s3RepositoryPath, asRepoRelativePath, isTargetRepo, summary);
+        if (cache != null) {
+            // the cache only saves downloads; failing to fill it is no reason to fail (or repeat) this one
+            try {
+                cache.store(summary.getBucketName(), summary.getKey(), summary.getETag(), targetFile);
+            } catch (IOException e) {
+                getLog().warn("Couldn't add s3://" + summary.getBucketName() + "/" + summary.getKey()
+                    + " to the artifact cache: " + e.getMessage());
+            }
+        }
+    }
 
+    /** Copy the cached object to <code>targetFile</code>; answer false (to download it instead) if that fails. */
+    private boolean fetchFromCache(LocalArtifactCache cache, S3ObjectSummary summary, File targetFile) {
+        try {
+            return cache.fetch(summary.getBucketName(), summary.getKey(), summary.getETag(), summary.getSize(), targetFile);
+        } catch (IOException e) {
+            getLog().warn("Couldn't read s3://" + summary.getBucketName() + "/" + summary.getKey()
+                + " from the artifact cache (downloading it instead): " + e.getMessage());
+            targetFile.delete(); // a partial copy is no partial download
+            return false;
+        }
+    }
+
+    private void downloadFromS3(RebuildContext context, S3RepositoryPath s3RepositoryPath, String asRepoRelativePath, boolean isTargetRepo, S3ObjectSummary summary) throws IOException {
         File targetFile = new File(stagingDirectory, asRepoRelativePath);
         Files.createParentDirs(targetFile);
 
         getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile);
 
-        RequestConfig config = RequestConfig.custom()
-                .setSocketTimeout(WellKnowns.SOCKET_TIMEOUT)
-                .setConnectTimeout(WellKnowns.SOCKET_TIMEOUT)
-                .build();
+        // resumes a partial download left by an earlier attempt (or build)
+        S3Utils.download(context.getS3Session(), s3RepositoryPath.getBucketName(), summary.getKey(), summary.getETag(),
+            summary.getSize(), targetFile);
 
-        final S3ObjectInputStream objectContent = object.getObjectContent();
-        objectContent.getHttpRequest().setConfig(config);
+        if (isTargetRepo) {
+            context.addFileFromTargetRepo(targetFile);
+        }
+    }
 
-        FileUtils.copyStreamToFile(new InputStreamFacade() {
-            @Override
-            public InputStream getInputStream() throws IOException {
-                return objectContent;
+    /** Download the lead, signature and header of an RPM (but not its payload) with ranged GETs. */
+    private void downloadHeader(RebuildContext context, S3RepositoryPath s3RepositoryPath, String asRepoRelativePath, boolean isTargetRepo, S3ObjectSummary summary) throws IOException {
+        File targetFile = new File(stagingDirectory, asRepoRelativePath);
+        Files.createParentDirs(targetFile);
+        getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile + " (header only)");
+        byte[] prefix = new byte[0];
+        long required = HEADER_FETCH_SIZE;
+        while (prefix.length < required) {
+            final long end = Math.min(required, summary.getSize()) - 1;
+            if (end < prefix.length) {
+                throw new IOException("Truncated RPM header in " + summary.getKey());
             }
-        }, targetFile);
-
+            final S3Object object = context.getS3Session().getObject(
+                new GetObjectRequest(summary.getBucketName(), summary.getKey()).withRange(prefix.length, end));
+            final byte[] range;
+            try {
+                final S3ObjectInputStream objectContent = object.getObjectContent();
+                range = IOUtils.toByteArray(objectContent);
+            } finally {
+                ExtraIOUtils.closeQuietly(object);
+            }
+            final byte[] combined = new byte[prefix.length + range.length];
+            System.arraycopy(prefix, 0, combined, 0, prefix.length);
+            System.arraycopy(range, 0, combined, prefix.length, range.length);
+            prefix = combined;
+            required = RpmHeader.requiredPrefixLength(prefix, prefix.length);
+        }
+        Files.write(prefix, targetFile);
+        context.addHeaderOnlyPackage(asRepoRelativePath, summary, prefix.length);
         if (isTargetRepo) {
             context.addFileFromTargetRepo(targetFile);
         }
@@ -0,0 +1,224 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.google.common.io.Files;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records, in the staging directory, which files were completely downloaded from which object (key, ETag and size),
+ * along with each staged file's size and modification time at that point. A later build with the same staging
+ * directory can then keep every file that is still intact and that still matches the repository's object, instead of
+ * downloading it again; together with resumable partial downloads (see {@link S3Utils#download}), an interrupted
+ * rebuild picks up where it stopped.
+ * <p/>
+ * The journal is a text file under the staging directory's {@value WellKnowns#S3REPO_FOLDERNAME} folder, which is
+ * never uploaded. Entries are appended as downloads complete; opening the journal compacts it.
+ */
+public final class DownloadJournal implements Closeable {
+
+    private static final String HEADER = "# s3repo download journal v1";
+    private static final String JOURNAL_PATH = WellKnowns.S3REPO_FOLDERNAME + "/downloads.journal";
+
+    private static final class Entry {
+        private final String key;
+        private final String eTag;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(String key, String eTag, long size, long lastModified) {
+            this.key = key;
+            this.eTag = eTag;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File stagingDirectory;
+    private final Log log;
+    /** Entries by repo-relative path. */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    /** Paths recorded, or found current, by this build. */
+    private final Set<String> confirmedPaths = new HashSet<String>();
+    private Writer writer;
+
+    private DownloadJournal(File stagingDirectory, Log log) {
+        this.stagingDirectory = stagingDirectory;
+        this.log = log;
+    }
+
+    /**
+     * Open the journal of <code>stagingDirectory</code> (creating it if needed), forgetting files that were changed or
+     * removed since they were recorded.
+     */
+    public static DownloadJournal open(File stagingDirectory, Log log) throws IOException {
+        final DownloadJournal journal = new DownloadJournal(stagingDirectory, log);
+        final File file = new File(stagingDirectory, JOURNAL_PATH);
+        if (file.isFile()) {
+            journal.read(file);
+        }
+        // rewrite it with only the intact entries
+        Files.createParentDirs(file);
+        journal.writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        journal.writer.write(HEADER);
+        journal.writer.write('\n');
+        for (Map.Entry<String, Entry> entry : journal.entries.entrySet()) {
+            journal.append(entry.getKey(), entry.getValue());
+        }
+        journal.writer.flush();
+        return journal;
+    }
+
+    /**
+     * Delete every file in the staging directory except intact journaled files, partial downloads and the journal
+     * itself.
+     */
+    public void cleanStagingDirectory() {
+        final File bookkeeping = new File(stagingDirectory, WellKnowns.S3REPO_FOLDERNAME);
+        int kept = 0;
+        for (File file : ExtraIOUtils.listAllFiles(stagingDirectory)) {
+            if (isUnder(file, bookkeeping) || S3Utils.isPartialDownload(file)) {
+                continue;
+            }
+            if (entries.containsKey(toRepoRelativePath(file))) {
+                ++kept;
+                continue;
+            }
+            if (!file.delete()) {
+                log.warn("Couldn't delete " + file.getPath());
+            }
+        }
+        if (kept > 0) {
+            log.info("Keeping " + kept + " file(s) downloaded by an earlier build (see " + JOURNAL_PATH + ").");
+        }
+    }
+
+    /**
+     * Delete the journaled files that this build neither recorded nor found current (e.g., their objects were removed
+     * from the repository) and forget them.
+     */
+    public synchronized void deleteUnconfirmedFiles() {
+        for (Iterator<String> paths = entries.keySet().iterator(); paths.hasNext(); ) {
+            final String path = paths.next();
+            if (!confirmedPaths.contains(path)) {
+                final File file = new File(stagingDirectory, path);
+                if (file.isFile() && !file.delete()) {
+                    log.warn("Couldn't delete " + file.getPath());
+                }
+                paths.remove();
+            }
+        }
+    }
+
+    /** Answer true if the journal has an entry for <code>repoRelativePath</code>. */
+    public synchronized boolean contains(String repoRelativePath) {
+        return entries.containsKey(repoRelativePath);
+    }
+
+    /** Answer true if this build recorded <code>repoRelativePath</code> or found it current. */
+    public synchronized boolean isConfirmed(String repoRelativePath) {
+        return confirmedPaths.contains(repoRelativePath);
+    }
+
+    /**
+     * Answer true if <code>repoRelativePath</code> was downloaded from the object <code>summary</code> describes (same
+     * key, ETag and size) and is still intact.
+     */
+    public synchronized boolean isCurrent(String repoRelativePath, S3ObjectSummary summary) {
+        final Entry entry = entries.get(repoRelativePath);
+        final boolean current = entry != null
+            && entry.key.equals(summary.getKey())
+            && entry.size == summary.getSize()
+            && !StringUtils.isEmpty(entry.eTag) && entry.eTag.equals(summary.getETag())
+            && isIntact(repoRelativePath, entry);
+        if (current) {
+            confirmedPaths.add(repoRelativePath);
+        }
+        return current;
+    }
+
+    /** Record that <code>repoRelativePath</code> was completely downloaded from the object <code>summary</code> describes. */
+    public synchronized void record(String repoRelativePath, S3ObjectSummary summary) throws IOException {
+        if (StringUtils.isEmpty(summary.getETag()) || StringUtils.containsAny(repoRelativePath + summary.getKey(), '\t', '\n', '\r')) {
+            return; // can't be verified (or recorded) later
+        }
+        final File file = new File(stagingDirectory, repoRelativePath);
+        final Entry entry = new Entry(summary.getKey(), summary.getETag(), file.length(), file.lastModified());
+        entries.put(repoRelativePath, entry);
+        confirmedPaths.add(repoRelativePath);
+        append(repoRelativePath, entry);
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        ExtraIOUtils.closeQuietly(writer);
+    }
+
+    private void read(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                log.warn("Ignoring unknown download journal " + file.getPath());
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    break; // e.g. a line that was being written when the build was killed
+                }
+                final Entry entry;
+                try {
+                    entry = new Entry(fields[1], fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+                if (isIntact(fields[0], entry)) {
+                    entries.put(fields[0], entry);
+                } else {
+                    entries.remove(fields[0]);
+                }
+            }
+        } finally {
+            ExtraIOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void append(String repoRelativePath, Entry entry) throws IOException {
+        writer.write(repoRelativePath + '\t' + entry.key + '\t' + entry.eTag + '\t' + entry.size + '\t' + entry.lastModified + '\n');
+    }
+
+    private boolean isIntact(String repoRelativePath, Entry entry) {
+        final File file = new File(stagingDirectory, repoRelativePath);
+        return file.isFile() && file.length() == entry.size && file.lastModified() == entry.lastModified;
+    }
+
+    private String toRepoRelativePath(File file) {
+        final String path = file.getAbsolutePath().substring(stagingDirectory.getAbsolutePath().length() + 1);
+        return path.replace(File.separatorChar, '/');
+    }
+
+    private static boolean isUnder(File file, File directory) {
+        return file.getAbsolutePath().startsWith(directory.getAbsolutePath() + File.separator);
+    }
+
+}
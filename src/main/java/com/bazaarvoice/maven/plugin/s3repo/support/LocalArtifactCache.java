@@ -0,0 +1,137 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A persistent, on-disk cache of S3 objects shared by every build on the same machine. Entries are addressed by
+ * bucket, key and ETag, so a changed object is simply a different entry. Reading an entry refreshes its modification
+ * time; {@link #evict()} removes the least recently used entries until the cache fits in <code>maxSizeBytes</code>.
+ * <p/>
+ * Entries are copied into and out of the cache (this plugin targets Java 6, which cannot create hard links). Entries
+ * are written to a temporary file and then renamed, so concurrent builds never observe a partial entry.
+ */
+public final class LocalArtifactCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File cacheDirectory;
+    private final long maxSizeBytes;
+    private final Log log;
+
+    public LocalArtifactCache(File cacheDirectory, long maxSizeBytes, Log log) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.log = log;
+    }
+
+    /**
+     * Copy the cached object, of <code>size</code> bytes as listed, to <code>targetFile</code>; answer false if it isn't
+     * cached. An entry of another size (e.g., truncated by a full disk) is dropped.
+     */
+    public boolean fetch(String bucketName, String bucketKey, String eTag, long size, File targetFile) throws IOException {
+        if (StringUtils.isEmpty(eTag)) {
+            return false;
+        }
+        final File entry = entryFile(bucketName, bucketKey, eTag);
+        if (!entry.isFile()) {
+            return false;
+        }
+        if (entry.length() != size) {
+            log.warn("Dropping cache entry " + entry.getPath() + " for s3://" + bucketName + "/" + bucketKey + ": it has "
+                + entry.length() + " bytes, the object has " + size + ".");
+            if (!entry.delete() && entry.exists()) {
+                throw new IOException("Couldn't delete " + entry.getPath());
+            }
+            return false;
+        }
+        Files.createParentDirs(targetFile);
+        Files.copy(entry, targetFile);
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            log.debug("Couldn't refresh cache entry " + entry.getPath());
+        }
+        return true;
+    }
+
+    /** Add a copy of <code>sourceFile</code> (the content of the object with the given ETag) to the cache. */
+    public void store(String bucketName, String bucketKey, String eTag, File sourceFile) throws IOException {
+        if (StringUtils.isEmpty(eTag)) {
+            return;
+        }
+        final File entry = entryFile(bucketName, bucketKey, eTag);
+        if (entry.isFile()) {
+            return;
+        }
+        Files.createParentDirs(entry);
+        final File temp = new File(entry.getParentFile(), entry.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.copy(sourceFile, temp);
+            if (!temp.renameTo(entry) && !entry.isFile()) {
+                throw new IOException("Couldn't move " + temp.getPath() + " to " + entry.getPath());
+            }
+        } finally {
+            temp.delete(); // no-op once renamed, unless another build stored the same entry first
+        }
+    }
+
+    /** Delete least recently used entries (and abandoned temporary files) until the cache fits its size limit. */
+    public void evict() {
+        if (!cacheDirectory.isDirectory()) {
+            return;
+        }
+        final List<File> entries = new ArrayList<File>();
+        long totalSize = 0;
+        for (File file : ExtraIOUtils.listAllFiles(cacheDirectory)) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // abandoned by a build that died mid-copy; leave recent ones alone as they may still be in progress
+                if (file.lastModified() < System.currentTimeMillis() - 24L * 60 * 60 * 1000) {
+                    file.delete();
+                }
+                continue;
+            }
+            entries.add(file);
+            totalSize += file.length();
+        }
+        if (totalSize <= maxSizeBytes) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                // oldest (least recently used) first
+                return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
+            }
+        });
+        int evicted = 0;
+        for (File entry : entries) {
+            if (totalSize <= maxSizeBytes) {
+                break;
+            }
+            final long size = entry.length();
+            if (entry.delete()) {
+                totalSize -= size;
+                ++evicted;
+            }
+        }
+        log.info("Evicted " + evicted + " entries from artifact cache " + cacheDirectory.getPath()
+            + " (now " + totalSize + " bytes).");
+    }
+
+    private File entryFile(String bucketName, String bucketKey, String eTag) {
+        final String digest = DigestUtils.sha1Hex(bucketName + "\n" + bucketKey + "\n" + StringUtils.strip(eTag, "\""));
+        // spread entries over subdirectories so no single directory grows too large
+        return new File(new File(cacheDirectory, digest.substring(0, 2)), digest);
+    }
+
+}
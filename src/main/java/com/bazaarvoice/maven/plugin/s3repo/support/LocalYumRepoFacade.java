@@ -3,31 +3,31 @@ package com.bazaarvoice.maven.plugin.s3repo.support;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
 import com.bazaarvoice.maven.plugin.s3repo.util.LogStreamConsumer;
 import com.bazaarvoice.maven.plugin.s3repo.util.NullStreamConsumer;
-import com.bazaarvoice.maven.plugin.s3repo.util.SimpleNamespaceResolver;
 import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** Encapsulates queries and operations over a local copy of a YUM repo. */
@@ -37,6 +37,14 @@ public final class LocalYumRepoFacade {
     private final String createRepoCommand;
     private final Set<String> createRepoArgs;
     private final Log log;
+    /** repomd.xml as last parsed, and the digest of the content it was parsed from. */
+    private RepoMetadata cachedRepoMetadata;
+    private String cachedRepoMetadataDigest;
+    /** Repo-relative file paths declared by the primary metadata file with the given checksum. */
+    private List<String> cachedFileList;
+    private String cachedFileListPrimaryChecksum;
+    /** Digests of metadata files computed elsewhere (e.g., while downloading), by file. */
+    private final Map<File, RecordedDigest> recordedDigests = new HashMap<File, RecordedDigest>();
 
     public LocalYumRepoFacade(File repositoryRoot, String createRepoCommand, String createRepoOpts, Log log) {
         this.log = log;
@@ -64,45 +72,81 @@ public final class LocalYumRepoFacade {
      * Checks checksums of repo metadata files. Throws exception if files fail verification
      */
     public void verifyRepoDataFileChecksums() throws MojoExecutionException {
-        File repoMetadataFile = determineRepoMetadataFile();
-        if (!repoMetadataFile.isFile()) {
-            throw new IllegalStateException("File didn't exist: " + repoMetadataFile.getPath());
-        }
-        Document repoMetadata = XmlUtils.parseXmlFile(repoMetadataFile);
+        RepoMetadata repoMetadata = loadRepoMetadata();
 
         // check checksum of repo files
         for (String fileType : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
             final File file = resolveMetadataFile(fileType, repoMetadata);
+            final RepoMetadata.Entry declared = repoMetadata.getEntry(fileType);
+            String digest = recordedDigest(file, declared.getChecksumType());
+            if (digest != null) {
+                log.debug("Using digest computed during download for " + file.getPath());
+            } else {
+                digest = computeDigest(file, declared.getChecksumType());
+            }
+            if (!declared.getChecksum().equals(digest)) {
+                throw new MojoExecutionException("Checksum does not match for " + file.getPath() + ". Expected " + declared.getChecksum() + " but got " + digest);
+            }
+        }
+    }
+
+    /**
+     * Answer the message digest for a repomd.xml checksum type (e.g., "sha256"); unknown types default to SHA-256.
+     */
+    public static MessageDigest newMessageDigest(String checksumType) {
+        if ("sha".equals(checksumType) || "sha1".equals(checksumType)) {
+            return DigestUtils.getSha1Digest();
+        } else if ("sha256".equals(checksumType)) {
+            return DigestUtils.getSha256Digest();
+        } else if ("sha384".equals(checksumType)) {
+            return DigestUtils.getSha384Digest();
+        } else if ("sha512".equals(checksumType)) {
+            return DigestUtils.getSha512Digest();
+        } else if ("md5".equals(checksumType)) {
+            return DigestUtils.getMd5Digest();
+        } else {
+            // default to sha256
+            return DigestUtils.getSha256Digest();
+        }
+    }
+
+    /** Answer the repomd.xml entry for the metadata file at <code>repoRelativePath</code>, or null if it has none. */
+    public RepoMetadata.Entry findMetadataEntry(String repoRelativePath) throws MojoExecutionException {
+        return loadRepoMetadata().findEntryByLocation(repoRelativePath);
+    }
+
+    /**
+     * Remember the digest of <code>file</code> (e.g., computed while downloading it) so that
+     * {@link #verifyRepoDataFileChecksums()} need not read the file again. The digest is ignored if the file has
+     * changed since.
+     */
+    public void recordDigest(File file, String checksumType, String digest) {
+        recordedDigests.put(file.getAbsoluteFile(), new RecordedDigest(checksumType, digest, file.length(), file.lastModified()));
+    }
+
+    private String recordedDigest(File file, String checksumType) {
+        RecordedDigest recorded = recordedDigests.get(file.getAbsoluteFile());
+        if (recorded == null
+            || !recorded.checksumType.equals(checksumType)
+            || recorded.length != file.length()
+            || recorded.lastModified != file.lastModified()) {
+            return null;
+        }
+        return recorded.digest;
+    }
+
+    private static String computeDigest(File file, String checksumType) throws MojoExecutionException {
+        try {
+            final FileInputStream fileIn = new FileInputStream(file);
             try {
-                final FileInputStream fileIn = new FileInputStream(file);
-                try {
-                    final Checksum checksum = resolveMetadataChecksum(fileType, repoMetadata);
-                    String digest;
-                    if ("sha".equals(checksum.checksumType) || "sha1".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha1Hex(fileIn);
-                    } else if ("sha256".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha256Hex(fileIn);
-                    } else if ("sha384".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha384Hex(fileIn);
-                    } else if ("sha512".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha512Hex(fileIn);
-                    } else if ("md5".equals(checksum.checksumType)) {
-                        digest = DigestUtils.md5Hex(fileIn);
-                    } else {
-                        // default to sha256
-                        digest = DigestUtils.sha256Hex(fileIn);
-                    }
-                    if (!checksum.checksumValue.equals(digest)) {
-                        throw new MojoExecutionException("Checksum does not match for " + file.getPath() + ". Expected " + checksum.checksumValue + " but got " + digest);
-                    }
-                } catch (IOException e) {
-                    throw new MojoExecutionException("Unable to calculate checksum for " + file.getPath(), e);
-                } finally {
-                    try { Closeables.close(fileIn, true);} catch (IOException e) {/*swallowed*/}
-                }
-            } catch (FileNotFoundException e) {
-                throw new MojoExecutionException("Repo file " + file.getPath() + " not found");
+                return Hex.encodeHexString(DigestUtils.updateDigest(newMessageDigest(checksumType), fileIn).digest());
+            } catch (IOException e) {
+                throw new MojoExecutionException("Unable to calculate checksum for " + file.getPath(), e);
+            } finally {
+                try { Closeables.close(fileIn, true);} catch (IOException e) {/*swallowed*/}
             }
+        } catch (FileNotFoundException e) {
+            throw new MojoExecutionException("Repo file " + file.getPath() + " not found");
         }
     }
 
@@ -112,12 +156,36 @@ public final class LocalYumRepoFacade {
 
     /** Parse primary metadata file to get list of repo file paths (these paths will be *repo-relative*). */
     public List<String> parseFileListFromRepoMetadata() throws MojoExecutionException {
+        RepoMetadata repoMetadata = loadRepoMetadata();
+        // primary metadata is content-addressed by the checksum that repomd.xml declares for it
+        final String primaryChecksum = repoMetadata.getEntry("primary").getChecksum();
+        if (cachedFileList == null || primaryChecksum.isEmpty() || !primaryChecksum.equals(cachedFileListPrimaryChecksum)) {
+            // we will cache a list of *repo-relative* file paths
+            final List<String> fileList = new ArrayList<String>();
+            PrimaryMetadataParser.parse(resolvePrimaryMetadataFile(repoMetadata), new PrimaryMetadataParser.Visitor() {
+                @Override
+                public void visit(YumPackage yumPackage) {
+                    fileList.add(yumPackage.getLocation());
+                }
+            });
+            cachedFileList = Collections.unmodifiableList(fileList);
+            cachedFileListPrimaryChecksum = primaryChecksum;
+        }
+        return new ArrayList<String>(cachedFileList);
+    }
+
+    /** Count the packages declared by the primary metadata file. */
+    public int countPackages() throws MojoExecutionException {
+        return parseFileListFromRepoMetadata().size();
+    }
+
+    /** Stream every package declared by the primary metadata file to <code>visitor</code>, in document order. */
+    public void visitPackages(PrimaryMetadataParser.Visitor visitor) throws MojoExecutionException {
         File repoMetadataFile = determineRepoMetadataFile();
         if (!repoMetadataFile.isFile()) {
             throw new IllegalStateException("File didn't exist: " + repoMetadataFile.getPath());
         }
-        return extractFileListFromPrimaryMetadataFile(
-                XmlUtils.parseXmlFile(resolvePrimaryMetadataFile(XmlUtils.parseXmlFile(repoMetadataFile))));
+        PrimaryMetadataParser.parse(resolvePrimaryMetadataFile(loadRepoMetadata()), visitor);
     }
 
     /** Execute the createrepo command. */
@@ -130,6 +198,38 @@ public final class LocalYumRepoFacade {
         internalCreateRepo(true/*update*/);
     }
 
+    /**
+     * Add <code>newPackageFiles</code> (which must be below the repository root) to the repository metadata without
+     * running createrepo; see {@link RepoDataGenerator}. Packages already declared by existing metadata need not be
+     * present locally.
+     */
+    public void generateRepoData(List<File> newPackageFiles) throws MojoExecutionException {
+        RepoMetadata existing = null;
+        if (isRepoDataExists()) {
+            //ensure that repo metadata is valid before updating
+            log.info("Verifying repo metadata for update");
+            verifyRepoDataFileChecksums();
+            log.info("Successfully verified repo metadata for update");
+            existing = loadRepoMetadata();
+        }
+        new RepoDataGenerator(repositoryRoot, log).generate(existing, newPackageFiles);
+        log.info("Successfully built repo using directory: " + repositoryRoot.getPath());
+    }
+
+    /**
+     * Replace any repository metadata with metadata declaring exactly <code>packages</code>, without running
+     * createrepo or reading the package files; see {@link RepoDataGenerator}.
+     */
+    public void createRepoFromDescriptions(List<RpmDescription> packages) throws MojoExecutionException {
+        try {
+            FileUtils.deleteDirectory(repoDataDirectory());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to delete " + repoDataDirectory().getPath(), e);
+        }
+        new RepoDataGenerator(repositoryRoot, log).generateFromDescriptions(null, packages);
+        log.info("Successfully built repo using directory: " + repositoryRoot.getPath());
+    }
+
     public File repoDataDirectory() {
         return new File(repositoryRoot, WellKnowns.YUM_REPODATA_FOLDERNAME);
     }
@@ -164,38 +264,41 @@ public final class LocalYumRepoFacade {
         log.info("Successfully built repo using directory: " + repositoryRoot.getPath());
     }
 
-    private List<String> extractFileListFromPrimaryMetadataFile(Document primaryMetadataFile) throws MojoExecutionException {
-        // we will return a list of *repo-relative* file paths
-        List<String> retval = new ArrayList<String>();
-        String rootNamespaceUri = determineRootNamespaceUri(primaryMetadataFile);
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("common", rootNamespaceUri));
-        NodeList repoRelativeFilePaths =
-            (NodeList) evaluateXPathNodeSet(xpath, "//common:metadata/common:package/common:location/@href", primaryMetadataFile);
-        for (int i = 0; i < repoRelativeFilePaths.getLength(); ++i) {
-            retval.add(repoRelativeFilePaths.item(i).getNodeValue());
-        }
-        return retval;
-    }
-
     /** Resolve repomd file (i.e., repodata/repomd.xml) file. */
     private File determineRepoMetadataFile() {
         // path to repomd.xml, e.g.
         return new File(repoDataDirectory(), WellKnowns.YUM_REPOMETADATA_FILENAME);
     }
 
-    private File resolvePrimaryMetadataFile(Document metadata) throws MojoExecutionException {
+    /**
+     * Answer the model of repomd.xml, parsing it only if its content changed since it was last parsed (for example,
+     * after createrepo has run).
+     */
+    private RepoMetadata loadRepoMetadata() throws MojoExecutionException {
+        File repoMetadataFile = determineRepoMetadataFile();
+        if (!repoMetadataFile.isFile()) {
+            throw new IllegalStateException("File didn't exist: " + repoMetadataFile.getPath());
+        }
+        final String digest;
+        try {
+            digest = DigestUtils.sha1Hex(Files.toByteArray(repoMetadataFile));
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read file " + repoMetadataFile.getPath(), e);
+        }
+        if (cachedRepoMetadata == null || !digest.equals(cachedRepoMetadataDigest)) {
+            cachedRepoMetadata = RepoMetadata.fromDocument(XmlUtils.parseXmlFile(repoMetadataFile));
+            cachedRepoMetadataDigest = digest;
+        }
+        return cachedRepoMetadata;
+    }
+
+    private File resolvePrimaryMetadataFile(RepoMetadata metadata) throws MojoExecutionException {
         return resolveMetadataFile("primary", metadata);
     }
 
-    private File resolveMetadataFile(String type, Document metadata) throws MojoExecutionException {
-        // determine root namespace for use in xpath queries
-        String rootNamespaceUri = determineRootNamespaceUri(metadata);
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
+    private File resolveMetadataFile(String type, RepoMetadata metadata) throws MojoExecutionException {
         // metadata file, relative to *repository* root
-        String repoRelativeMetadataFilePath =
-                evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:location/@href", metadata);
+        String repoRelativeMetadataFilePath = metadata.getEntry(type).getLocation();
         // determine metadata file (e.g., "repodata/primary.xml.gz")
         File metadataFile = new File(repositoryRoot, repoRelativeMetadataFilePath);
         if (!metadataFile.isFile() || !metadataFile.getName().endsWith(".gz")) {
@@ -205,44 +308,18 @@ public final class LocalYumRepoFacade {
         return metadataFile;
     }
 
-    private Checksum resolveMetadataChecksum(String type, Document metadata) throws MojoExecutionException {
-        // determine root namespace for use in xpath queries
-        String rootNamespaceUri = determineRootNamespaceUri(metadata);
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
-        return new Checksum(
-                evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:checksum/@type", metadata),
-                evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:checksum", metadata)
-        );
-    }
-
-    private static Object evaluateXPathNodeSet(XPath xpath, String expression, Document document) throws MojoExecutionException {
-        try {
-            return xpath.evaluate(expression, document, XPathConstants.NODESET);
-        } catch (XPathExpressionException e) {
-            throw new MojoExecutionException(expression, e);
-        }
-    }
-
-    private static String evaluateXPathString(XPath xpath, String expression, Document document) throws MojoExecutionException {
-        try {
-            return xpath.evaluate(expression, document);
-        } catch (XPathExpressionException e) {
-            throw new MojoExecutionException(expression, e);
-        }
-    }
-
-    private static String determineRootNamespaceUri(Document metadata) {
-        return metadata.getChildNodes().item(0).getNamespaceURI();
-    }
-
-    private static class Checksum {
+    private static final class RecordedDigest {
         private final String checksumType;
-        private final String checksumValue;
+        private final String digest;
+        private final long length;
+        private final long lastModified;
 
-        private Checksum(final String checksumType, final String checksumValue) {
+        private RecordedDigest(String checksumType, String digest, long length, long lastModified) {
             this.checksumType = checksumType;
-            this.checksumValue = checksumValue;
+            this.digest = digest;
+            this.length = length;
+            this.lastModified = lastModified;
         }
     }
+
 }
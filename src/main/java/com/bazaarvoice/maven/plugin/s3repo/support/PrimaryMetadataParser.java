@@ -0,0 +1,170 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the <code>&lt;package&gt;</code> entries of a primary metadata file (e.g., "repodata/primary.xml.gz") in a
+ * single forward pass. Unlike a DOM, memory use does not grow with the number of packages in the repository.
+ */
+public final class PrimaryMetadataParser {
+
+    /** Receives each package in document order. */
+    public interface Visitor {
+        void visit(YumPackage yumPackage) throws MojoExecutionException;
+    }
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private PrimaryMetadataParser() {}
+
+    /** Parse the provided primary metadata file, decompressing it first if it has a .gz file extension. */
+    public static void parse(File primaryMetadataFile, Visitor visitor) throws MojoExecutionException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(primaryMetadataFile);
+            if (primaryMetadataFile.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            parse(in, visitor);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read file " + primaryMetadataFile.getPath(), e);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Parse uncompressed primary metadata from <code>in</code>; the caller closes the stream. If reading the stream
+     * fails, the failure is the cause of the exception thrown (the StAX parser only keeps its message).
+     */
+    public static void parse(InputStream in, Visitor visitor) throws MojoExecutionException {
+        final IOException[] readFailure = new IOException[1];
+        final InputStream recordingIn = new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    readFailure[0] = e;
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    readFailure[0] = e;
+                    throw e;
+                }
+            }
+        };
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(recordingIn);
+            // depth of the current element below the document root; <package> elements are at depth 1
+            int depth = -1;
+            PackageBuilder current = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        ++depth;
+                        if (depth == 1 && "package".equals(reader.getLocalName())) {
+                            current = new PackageBuilder();
+                        } else if (depth == 2 && current != null && current.element(reader)) {
+                            // the element's text was read, which also consumed its end tag
+                            --depth;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 1 && current != null) {
+                            visitor.visit(current.build());
+                            current = null;
+                        }
+                        --depth;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            if (readFailure[0] != null) {
+                throw new MojoExecutionException("failed to read", readFailure[0]);
+            }
+            throw new MojoExecutionException("failed to parse", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /** Collects the children of one <code>&lt;package&gt;</code> element. */
+    private static final class PackageBuilder {
+        private String name;
+        private String arch;
+        private String epoch;
+        private String version;
+        private String release;
+        private String checksumType;
+        private String checksum;
+        private long packageSize = -1;
+        private String location;
+
+        /**
+         * Consume a direct child of <code>&lt;package&gt;</code>; the reader is positioned on its start tag. Answers
+         * true if the reader was advanced to the element's end tag.
+         */
+        boolean element(XMLStreamReader reader) throws XMLStreamException {
+            final String localName = reader.getLocalName();
+            if ("name".equals(localName)) {
+                name = reader.getElementText();
+            } else if ("arch".equals(localName)) {
+                arch = reader.getElementText();
+            } else if ("version".equals(localName)) {
+                epoch = reader.getAttributeValue(null, "epoch");
+                version = reader.getAttributeValue(null, "ver");
+                release = reader.getAttributeValue(null, "rel");
+            } else if ("checksum".equals(localName)) {
+                checksumType = reader.getAttributeValue(null, "type");
+                checksum = reader.getElementText();
+            } else if ("size".equals(localName)) {
+                final String size = reader.getAttributeValue(null, "package");
+                packageSize = size == null ? -1 : Long.parseLong(size);
+            } else if ("location".equals(localName)) {
+                location = reader.getAttributeValue(null, "href");
+            }
+            return reader.getEventType() == XMLStreamConstants.END_ELEMENT;
+        }
+
+        YumPackage build() {
+            return new YumPackage(name, arch, epoch, version, release, checksumType, checksum, packageSize, location);
+        }
+    }
+
+}
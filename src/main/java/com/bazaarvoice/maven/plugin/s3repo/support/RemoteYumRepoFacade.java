@@ -0,0 +1,137 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a YUM repository's metadata straight from S3, without staging anything on disk: repomd.xml, and then only the
+ * primary metadata file it declares, decompressed and parsed as it is received. Nothing else under repodata/ (filelists,
+ * other, sqlite databases, older generations of metadata) is read.
+ * <p/>
+ * Each file is read with <code>retrier</code>, so a connection that breaks while the content is being read is retried
+ * too. A retried read of the primary metadata skips the packages that were already visited, and fails if the file
+ * changed in the meantime.
+ */
+public final class RemoteYumRepoFacade {
+
+    private final AmazonS3 s3Session;
+    private final S3RepositoryPath s3RepositoryPath;
+    private final S3Retrier retrier;
+    private RepoMetadata cachedRepoMetadata;
+
+    public RemoteYumRepoFacade(AmazonS3 s3Session, S3RepositoryPath s3RepositoryPath, S3Retrier retrier) {
+        this.s3Session = s3Session;
+        this.s3RepositoryPath = s3RepositoryPath;
+        this.retrier = retrier;
+    }
+
+    /** Answer the repository's repomd.xml (read once). */
+    public RepoMetadata loadRepoMetadata() throws MojoExecutionException {
+        if (cachedRepoMetadata == null) {
+            final String repoMetadataPath = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+            cachedRepoMetadata = read(repoMetadataPath, new S3Retrier.Task<RepoMetadata, MojoExecutionException>() {
+                @Override
+                public RepoMetadata run() throws MojoExecutionException {
+                    final S3Object object = getObject(repoMetadataPath, null);
+                    try {
+                        return RepoMetadata.fromDocument(XmlUtils.parseXml(object.getObjectContent()));
+                    } finally {
+                        ExtraIOUtils.closeQuietly(object);
+                    }
+                }
+            });
+        }
+        return cachedRepoMetadata;
+    }
+
+    /** Stream every package declared by the primary metadata file to <code>visitor</code>, in document order. */
+    public void visitPackages(final PrimaryMetadataParser.Visitor visitor) throws MojoExecutionException {
+        final String primaryPath = loadRepoMetadata().getEntry("primary").getLocation();
+        if (primaryPath.isEmpty()) {
+            throw new MojoExecutionException("repomd.xml of " + s3RepositoryPath + " does not declare primary metadata");
+        }
+        if (!primaryPath.endsWith(".gz") && !primaryPath.endsWith(".xml")) {
+            throw new MojoExecutionException("primary metadata file, '" + primaryPath + "', is neither .gz nor .xml");
+        }
+        final int[] visited = new int[1];
+        final String[] eTag = new String[1];
+        read(primaryPath, new S3Retrier.Task<Void, MojoExecutionException>() {
+            @Override
+            public Void run() throws MojoExecutionException {
+                final S3Object object = getObject(primaryPath, eTag[0]);
+                eTag[0] = object.getObjectMetadata().getETag();
+                final int alreadyVisited = visited[0];
+                try {
+                    InputStream in = new BufferedInputStream(object.getObjectContent(), 64 * 1024);
+                    if (primaryPath.endsWith(".gz")) {
+                        in = new GZIPInputStream(in, 64 * 1024);
+                    }
+                    PrimaryMetadataParser.parse(in, new PrimaryMetadataParser.Visitor() {
+                        private int seen;
+
+                        @Override
+                        public void visit(YumPackage yumPackage) throws MojoExecutionException {
+                            if (++seen > alreadyVisited) { // skip what an earlier attempt visited
+                                visitor.visit(yumPackage);
+                                ++visited[0];
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new MojoExecutionException("failed to read " + s3RepositoryPath + "/" + primaryPath, e);
+                } finally {
+                    ExtraIOUtils.closeQuietly(object);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run <code>task</code>, which reads <code>repoRelativePath</code>, with the retrier; it is retried when the read
+     * fails with a retryable error, including one that broke the content while it was parsed.
+     */
+    private <T> T read(String repoRelativePath, S3Retrier.Task<T, MojoExecutionException> task) throws MojoExecutionException {
+        try {
+            return retrier.call("download", s3RepositoryPath + "/" + repoRelativePath, task);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                throw new MojoExecutionException("repository metadata file doesn't exist: " + s3RepositoryPath + "/" + repoRelativePath, e);
+            }
+            throw new MojoExecutionException("failed to read " + s3RepositoryPath + "/" + repoRelativePath, e);
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to read " + s3RepositoryPath + "/" + repoRelativePath, e);
+        }
+    }
+
+    /** Answer the object at <code>repoRelativePath</code>; if <code>eTag</code> is given, it must still have it. */
+    private S3Object getObject(String repoRelativePath, String eTag) throws MojoExecutionException {
+        final String bucketKey = s3RepositoryPath.hasBucketRelativeFolder()
+            ? s3RepositoryPath.getBucketRelativeFolder() + "/" + repoRelativePath
+            : repoRelativePath;
+        final GetObjectRequest request = new GetObjectRequest(s3RepositoryPath.getBucketName(), bucketKey);
+        if (eTag != null) {
+            request.withMatchingETagConstraint(eTag);
+        }
+        final S3Object object = s3Session.getObject(request);
+        if (object == null) {
+            throw new MojoExecutionException(s3RepositoryPath + "/" + repoRelativePath + " changed while it was being read");
+        }
+        return object;
+    }
+
+}
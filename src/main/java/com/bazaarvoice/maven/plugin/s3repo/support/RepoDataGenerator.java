@@ -0,0 +1,608 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates YUM repository metadata (primary, filelists and other, plus repomd.xml) without running createrepo.
+ * Existing metadata is streamed into the new metadata files unchanged and entries for the new packages, built from
+ * their RPM headers, are appended. The cost is therefore proportional to the number of new packages plus one
+ * sequential pass over the existing metadata; existing packages need not be present locally.
+ * <p/>
+ * Metadata files are written with simple names (e.g., "repodata/primary.xml.gz", as with
+ * <code>createrepo --simple-md-filenames</code>). Database (<code>*_db</code>) entries are dropped from repomd.xml
+ * since they would no longer match; other entries (e.g., "group") are preserved.
+ */
+final class RepoDataGenerator {
+
+    private static final String COMMON_NS = "http://linux.duke.edu/metadata/common";
+    private static final String RPM_NS = "http://linux.duke.edu/metadata/rpm";
+    private static final String FILELISTS_NS = "http://linux.duke.edu/metadata/filelists";
+    private static final String OTHER_NS = "http://linux.duke.edu/metadata/other";
+    private static final String REPO_NS = "http://linux.duke.edu/metadata/repo";
+    private static final String CHECKSUM_TYPE = "sha256";
+
+    /** See rpmds.h. */
+    private static final long RPMSENSE_LESS = 1 << 1;
+    private static final long RPMSENSE_GREATER = 1 << 2;
+    private static final long RPMSENSE_EQUAL = 1 << 3;
+    private static final long RPMSENSE_PREREQ = 1 << 6;
+    private static final long RPMSENSE_SCRIPT_PRE = 1 << 9;
+    private static final long RPMSENSE_SCRIPT_POST = 1 << 10;
+    /** See rpmfiles.h. */
+    private static final long RPMFILE_GHOST = 1 << 6;
+    private static final long S_IFMT = 0170000;
+    private static final long S_IFDIR = 0040000;
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final File repositoryRoot;
+    private final Log log;
+
+    RepoDataGenerator(File repositoryRoot, Log log) {
+        this.repositoryRoot = repositoryRoot;
+        this.log = log;
+    }
+
+    /**
+     * Write new metadata declaring the packages in <code>existing</code> (null for a new repository) plus
+     * <code>newPackageFiles</code>, which must be files below the repository root.
+     */
+    void generate(RepoMetadata existing, List<File> newPackageFiles) throws MojoExecutionException {
+        final List<RpmDescription> newPackages = new ArrayList<RpmDescription>();
+        for (File file : newPackageFiles) {
+            newPackages.add(readPackage(file));
+        }
+        generateFromDescriptions(existing, newPackages);
+    }
+
+    /** Like {@link #generate(RepoMetadata, List)} but for packages that have already been described. */
+    void generateFromDescriptions(RepoMetadata existing, List<RpmDescription> newPackages) throws MojoExecutionException {
+        final File repodata = new File(repositoryRoot, WellKnowns.YUM_REPODATA_FOLDERNAME);
+        if (!repodata.isDirectory() && !repodata.mkdirs()) {
+            throw new MojoExecutionException("Failed to create directory: " + repodata);
+        }
+        final List<Element> dataElements = new ArrayList<Element>();
+        final Document repomd = existing == null ? newRepomdDocument() : XmlUtils.parseXmlFile(new File(repodata, WellKnowns.YUM_REPOMETADATA_FILENAME));
+        for (String type : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
+            final File previous = existing == null || existing.getEntry(type).getLocation().isEmpty()
+                ? null
+                : new File(repositoryRoot, existing.getEntry(type).getLocation());
+            final String location = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + type + ".xml.gz";
+            final File target = new File(repositoryRoot, location);
+            final File temp = new File(repodata, type + ".xml.gz.new");
+            log.info("Writing " + location + " (" + newPackages.size() + " new package(s))...");
+            final WrittenFile written = writeMetadataFile(type, previous, newPackages, temp);
+            if (previous != null && !previous.equals(target) && !previous.delete()) {
+                throw new MojoExecutionException("Failed to delete " + previous.getPath());
+            }
+            if ((target.exists() && !target.delete()) || !temp.renameTo(target)) {
+                throw new MojoExecutionException("Failed to move " + temp.getPath() + " to " + target.getPath());
+            }
+            dataElements.add(toDataElement(repomd, type, location, written));
+        }
+        writeRepomd(repomd, dataElements, new File(repodata, WellKnowns.YUM_REPOMETADATA_FILENAME));
+    }
+
+    private RpmDescription readPackage(File file) throws MojoExecutionException {
+        final MessageDigest digest = LocalYumRepoFacade.newMessageDigest(CHECKSUM_TYPE);
+        final DigestInputStream in;
+        try {
+            in = new DigestInputStream(new FileInputStream(file), digest);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read file " + file.getPath(), e);
+        }
+        try {
+            final RpmHeader header = RpmHeader.read(in);
+            // digest the rest of the file too; the package checksum covers all of it
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) >= 0) {
+                // keep reading
+            }
+            final String location = ExtraIOUtils.relativize(repositoryRoot, file)
+                .replaceAll("\\\\", "/").replaceAll("^/", "");
+            return new RpmDescription(header, CHECKSUM_TYPE, Hex.encodeHexString(digest.digest()), file.length(),
+                file.lastModified() / 1000, location);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read RPM header from " + file.getPath(), e);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    private WrittenFile writeMetadataFile(String type, File previous, List<RpmDescription> newPackages, File target)
+            throws MojoExecutionException {
+        InputStream in = null;
+        OutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(target);
+            final CountingOutputStream compressedCount = new CountingOutputStream(new BufferedOutputStream(fileOut));
+            final MessageDigest compressedDigest = LocalYumRepoFacade.newMessageDigest(CHECKSUM_TYPE);
+            final GZIPOutputStream gzip = new GZIPOutputStream(new DigestOutputStream(compressedCount, compressedDigest));
+            final MessageDigest openDigest = LocalYumRepoFacade.newMessageDigest(CHECKSUM_TYPE);
+            final CountingOutputStream openCount = new CountingOutputStream(
+                new BufferedOutputStream(new DigestOutputStream(gzip, openDigest)));
+
+            XMLStreamReader reader = null;
+            long existingCount = 0;
+            if (previous != null) {
+                in = new GZIPInputStream(new FileInputStream(previous));
+                reader = INPUT_FACTORY.createXMLStreamReader(in);
+                reader.nextTag(); // root element
+                final String packages = reader.getAttributeValue(null, "packages");
+                existingCount = packages != null ? Long.parseLong(packages) : countPackages(previous);
+            }
+
+            final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(openCount, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeCharacters("\n");
+            writeRootElement(writer, type, existingCount + newPackages.size());
+            if (reader != null) {
+                copyChildren(reader, writer);
+                reader.close();
+            }
+            for (RpmDescription newPackage : newPackages) {
+                if ("primary".equals(type)) {
+                    writePrimaryPackage(writer, newPackage);
+                } else if ("filelists".equals(type)) {
+                    writeFilelistsPackage(writer, newPackage);
+                } else {
+                    writeOtherPackage(writer, newPackage);
+                }
+            }
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndDocument();
+            writer.close();
+            openCount.flush();
+            gzip.finish();
+            compressedCount.flush();
+            fileOut.close();
+            return new WrittenFile(
+                Hex.encodeHexString(compressedDigest.digest()), compressedCount.getCount(),
+                Hex.encodeHexString(openDigest.digest()), openCount.getCount());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write " + target.getPath(), e);
+        } catch (XMLStreamException e) {
+            throw new MojoExecutionException("Failed to write " + type + " metadata", e);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+            ExtraIOUtils.closeQuietly(fileOut);
+        }
+    }
+
+    private static void writeRootElement(XMLStreamWriter writer, String type, long packageCount) throws XMLStreamException {
+        if ("primary".equals(type)) {
+            writer.writeStartElement("", "metadata", COMMON_NS);
+            writer.writeDefaultNamespace(COMMON_NS);
+            writer.writeNamespace("rpm", RPM_NS);
+        } else if ("filelists".equals(type)) {
+            writer.writeStartElement("", "filelists", FILELISTS_NS);
+            writer.writeDefaultNamespace(FILELISTS_NS);
+        } else {
+            writer.writeStartElement("", "otherdata", OTHER_NS);
+            writer.writeDefaultNamespace(OTHER_NS);
+        }
+        writer.writeAttribute("packages", Long.toString(packageCount));
+        writer.writeCharacters("\n");
+    }
+
+    /** Copy everything inside the reader's current (root) element, leaving the reader on its end tag. */
+    private static void copyChildren(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    ++depth;
+                    final String prefix = reader.getPrefix();
+                    writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), reader.getNamespaceURI());
+                    for (int i = 0; i < reader.getAttributeCount(); ++i) {
+                        final String attributePrefix = reader.getAttributePrefix(i);
+                        if (attributePrefix == null || attributePrefix.isEmpty()) {
+                            writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        } else {
+                            writer.writeAttribute(attributePrefix, reader.getAttributeNamespace(i),
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 0) {
+                        return; // end of root
+                    }
+                    --depth;
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static long countPackages(File metadataFile) throws MojoExecutionException {
+        final long[] count = {0};
+        PrimaryMetadataParser.parse(metadataFile, new PrimaryMetadataParser.Visitor() {
+            @Override
+            public void visit(YumPackage yumPackage) {
+                ++count[0];
+            }
+        });
+        return count[0];
+    }
+
+    private static void writePrimaryPackage(XMLStreamWriter w, RpmDescription p) throws XMLStreamException {
+        final RpmHeader h = p.getHeader();
+        w.writeStartElement(COMMON_NS, "package");
+        w.writeAttribute("type", "rpm");
+        element(w, COMMON_NS, "name", h.getString(RpmHeader.NAME));
+        element(w, COMMON_NS, "arch", arch(p.getHeader()));
+        writeVersion(w, COMMON_NS, p);
+        w.writeStartElement(COMMON_NS, "checksum");
+        w.writeAttribute("type", p.getChecksumType());
+        w.writeAttribute("pkgid", "YES");
+        w.writeCharacters(p.getChecksum());
+        w.writeEndElement();
+        element(w, COMMON_NS, "summary", h.getString(RpmHeader.SUMMARY));
+        element(w, COMMON_NS, "description", h.getString(RpmHeader.DESCRIPTION));
+        element(w, COMMON_NS, "packager", h.getString(RpmHeader.PACKAGER));
+        element(w, COMMON_NS, "url", h.getString(RpmHeader.URL));
+        w.writeEmptyElement(COMMON_NS, "time");
+        w.writeAttribute("file", Long.toString(p.getFileTime()));
+        w.writeAttribute("build", Long.toString(h.getNumber(RpmHeader.BUILDTIME, 0)));
+        w.writeEmptyElement(COMMON_NS, "size");
+        w.writeAttribute("package", Long.toString(p.getPackageSize()));
+        w.writeAttribute("installed", Long.toString(h.getNumber(RpmHeader.SIZE, 0)));
+        w.writeAttribute("archive", Long.toString(h.getNumber(RpmHeader.ARCHIVESIZE, 0)));
+        w.writeEmptyElement(COMMON_NS, "location");
+        w.writeAttribute("href", p.getLocation());
+        w.writeStartElement(COMMON_NS, "format");
+        element(w, RPM_NS, "license", h.getString(RpmHeader.LICENSE));
+        element(w, RPM_NS, "vendor", h.getString(RpmHeader.VENDOR));
+        element(w, RPM_NS, "group", h.getString(RpmHeader.GROUP));
+        element(w, RPM_NS, "buildhost", h.getString(RpmHeader.BUILDHOST));
+        element(w, RPM_NS, "sourcerpm", h.getString(RpmHeader.SOURCERPM));
+        w.writeEmptyElement(RPM_NS, "header-range");
+        w.writeAttribute("start", Long.toString(h.getHeaderStart()));
+        w.writeAttribute("end", Long.toString(h.getHeaderEnd()));
+        writeDependencies(w, "provides", h, RpmHeader.PROVIDENAME, RpmHeader.PROVIDEFLAGS, RpmHeader.PROVIDEVERSION, false);
+        writeDependencies(w, "requires", h, RpmHeader.REQUIRENAME, RpmHeader.REQUIREFLAGS, RpmHeader.REQUIREVERSION, true);
+        writeDependencies(w, "conflicts", h, RpmHeader.CONFLICTNAME, RpmHeader.CONFLICTFLAGS, RpmHeader.CONFLICTVERSION, false);
+        writeDependencies(w, "obsoletes", h, RpmHeader.OBSOLETENAME, RpmHeader.OBSOLETEFLAGS, RpmHeader.OBSOLETEVERSION, false);
+        for (PackageFile file : files(p.getHeader())) {
+            // like createrepo, primary metadata only lists files that are commonly depended upon
+            if (file.path.startsWith("/etc/") || file.path.contains("bin/") || file.path.equals("/usr/lib/sendmail")) {
+                writeFile(w, COMMON_NS, file);
+            }
+        }
+        w.writeEndElement(); // format
+        w.writeEndElement(); // package
+        w.writeCharacters("\n");
+    }
+
+    private static void writeFilelistsPackage(XMLStreamWriter w, RpmDescription p) throws XMLStreamException {
+        w.writeStartElement(FILELISTS_NS, "package");
+        writePackageIdentity(w, p);
+        writeVersion(w, FILELISTS_NS, p);
+        for (PackageFile file : files(p.getHeader())) {
+            writeFile(w, FILELISTS_NS, file);
+        }
+        w.writeEndElement();
+        w.writeCharacters("\n");
+    }
+
+    private static void writeOtherPackage(XMLStreamWriter w, RpmDescription p) throws XMLStreamException {
+        final RpmHeader h = p.getHeader();
+        w.writeStartElement(OTHER_NS, "package");
+        writePackageIdentity(w, p);
+        writeVersion(w, OTHER_NS, p);
+        final String[] authors = h.getStringArray(RpmHeader.CHANGELOGNAME);
+        final long[] times = h.getNumberArray(RpmHeader.CHANGELOGTIME);
+        final String[] texts = h.getStringArray(RpmHeader.CHANGELOGTEXT);
+        for (int i = 0; i < authors.length && i < times.length && i < texts.length; ++i) {
+            w.writeStartElement(OTHER_NS, "changelog");
+            w.writeAttribute("author", sanitize(authors[i]));
+            w.writeAttribute("date", Long.toString(times[i]));
+            w.writeCharacters(sanitize(texts[i]));
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+        w.writeCharacters("\n");
+    }
+
+    private static void writePackageIdentity(XMLStreamWriter w, RpmDescription p) throws XMLStreamException {
+        w.writeAttribute("pkgid", p.getChecksum());
+        w.writeAttribute("name", sanitize(p.getHeader().getString(RpmHeader.NAME)));
+        w.writeAttribute("arch", arch(p.getHeader()));
+    }
+
+    private static void writeVersion(XMLStreamWriter w, String namespace, RpmDescription p) throws XMLStreamException {
+        w.writeEmptyElement(namespace, "version");
+        w.writeAttribute("epoch", Long.toString(p.getHeader().getNumber(RpmHeader.EPOCH, 0)));
+        w.writeAttribute("ver", sanitize(p.getHeader().getString(RpmHeader.VERSION)));
+        w.writeAttribute("rel", sanitize(p.getHeader().getString(RpmHeader.RELEASE)));
+    }
+
+    private static void writeDependencies(XMLStreamWriter w, String kind, RpmHeader h, int nameTag, int flagsTag,
+                                          int versionTag, boolean isRequires) throws XMLStreamException {
+        final String[] names = h.getStringArray(nameTag);
+        final long[] flags = h.getNumberArray(flagsTag);
+        final String[] versions = h.getStringArray(versionTag);
+        boolean started = false;
+        for (int i = 0; i < names.length; ++i) {
+            if (isRequires && names[i].startsWith("rpmlib(")) {
+                continue; // satisfied by rpm itself; createrepo omits these too
+            }
+            if (!started) {
+                w.writeStartElement(RPM_NS, kind);
+                started = true;
+            }
+            final long flag = i < flags.length ? flags[i] : 0;
+            final String version = i < versions.length ? versions[i] : "";
+            w.writeEmptyElement(RPM_NS, "entry");
+            w.writeAttribute("name", sanitize(names[i]));
+            final String comparison = toComparison(flag);
+            if (comparison != null && !version.isEmpty()) {
+                w.writeAttribute("flags", comparison);
+                // version is [epoch:]version[-release]
+                String rest = version;
+                String epoch = "0";
+                final int colon = rest.indexOf(':');
+                if (colon >= 0) {
+                    epoch = rest.substring(0, colon);
+                    rest = rest.substring(colon + 1);
+                }
+                w.writeAttribute("epoch", sanitize(epoch));
+                final int dash = rest.lastIndexOf('-');
+                w.writeAttribute("ver", sanitize(dash >= 0 ? rest.substring(0, dash) : rest));
+                if (dash >= 0) {
+                    w.writeAttribute("rel", sanitize(rest.substring(dash + 1)));
+                }
+            }
+            if (isRequires && (flag & (RPMSENSE_PREREQ | RPMSENSE_SCRIPT_PRE | RPMSENSE_SCRIPT_POST)) != 0) {
+                w.writeAttribute("pre", "1");
+            }
+        }
+        if (started) {
+            w.writeEndElement();
+        }
+    }
+
+    private static String toComparison(long flags) {
+        final long sense = flags & (RPMSENSE_LESS | RPMSENSE_GREATER | RPMSENSE_EQUAL);
+        if (sense == RPMSENSE_EQUAL) {
+            return "EQ";
+        } else if (sense == RPMSENSE_LESS) {
+            return "LT";
+        } else if (sense == RPMSENSE_GREATER) {
+            return "GT";
+        } else if (sense == (RPMSENSE_LESS | RPMSENSE_EQUAL)) {
+            return "LE";
+        } else if (sense == (RPMSENSE_GREATER | RPMSENSE_EQUAL)) {
+            return "GE";
+        }
+        return null;
+    }
+
+    private static void writeFile(XMLStreamWriter w, String namespace, PackageFile file) throws XMLStreamException {
+        w.writeStartElement(namespace, "file");
+        if (file.type != null) {
+            w.writeAttribute("type", file.type);
+        }
+        w.writeCharacters(sanitize(file.path));
+        w.writeEndElement();
+    }
+
+    private static void element(XMLStreamWriter w, String namespace, String name, String value) throws XMLStreamException {
+        if (value == null) {
+            w.writeEmptyElement(namespace, name);
+        } else {
+            w.writeStartElement(namespace, name);
+            w.writeCharacters(sanitize(value));
+            w.writeEndElement();
+        }
+    }
+
+    /** Drop characters that cannot appear in XML 1.0 documents (RPM headers occasionally contain them). */
+    private static String sanitize(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder result = null;
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            final boolean legal = c >= 0x20 || c == '\t' || c == '\n' || c == '\r';
+            if (!legal && result == null) {
+                result = new StringBuilder(value.substring(0, i));
+            } else if (legal && result != null) {
+                result.append(c);
+            }
+        }
+        return result == null ? value : result.toString();
+    }
+
+    private static Document newRepomdDocument() throws MojoExecutionException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            Document document = factory.newDocumentBuilder().newDocument();
+            Element root = document.createElementNS(REPO_NS, "repomd");
+            root.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:rpm", RPM_NS);
+            document.appendChild(root);
+            return document;
+        } catch (ParserConfigurationException e) {
+            throw new MojoExecutionException("failed to create repomd.xml", e);
+        }
+    }
+
+    private static Element toDataElement(Document repomd, String type, String location, WrittenFile written) {
+        final String ns = repomd.getDocumentElement().getNamespaceURI();
+        final Element data = repomd.createElementNS(ns, "data");
+        data.setAttribute("type", type);
+        appendChecksum(repomd, data, "checksum", written.checksum);
+        appendChecksum(repomd, data, "open-checksum", written.openChecksum);
+        final Element locationElement = repomd.createElementNS(ns, "location");
+        locationElement.setAttribute("href", location);
+        data.appendChild(locationElement);
+        appendText(repomd, data, "timestamp", Long.toString(System.currentTimeMillis() / 1000));
+        appendText(repomd, data, "size", Long.toString(written.size));
+        appendText(repomd, data, "open-size", Long.toString(written.openSize));
+        return data;
+    }
+
+    private static void appendChecksum(Document repomd, Element data, String name, String value) {
+        final Element checksum = appendText(repomd, data, name, value);
+        checksum.setAttribute("type", CHECKSUM_TYPE);
+    }
+
+    private static Element appendText(Document repomd, Element parent, String name, String value) {
+        final Element element = repomd.createElementNS(repomd.getDocumentElement().getNamespaceURI(), name);
+        element.setTextContent(value);
+        parent.appendChild(element);
+        return element;
+    }
+
+    private static void writeRepomd(Document repomd, List<Element> dataElements, File target) throws MojoExecutionException {
+        final Element root = repomd.getDocumentElement();
+        final String ns = root.getNamespaceURI();
+        // replace our data entries (and database entries, which are now stale); keep everything else
+        final NodeList children = root.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; --i) {
+            final Node child = children.item(i);
+            if (child instanceof Element && "data".equals(child.getLocalName())) {
+                final String type = ((Element) child).getAttribute("type");
+                if (type.endsWith("_db") || isGeneratedType(type)) {
+                    root.removeChild(child);
+                }
+            } else if (child instanceof Element && "revision".equals(child.getLocalName())) {
+                root.removeChild(child);
+            } else if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty()) {
+                root.removeChild(child); // the transformer re-indents
+            }
+        }
+        final Element revision = repomd.createElementNS(ns, "revision");
+        revision.setTextContent(Long.toString(System.currentTimeMillis() / 1000));
+        root.insertBefore(revision, root.getFirstChild());
+        for (Element data : dataElements) {
+            root.appendChild(data);
+        }
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            transformer.transform(new DOMSource(repomd), new StreamResult(target));
+        } catch (TransformerException e) {
+            throw new MojoExecutionException("Failed to write " + target.getPath(), e);
+        }
+    }
+
+    private static boolean isGeneratedType(String type) {
+        for (String generated : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
+            if (generated.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static String arch(RpmHeader header) {
+        // source packages have no ARCH tag of their own in YUM's view
+        return header.hasTag(RpmHeader.SOURCERPM) ? sanitize(header.getString(RpmHeader.ARCH)) : "src";
+    }
+
+    private static List<PackageFile> files(RpmHeader header) {
+        final String[] baseNames = header.getStringArray(RpmHeader.BASENAMES);
+        final long[] dirIndexes = header.getNumberArray(RpmHeader.DIRINDEXES);
+        final String[] dirNames = header.getStringArray(RpmHeader.DIRNAMES);
+        final long[] modes = header.getNumberArray(RpmHeader.FILEMODES);
+        final long[] flags = header.getNumberArray(RpmHeader.FILEFLAGS);
+        final List<PackageFile> files = new ArrayList<PackageFile>(baseNames.length);
+        for (int i = 0; i < baseNames.length && i < dirIndexes.length; ++i) {
+            String type = null;
+            if (i < flags.length && (flags[i] & RPMFILE_GHOST) != 0) {
+                type = "ghost";
+            } else if (i < modes.length && (modes[i] & S_IFMT) == S_IFDIR) {
+                type = "dir";
+            }
+            files.add(new PackageFile(dirNames[(int) dirIndexes[i]] + baseNames[i], type));
+        }
+        return files;
+    }
+
+    private static final class PackageFile {
+        private final String path;
+        private final String type; // null for regular files
+
+        private PackageFile(String path, String type) {
+            this.path = path;
+            this.type = type;
+        }
+    }
+
+    private static final class WrittenFile {
+        private final String checksum;
+        private final long size;
+        private final String openChecksum;
+        private final long openSize;
+
+        private WrittenFile(String checksum, long size, String openChecksum, long openSize) {
+            this.checksum = checksum;
+            this.size = size;
+            this.openChecksum = openChecksum;
+            this.openSize = openSize;
+        }
+    }
+
+}
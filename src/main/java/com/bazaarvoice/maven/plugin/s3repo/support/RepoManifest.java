@@ -0,0 +1,340 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.ObjectListingIterator;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact index of every object in a repository (repo-relative path, size, ETag and last-modified time), kept in the
+ * repository itself at {@link WellKnowns#S3REPO_MANIFEST_PATH} and rewritten by every publish. Reading it costs one
+ * GET (plus one HEAD to check it is current) instead of paging through a listing of the whole repository prefix.
+ * <p/>
+ * The manifest is considered current when the repomd.xml it recorded still has the same ETag; every change to a
+ * repository's packages goes along with new metadata, so a repository changed by something other than this plugin is
+ * noticed and listed in full (after which the next publish writes a correct manifest again).
+ */
+public final class RepoManifest {
+
+    private static final String HEADER = "# s3repo manifest v1";
+    private static final String REPOMD_PATH = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+
+    /** One object in the repository. */
+    public static final class Entry {
+        private final long size;
+        private final String eTag;
+        private final long lastModified;
+
+        private Entry(long size, String eTag, long lastModified) {
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /** Milliseconds since the epoch. */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /** Receives each object of a repository as {@link #fetch} reads the manifest or lists the repository. */
+    public interface Visitor {
+        void visit(S3ObjectSummary summary) throws MojoExecutionException;
+    }
+
+    /** Entries by repo-relative path, in path order (so manifests are written deterministically). */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Answer the current manifest of <code>repo</code>: the stored one if it is current, otherwise one built from a full
+     * listing of the repository (also when <code>forceListing</code> is true). The manifest object itself is never
+     * part of a manifest. See {@link S3Utils#iterateAllObjects(AmazonS3, ListObjectsRequest, int, int, int)} for
+     * <code>listConcurrency</code> and <code>listDepth</code>.
+     */
+    public static RepoManifest fetch(AmazonS3 s3Session, S3Retrier retrier, S3RepositoryPath repo, boolean forceListing,
+                                     int listConcurrency, int listDepth, Log log) throws MojoExecutionException {
+        return fetch(s3Session, retrier, repo, forceListing, listConcurrency, listDepth, log, null);
+    }
+
+    /**
+     * Like {@link #fetch(AmazonS3, S3Retrier, S3RepositoryPath, boolean, int, int, Log)}, but also hands every object the
+     * manifest records (so no folder placeholders and none of this plugin's bookkeeping) to <code>visitor</code> as soon
+     * as it is known (in no particular order). A listing is streamed, so the visitor's work overlaps with fetching
+     * later pages.
+     */
+    public static RepoManifest fetch(AmazonS3 s3Session, S3Retrier retrier, S3RepositoryPath repo, boolean forceListing,
+                                     int listConcurrency, int listDepth, Log log, Visitor visitor)
+            throws MojoExecutionException {
+        if (!forceListing) {
+            final RepoManifest stored = load(s3Session, repo, retrier);
+            if (stored != null && stored.isCurrent(s3Session, repo)) {
+                log.info("Using repository manifest " + toBucketKey(repo, WellKnowns.S3REPO_MANIFEST_PATH)
+                    + " (" + stored.entries.size() + " objects)...");
+                if (visitor != null) {
+                    for (Map.Entry<String, Entry> entry : stored.entries.entrySet()) {
+                        visitor.visit(toObjectSummary(repo, entry.getKey(), entry.getValue()));
+                    }
+                }
+                return stored;
+            }
+            log.info(stored == null
+                ? "Repository has no manifest; listing all objects..."
+                : "Repository manifest is out of date; listing all objects...");
+        } else {
+            log.info("Listing all objects in the repository...");
+        }
+        return list(s3Session, repo, listConcurrency, listDepth, visitor);
+    }
+
+    /** Answer the manifest stored in <code>repo</code> if it is current, else null (it is never listed). */
+    public static RepoManifest loadCurrent(AmazonS3 s3Session, S3Retrier retrier, S3RepositoryPath repo)
+            throws MojoExecutionException {
+        final RepoManifest stored = load(s3Session, repo, retrier);
+        return stored != null && stored.isCurrent(s3Session, repo) ? stored : null;
+    }
+
+    private static RepoManifest list(AmazonS3 s3Session, S3RepositoryPath repo, int listConcurrency, int listDepth,
+                                     Visitor visitor) throws MojoExecutionException {
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(repo.getBucketName());
+        if (repo.hasBucketRelativeFolder()) {
+            request.withPrefix(repo.getBucketRelativeFolder() + "/");
+        }
+        RepoManifest listed = new RepoManifest();
+        // partitions are listed concurrently and their pages handed over as they arrive, a couple per listing thread
+        ObjectListingIterator summaries = S3Utils.iterateAllObjects(s3Session, request,
+            S3Utils.DEFAULT_PREFETCH_PAGES * Math.max(1, listConcurrency), listConcurrency, listDepth);
+        try {
+            while (summaries.hasNext()) {
+                listed.put(summaries.next(), repo, visitor);
+            }
+        } finally {
+            summaries.close();
+        }
+        return listed;
+    }
+
+    /**
+     * Answer the manifest stored in <code>repo</code>, or null if there is none (or it can't be read). The download is
+     * retried with <code>retrier</code>, also when the connection breaks while the manifest is being read.
+     */
+    public static RepoManifest load(final AmazonS3 s3Session, final S3RepositoryPath repo, S3Retrier retrier)
+            throws MojoExecutionException {
+        final String bucketKey = toBucketKey(repo, WellKnowns.S3REPO_MANIFEST_PATH);
+        try {
+            return retrier.call("download", bucketKey, new S3Retrier.Task<RepoManifest, IOException>() {
+                @Override
+                public RepoManifest run() throws IOException {
+                    final S3Object object;
+                    try {
+                        object = s3Session.getObject(new GetObjectRequest(repo.getBucketName(), bucketKey));
+                    } catch (AmazonS3Exception e) {
+                        if (e.getStatusCode() == 404) {
+                            return null;
+                        }
+                        throw e;
+                    }
+                    try {
+                        return read(object.getObjectContent());
+                    } finally {
+                        ExtraIOUtils.closeQuietly(object);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            // a damaged manifest is no worse than a missing one; we'll list instead
+            return null;
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to read repository manifest", e);
+        }
+    }
+
+    /** Write this manifest to <code>repo</code>. */
+    public void save(AmazonS3 s3Session, S3RepositoryPath repo) throws MojoExecutionException {
+        File file = null;
+        try {
+            file = File.createTempFile("s3repo-manifest", ".gz");
+            OutputStream out = new FileOutputStream(file);
+            try {
+                write(out);
+            } finally {
+                ExtraIOUtils.closeQuietly(out);
+            }
+            s3Session.putObject(new PutObjectRequest(repo.getBucketName(), toBucketKey(repo, WellKnowns.S3REPO_MANIFEST_PATH), file)
+                .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl));
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to write repository manifest", e);
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to upload repository manifest", e);
+        } finally {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    public static RepoManifest read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), "UTF-8"));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("Not a repository manifest");
+        }
+        RepoManifest manifest = new RepoManifest();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 4) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            try {
+                manifest.put(unescape(fields[0]), Long.parseLong(fields[1]), fields[2], Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"));
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            writer.write(escape(entry.getKey()));
+            writer.write('\t');
+            writer.write(Long.toString(entry.getValue().getSize()));
+            writer.write('\t');
+            writer.write(StringUtils.defaultString(entry.getValue().getETag()));
+            writer.write('\t');
+            writer.write(Long.toString(entry.getValue().getLastModified()));
+            writer.write('\n');
+        }
+        writer.flush();
+        gzip.finish();
+    }
+
+    /**
+     * Record that <code>repoRelativePath</code> exists, unless it is a folder placeholder or this plugin's bookkeeping
+     * (such as the manifest itself); answer whether it was recorded.
+     */
+    public boolean put(String repoRelativePath, long size, String eTag, long lastModified) {
+        if (repoRelativePath.endsWith("/") || repoRelativePath.startsWith(WellKnowns.S3REPO_FOLDERNAME + "/")) {
+            return false;
+        }
+        entries.put(repoRelativePath, new Entry(size, StringUtils.strip(eTag, "\""), lastModified));
+        return true;
+    }
+
+    private void put(S3ObjectSummary summary, S3RepositoryPath repo, Visitor visitor) throws MojoExecutionException {
+        final boolean recorded = put(S3Utils.toRepoRelativePath(summary, repo), summary.getSize(), summary.getETag(),
+            summary.getLastModified() == null ? 0 : summary.getLastModified().getTime());
+        if (recorded && visitor != null) {
+            visitor.visit(summary);
+        }
+    }
+
+    public void remove(String repoRelativePath) {
+        entries.remove(repoRelativePath);
+    }
+
+    /** Answer the entry for <code>repoRelativePath</code>, or null if the repository has no such object. */
+    public Entry get(String repoRelativePath) {
+        return entries.get(repoRelativePath);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Answer the manifest's objects as if they had been listed from <code>repo</code>. */
+    public List<S3ObjectSummary> toObjectSummaries(S3RepositoryPath repo) {
+        List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            summaries.add(toObjectSummary(repo, entry.getKey(), entry.getValue()));
+        }
+        return summaries;
+    }
+
+    private static S3ObjectSummary toObjectSummary(S3RepositoryPath repo, String repoRelativePath, Entry entry) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(repo.getBucketName());
+        summary.setKey(toBucketKey(repo, repoRelativePath));
+        summary.setSize(entry.getSize());
+        summary.setETag(entry.getETag());
+        summary.setLastModified(new Date(entry.getLastModified()));
+        return summary;
+    }
+
+    /** Answer true if the repository's repomd.xml is still the one this manifest recorded. */
+    private boolean isCurrent(AmazonS3 s3Session, S3RepositoryPath repo) throws MojoExecutionException {
+        final Entry recorded = entries.get(REPOMD_PATH);
+        final ObjectMetadata actual;
+        try {
+            actual = s3Session.getObjectMetadata(repo.getBucketName(), toBucketKey(repo, REPOMD_PATH));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return recorded == null;
+            }
+            throw new MojoExecutionException("failed to read metadata of " + REPOMD_PATH, e);
+        }
+        return recorded != null
+            && recorded.getSize() == actual.getContentLength()
+            && StringUtils.strip(actual.getETag(), "\"").equals(recorded.getETag());
+    }
+
+    private static String toBucketKey(S3RepositoryPath repo, String repoRelativePath) {
+        return repo.hasBucketRelativeFolder()
+            ? repo.getBucketRelativeFolder() + "/" + repoRelativePath
+            : repoRelativePath;
+    }
+
+    /** Keys may (in theory) contain the characters we use as separators. */
+    private static String escape(String path) {
+        return path.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    private static String unescape(String path) {
+        return path.replace("%0D", "\r").replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The contents of a repomd.xml file: for each metadata type (e.g., "primary"), the repo-relative location of the
+ * metadata file and its declared checksum. Missing values are represented by empty strings.
+ */
+public final class RepoMetadata {
+
+    /** One <code>&lt;data&gt;</code> entry of repomd.xml. */
+    public static final class Entry {
+        private final String location;
+        private final String checksumType;
+        private final String checksum;
+
+        private Entry(String location, String checksumType, String checksum) {
+            this.location = location;
+            this.checksumType = checksumType;
+            this.checksum = checksum;
+        }
+
+        /** Repo-relative path to the metadata file (e.g., "repodata/primary.xml.gz"). */
+        public String getLocation() {
+            return location;
+        }
+
+        public String getChecksumType() {
+            return checksumType;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static final Entry MISSING = new Entry("", "", "");
+
+    private final Map<String, Entry> entriesByType;
+
+    private RepoMetadata(Map<String, Entry> entriesByType) {
+        this.entriesByType = entriesByType;
+    }
+
+    /** Build the model from a parsed repomd.xml document. */
+    public static RepoMetadata fromDocument(Document repomd) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        Element root = repomd.getDocumentElement();
+        String namespaceUri = root.getNamespaceURI();
+        for (Element data : childElements(root, namespaceUri, "data")) {
+            Element location = firstChildElement(data, namespaceUri, "location");
+            Element checksum = firstChildElement(data, namespaceUri, "checksum");
+            entries.put(data.getAttribute("type"), new Entry(
+                location == null ? "" : location.getAttribute("href"),
+                checksum == null ? "" : checksum.getAttribute("type"),
+                checksum == null ? "" : checksum.getTextContent().trim()));
+        }
+        return new RepoMetadata(entries);
+    }
+
+    /** Answer the entry for <code>type</code>; its fields are empty strings if repomd.xml didn't declare it. */
+    public Entry getEntry(String type) {
+        Entry entry = entriesByType.get(type);
+        return entry == null ? MISSING : entry;
+    }
+
+    /** Answer the entry whose location is <code>repoRelativePath</code>, or null if there is none. */
+    public Entry findEntryByLocation(String repoRelativePath) {
+        for (Entry entry : entriesByType.values()) {
+            if (entry.getLocation().equals(repoRelativePath)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> childElements(Element parent, String namespaceUri, String localName) {
+        List<Element> result = new ArrayList<Element>();
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); ++i) {
+            Node child = children.item(i);
+            if (child instanceof Element && localName.equals(child.getLocalName())
+                && equalsNullable(namespaceUri, child.getNamespaceURI())) {
+                result.add((Element) child);
+            }
+        }
+        return result;
+    }
+
+    private static Element firstChildElement(Element parent, String namespaceUri, String localName) {
+        List<Element> children = childElements(parent, namespaceUri, localName);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static boolean equalsNullable(String left, String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+/**
+ * Everything YUM metadata says about one package: its parsed header plus facts about the package file as a whole.
+ * The file itself need not be available locally (e.g., the header may have been fetched with ranged GETs and the
+ * checksum taken from existing metadata).
+ */
+public final class RpmDescription {
+
+    private final RpmHeader header;
+    private final String checksumType;
+    private final String checksum;
+    private final long packageSize;
+    private final long fileTime;
+    private final String location;
+
+    /**
+     * @param checksumType YUM checksum type of <code>checksum</code> (e.g., "sha256")
+     * @param checksum hex digest of the whole package file; this is also the package id
+     * @param fileTime modification time of the package file, in seconds since the epoch
+     * @param location repo-relative path of the package file
+     */
+    public RpmDescription(RpmHeader header, String checksumType, String checksum, long packageSize, long fileTime, String location) {
+        this.header = header;
+        this.checksumType = checksumType;
+        this.checksum = checksum;
+        this.packageSize = packageSize;
+        this.fileTime = fileTime;
+        this.location = location;
+    }
+
+    public RpmHeader getHeader() {
+        return header;
+    }
+
+    public String getChecksumType() {
+        return checksumType;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public long getPackageSize() {
+        return packageSize;
+    }
+
+    public long getFileTime() {
+        return fileTime;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parsed header of an RPM package file. An RPM starts with a 96-byte lead, followed by a signature header (padded
+ * to a multiple of 8 bytes) and the main header; the (compressed) payload follows. Only the lead and the two headers
+ * are read, so {@link #read(InputStream)} consumes {@link #getHeaderEnd()} bytes and leaves the payload unread.
+ */
+public final class RpmHeader {
+
+    /** Header tags used to build YUM metadata. See rpmtag.h. */
+    public static final int NAME = 1000;
+    public static final int VERSION = 1001;
+    public static final int RELEASE = 1002;
+    public static final int EPOCH = 1003;
+    public static final int SUMMARY = 1004;
+    public static final int DESCRIPTION = 1005;
+    public static final int BUILDTIME = 1006;
+    public static final int BUILDHOST = 1007;
+    public static final int SIZE = 1009;
+    public static final int VENDOR = 1011;
+    public static final int LICENSE = 1014;
+    public static final int PACKAGER = 1015;
+    public static final int GROUP = 1016;
+    public static final int URL = 1020;
+    public static final int ARCH = 1022;
+    public static final int FILEMODES = 1030;
+    public static final int FILEFLAGS = 1037;
+    public static final int SOURCERPM = 1044;
+    public static final int ARCHIVESIZE = 1046;
+    public static final int PROVIDENAME = 1047;
+    public static final int REQUIREFLAGS = 1048;
+    public static final int REQUIRENAME = 1049;
+    public static final int REQUIREVERSION = 1050;
+    public static final int CONFLICTFLAGS = 1053;
+    public static final int CONFLICTNAME = 1054;
+    public static final int CONFLICTVERSION = 1055;
+    public static final int CHANGELOGTIME = 1080;
+    public static final int CHANGELOGNAME = 1081;
+    public static final int CHANGELOGTEXT = 1082;
+    public static final int OBSOLETENAME = 1090;
+    public static final int PROVIDEFLAGS = 1112;
+    public static final int PROVIDEVERSION = 1113;
+    public static final int OBSOLETEFLAGS = 1114;
+    public static final int OBSOLETEVERSION = 1115;
+    public static final int DIRINDEXES = 1116;
+    public static final int BASENAMES = 1117;
+    public static final int DIRNAMES = 1118;
+
+    /** Size of the lead, which precedes the signature header. */
+    public static final int LEAD_SIZE = 96;
+    /** Size of a header's preamble (magic, reserved bytes, index entry count, data size). */
+    public static final int PREAMBLE_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int LEAD_MAGIC = 0xedabeedb;
+    private static final int HEADER_MAGIC = 0x8eade801;
+
+    private static final int TYPE_CHAR = 1;
+    private static final int TYPE_INT8 = 2;
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_INT32 = 4;
+    private static final int TYPE_INT64 = 5;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_STRING_ARRAY = 8;
+    private static final int TYPE_I18NSTRING = 9;
+
+    private final Map<Integer, IndexEntry> entries;
+    private final ByteBuffer data;
+    private final long headerStart;
+    private final long headerEnd;
+
+    private RpmHeader(Map<Integer, IndexEntry> entries, ByteBuffer data, long headerStart, long headerEnd) {
+        this.entries = entries;
+        this.data = data;
+        this.headerStart = headerStart;
+        this.headerEnd = headerEnd;
+    }
+
+    /** Read the lead, signature and header from the start of an RPM file; the payload is not read. */
+    public static RpmHeader read(InputStream rpm) throws IOException {
+        DataInputStream in = new DataInputStream(rpm);
+        byte[] lead = new byte[LEAD_SIZE];
+        in.readFully(lead);
+        if (ByteBuffer.wrap(lead).getInt() != LEAD_MAGIC) {
+            throw new IOException("Not an RPM file (bad lead magic)");
+        }
+        // signature header: we only need its size, so skip over it (it is padded to a multiple of 8 bytes)
+        final long signatureSize = readHeaderStructureSize(in);
+        skipFully(in, signatureSize - PREAMBLE_SIZE + padding(signatureSize));
+        final long headerStart = LEAD_SIZE + signatureSize + padding(signatureSize);
+
+        // main header
+        byte[] preamble = new byte[PREAMBLE_SIZE];
+        in.readFully(preamble);
+        ByteBuffer preambleBuffer = ByteBuffer.wrap(preamble);
+        if (preambleBuffer.getInt() != HEADER_MAGIC) {
+            throw new IOException("Not an RPM file (bad header magic)");
+        }
+        preambleBuffer.getInt(); // reserved
+        final int indexCount = preambleBuffer.getInt();
+        final int dataSize = preambleBuffer.getInt();
+        byte[] index = new byte[indexCount * INDEX_ENTRY_SIZE];
+        in.readFully(index);
+        byte[] data = new byte[dataSize];
+        in.readFully(data);
+
+        Map<Integer, IndexEntry> entries = new HashMap<Integer, IndexEntry>();
+        ByteBuffer indexBuffer = ByteBuffer.wrap(index);
+        for (int i = 0; i < indexCount; ++i) {
+            IndexEntry entry = new IndexEntry(indexBuffer.getInt(), indexBuffer.getInt(), indexBuffer.getInt(), indexBuffer.getInt());
+            entries.put(entry.tag, entry);
+        }
+        final long headerEnd = headerStart + PREAMBLE_SIZE + index.length + data.length;
+        return new RpmHeader(entries, ByteBuffer.wrap(data), headerStart, headerEnd);
+    }
+
+    /**
+     * Given the first <code>length</code> bytes of an RPM file, answer how many bytes from the start of the file
+     * {@link #read(InputStream)} needs. The answer is exact once <code>length</code> covers both header preambles;
+     * until then it is the length needed to locate the next preamble, so callers fetching byte ranges should repeat
+     * until the answer no longer exceeds what they have.
+     */
+    public static long requiredPrefixLength(byte[] prefix, int length) throws IOException {
+        if (length < LEAD_SIZE + PREAMBLE_SIZE) {
+            return LEAD_SIZE + PREAMBLE_SIZE;
+        }
+        if (ByteBuffer.wrap(prefix, 0, LEAD_SIZE).getInt() != LEAD_MAGIC) {
+            throw new IOException("Not an RPM file (bad lead magic)");
+        }
+        final long signatureSize = headerStructureSize(ByteBuffer.wrap(prefix, LEAD_SIZE, PREAMBLE_SIZE));
+        final long headerStart = LEAD_SIZE + signatureSize + padding(signatureSize);
+        if (length < headerStart + PREAMBLE_SIZE) {
+            return headerStart + PREAMBLE_SIZE;
+        }
+        return headerStart + headerStructureSize(ByteBuffer.wrap(prefix, (int) headerStart, PREAMBLE_SIZE));
+    }
+
+    /** Offset of the main header within the file. */
+    public long getHeaderStart() {
+        return headerStart;
+    }
+
+    /** Offset of the first byte after the main header (i.e., where the payload starts). */
+    public long getHeaderEnd() {
+        return headerEnd;
+    }
+
+    public boolean hasTag(int tag) {
+        return entries.containsKey(tag);
+    }
+
+    /** Answer a STRING or I18NSTRING tag (the first translation, for the latter); null if absent. */
+    public String getString(int tag) {
+        String[] strings = getStringArray(tag);
+        return strings.length == 0 ? null : strings[0];
+    }
+
+    /** Answer a STRING_ARRAY (or single string) tag; empty if absent. */
+    public String[] getStringArray(int tag) {
+        IndexEntry entry = entries.get(tag);
+        if (entry == null || (entry.type != TYPE_STRING && entry.type != TYPE_STRING_ARRAY && entry.type != TYPE_I18NSTRING)) {
+            return new String[0];
+        }
+        final int count = entry.type == TYPE_STRING ? 1 : entry.count;
+        String[] result = new String[count];
+        int position = entry.offset;
+        for (int i = 0; i < count; ++i) {
+            int end = position;
+            while (data.get(end) != 0) {
+                ++end;
+            }
+            result[i] = decodeUtf8(position, end - position);
+            position = end + 1;
+        }
+        return result;
+    }
+
+    /** Answer an integer tag of any width as longs; empty if absent. */
+    public long[] getNumberArray(int tag) {
+        IndexEntry entry = entries.get(tag);
+        if (entry == null) {
+            return new long[0];
+        }
+        long[] result = new long[entry.count];
+        for (int i = 0; i < entry.count; ++i) {
+            switch (entry.type) {
+                case TYPE_CHAR:
+                case TYPE_INT8:
+                    result[i] = data.get(entry.offset + i) & 0xffL;
+                    break;
+                case TYPE_INT16:
+                    result[i] = data.getShort(entry.offset + i * 2) & 0xffffL;
+                    break;
+                case TYPE_INT32:
+                    result[i] = data.getInt(entry.offset + i * 4) & 0xffffffffL;
+                    break;
+                case TYPE_INT64:
+                    result[i] = data.getLong(entry.offset + i * 8);
+                    break;
+                default:
+                    return new long[0];
+            }
+        }
+        return result;
+    }
+
+    /** Answer the first value of an integer tag, or <code>defaultValue</code> if absent. */
+    public long getNumber(int tag, long defaultValue) {
+        long[] numbers = getNumberArray(tag);
+        return numbers.length == 0 ? defaultValue : numbers[0];
+    }
+
+    private String decodeUtf8(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = data.get(offset + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    /** Read a header preamble and answer the total size of that header structure (preamble, index and data). */
+    private static long readHeaderStructureSize(DataInputStream in) throws IOException {
+        byte[] preamble = new byte[PREAMBLE_SIZE];
+        in.readFully(preamble);
+        return headerStructureSize(ByteBuffer.wrap(preamble));
+    }
+
+    private static long headerStructureSize(ByteBuffer preamble) throws IOException {
+        if (preamble.getInt() != HEADER_MAGIC) {
+            throw new IOException("Not an RPM file (bad header magic)");
+        }
+        preamble.getInt(); // reserved
+        final long indexCount = preamble.getInt() & 0xffffffffL;
+        final long dataSize = preamble.getInt() & 0xffffffffL;
+        return PREAMBLE_SIZE + indexCount * INDEX_ENTRY_SIZE + dataSize;
+    }
+
+    private static long padding(long signatureSize) {
+        return (8 - (signatureSize % 8)) % 8;
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of RPM file");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static final class IndexEntry {
+        private final int tag;
+        private final int type;
+        private final int offset;
+        private final int count;
+
+        private IndexEntry(int tag, int type, int offset, int count) {
+            this.tag = tag;
+            this.type = type;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+/** The fields of a <code>&lt;package&gt;</code> entry in a YUM repository's primary metadata that this plugin uses. */
+public final class YumPackage {
+
+    private final String name;
+    private final String arch;
+    private final String epoch;
+    private final String version;
+    private final String release;
+    private final String checksumType;
+    private final String checksum;
+    private final long packageSize;
+    /** Repo-relative path to the package file. */
+    private final String location;
+
+    public YumPackage(String name, String arch, String epoch, String version, String release,
+                      String checksumType, String checksum, long packageSize, String location) {
+        this.name = name;
+        this.arch = arch;
+        this.epoch = epoch;
+        this.version = version;
+        this.release = release;
+        this.checksumType = checksumType;
+        this.checksum = checksum;
+        this.packageSize = packageSize;
+        this.location = location;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getArch() {
+        return arch;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getRelease() {
+        return release;
+    }
+
+    public String getChecksumType() {
+        return checksumType;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /** Size of the package file in bytes, or -1 if the metadata didn't declare it. */
+    public long getPackageSize() {
+        return packageSize;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    @Override
+    public String toString() {
+        return name + "-" + version + "-" + release + "." + arch + " (" + location + ")";
+    }
+
+}
@@ -0,0 +1,248 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.base.Ticker;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Limits the number of S3 transfer requests (GETs, PUTs, uploads of parts and copies) in flight at the same time, and
+ * adapts the limit to how S3 copes, additive-increase/multiplicative-decrease style: after every round of
+ * <code>limit</code> requests without errors, whose latency stayed healthy and which used at least half of the limit,
+ * the limit is raised by one (doubled while it is still probing for the first time, until the first throttling
+ * response or latency rise); a throttling response ("503 SlowDown" and the like) halves it, at most once per typical
+ * request latency, so that a burst of throttled requests that were all sent at the old limit cuts it just once.
+ * Latency is healthy while its short-term average stays within twice its long-term average; when it rises beyond
+ * that, e.g. because the link is saturated, the limit holds.
+ * <p/>
+ * Requests are limited by a client that {@link #wrap}s the real one; wrap the client below an {@link S3Retrier}, so
+ * that backoff is not spent holding a slot. A GET holds its slot until its content has been read or closed. Threads
+ * wait for a slot, so run transfers on (at least) <code>maxLimit</code> threads to let the limit rise.
+ */
+public final class AdaptiveConcurrencyLimiter {
+
+    private static final Set<String> TRANSFER_METHODS = new HashSet<String>(Arrays.asList(
+        "getObject", "putObject", "uploadPart", "copyObject", "copyPart"));
+    private static final double SHORT_TERM_WEIGHT = 0.2;
+    private static final double LONG_TERM_WEIGHT = 0.02;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    /** Shortest time between two cuts of the limit, for when no request has succeeded yet to measure latency by. */
+    private static final long MIN_DECREASE_INTERVAL_NANOS = 50000000L;
+
+    private enum Outcome { SUCCESS, ERROR, THROTTLED, OTHER }
+
+    private final int maxLimit;
+    private final Ticker ticker;
+    private final Log log;
+    private int limit;
+    private int inFlight;
+    private boolean probing = true;
+    /** Requests completed, whether any of them failed, and the most in flight, since the limit last changed. */
+    private int roundCompleted;
+    private boolean roundFailed;
+    private int roundPeakInFlight;
+    private double shortTermLatency;
+    private double longTermLatency;
+    private long lastDecrease;
+    private long requests;
+    private long decreases;
+    private int peakLimit;
+    private int lowestLimit;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, Log log) {
+        this(initialLimit, maxLimit, Ticker.systemTicker(), log);
+    }
+
+    /** A limiter that measures request latency with <code>ticker</code>. */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, Ticker ticker, Log log) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("invalid concurrency limits: initialLimit=" + initialLimit
+                + ", maxLimit=" + maxLimit);
+        }
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.ticker = ticker;
+        this.log = log;
+        this.peakLimit = initialLimit;
+        this.lowestLimit = initialLimit;
+    }
+
+    /** Answer a client whose transfer requests wait for, and hold, a slot of this limiter. */
+    public AmazonS3 wrap(final AmazonS3 s3Session) {
+        return S3Proxies.wrap(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class || !TRANSFER_METHODS.contains(method.getName())) {
+                    return S3Proxies.invoke(s3Session, method, args);
+                }
+                try {
+                    acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while waiting to send an S3 request", e);
+                }
+                final long start = ticker.read();
+                final Object result;
+                try {
+                    result = S3Proxies.invoke(s3Session, method, args);
+                } catch (Throwable t) {
+                    release(start, classify(t));
+                    throw t;
+                }
+                if (result instanceof S3Object && ((S3Object) result).getObjectContent() != null) {
+                    releaseWhenRead((S3Object) result, start);
+                } else {
+                    release(start, Outcome.SUCCESS);
+                }
+                return result;
+            }
+        });
+    }
+
+    /** Answer the current limit. */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /** Answer the number of requests in flight. */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /** Log how the limit moved. */
+    public synchronized void logSummary() {
+        if (requests == 0) {
+            return;
+        }
+        log.info("Adaptive concurrency: " + requests + " transfer requests, limit " + limit + " of at most " + maxLimit
+            + " at the end (between " + lowestLimit + " and " + peakLimit + "), cut " + decreases
+            + " times on throttling.");
+    }
+
+    private synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        ++inFlight;
+        roundPeakInFlight = Math.max(roundPeakInFlight, inFlight);
+    }
+
+    private synchronized void release(long start, Outcome outcome) {
+        final long now = ticker.read();
+        --inFlight;
+        ++requests;
+        if (outcome == Outcome.THROTTLED) {
+            if (lastDecrease == 0 || now - lastDecrease > Math.max(longTermLatency, MIN_DECREASE_INTERVAL_NANOS)) {
+                limit = Math.max(1, limit / 2);
+                lowestLimit = Math.min(lowestLimit, limit);
+                probing = false;
+                lastDecrease = now;
+                ++decreases;
+                startRound();
+            } else {
+                roundFailed = true; // sent at the old limit, but still no reason to raise the new one
+            }
+        } else if (outcome == Outcome.ERROR) {
+            roundFailed = true;
+            ++roundCompleted;
+        } else if (outcome == Outcome.SUCCESS) {
+            final double latency = now - start;
+            if (longTermLatency == 0) {
+                shortTermLatency = latency;
+                longTermLatency = latency;
+            } else {
+                shortTermLatency += SHORT_TERM_WEIGHT * (latency - shortTermLatency);
+                longTermLatency += LONG_TERM_WEIGHT * (latency - longTermLatency);
+            }
+            ++roundCompleted;
+        }
+        if (roundCompleted >= limit) {
+            final boolean latencyHealthy = shortTermLatency <= LATENCY_TOLERANCE * longTermLatency;
+            if (!roundFailed && latencyHealthy && roundPeakInFlight * 2 >= limit && limit < maxLimit) {
+                limit = probing ? Math.min(maxLimit, limit * 2) : limit + 1;
+                peakLimit = Math.max(peakLimit, limit);
+            }
+            if (!latencyHealthy) {
+                probing = false;
+            }
+            startRound();
+        }
+        notifyAll();
+    }
+
+    private void startRound() {
+        roundCompleted = 0;
+        roundFailed = false;
+        roundPeakInFlight = inFlight;
+    }
+
+    /** Release <code>object</code>'s slot once its content has been read to the end, has failed, or is closed. */
+    private void releaseWhenRead(S3Object object, final long start) {
+        final S3ObjectInputStream content = object.getObjectContent();
+        object.setObjectContent(new S3ObjectInputStream(new FilterInputStream(content) {
+            private boolean released;
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    final int read = super.read();
+                    if (read < 0) {
+                        releaseOnce(Outcome.SUCCESS);
+                    }
+                    return read;
+                } catch (IOException e) {
+                    releaseOnce(Outcome.ERROR);
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    final int read = super.read(b, off, len);
+                    if (read < 0) {
+                        releaseOnce(Outcome.SUCCESS);
+                    }
+                    return read;
+                } catch (IOException e) {
+                    releaseOnce(Outcome.ERROR);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    releaseOnce(Outcome.SUCCESS);
+                }
+            }
+
+            private synchronized void releaseOnce(Outcome outcome) {
+                if (!released) {
+                    released = true;
+                    release(start, outcome);
+                }
+            }
+        }, content.getHttpRequest()));
+    }
+
+    private static Outcome classify(Throwable t) {
+        if (S3Retrier.isThrottling(t)) {
+            return Outcome.THROTTLED;
+        }
+        return S3Retrier.isRetryable(t) ? Outcome.ERROR : Outcome.OTHER;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the aggregate bandwidth of S3 transfers (both directions together) with a token bucket that fills at
+ * <code>bytesPerSecond</code> and holds a second's worth of bytes, so that a goal shares a host's link with other jobs.
+ * Transfers may overdraw the bucket; whoever does so waits until it has filled up again, so the rate holds on average
+ * over a few seconds while single transfers still run at full speed.
+ * <p/>
+ * Transfers are limited by a client that {@link #wrap}s the real one: uploads (whole files and parts) take their size
+ * from the bucket before they are sent, and GETs take what is read from their content as it is read.
+ */
+public final class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+    private final Log log;
+    private double tokens;
+    private long updated = System.nanoTime();
+    private long waitedNanos;
+
+    public BandwidthLimiter(long bytesPerSecond, Log log) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("bandwidth must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.log = log;
+        this.tokens = bytesPerSecond;
+    }
+
+    /** Answer a client whose transfers take their bytes from this limiter's bucket. */
+    public AmazonS3 wrap(final AmazonS3 s3Session) {
+        return S3Proxies.wrap(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return S3Proxies.invoke(s3Session, method, args);
+                }
+                final long bytesOut = getUploadSize(args);
+                if (bytesOut > 0) {
+                    try {
+                        acquire(bytesOut);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new AmazonClientException("Interrupted while waiting for bandwidth", e);
+                    }
+                }
+                final Object result = S3Proxies.invoke(s3Session, method, args);
+                if (result instanceof S3Object && ((S3Object) result).getObjectContent() != null) {
+                    limitContent((S3Object) result);
+                }
+                return result;
+            }
+        });
+    }
+
+    /** Take <code>bytes</code> from the bucket, waiting if that overdraws it. */
+    public void acquire(long bytes) throws InterruptedException {
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - updated) * (double) bytesPerSecond / 1e9);
+            updated = now;
+            tokens -= bytes;
+            wait = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+            waitedNanos += wait;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /** Log how long transfers waited for bandwidth (nothing if they never did). */
+    public synchronized void logSummary() {
+        if (waitedNanos > 0) {
+            log.info("Bandwidth limit of " + bytesPerSecond + " bytes/s: transfers waited "
+                + TimeUnit.NANOSECONDS.toMillis(waitedNanos) + " ms in all.");
+        }
+    }
+
+    private void limitContent(S3Object object) {
+        final S3ObjectInputStream content = object.getObjectContent();
+        object.setObjectContent(new S3ObjectInputStream(new FilterInputStream(content) {
+            @Override
+            public int read() throws IOException {
+                final int read = super.read();
+                if (read >= 0) {
+                    took(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    took(read);
+                }
+                return read;
+            }
+
+            private void took(int bytes) throws InterruptedIOException {
+                try {
+                    acquire(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }, content.getHttpRequest()));
+    }
+
+    private static long getUploadSize(Object[] args) {
+        if (args == null || args.length != 1) {
+            return 0;
+        }
+        if (args[0] instanceof PutObjectRequest) {
+            final PutObjectRequest request = (PutObjectRequest) args[0];
+            return request.getFile() != null
+                ? request.getFile().length()
+                : request.getMetadata() != null ? request.getMetadata().getContentLength() : 0;
+        }
+        return args[0] instanceof UploadPartRequest ? ((UploadPartRequest) args[0]).getPartSize() : 0;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs tasks on a fixed number of worker threads. At most <code>concurrency</code> tasks run at once and at most
+ * <code>concurrency</code> more may wait in the queue; {@link #submit(Callable)} blocks beyond that so callers that
+ * produce work faster than it can be executed (e.g., while walking a large bucket listing) never build up an
+ * unbounded backlog. The first task failure is rethrown by {@link #submit(Callable)} or {@link #awaitCompletion()}.
+ */
+public final class BoundedExecutor {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxPermits;
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+
+    public BoundedExecutor(String name, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+            .setNameFormat("s3repo-" + name + "-%d")
+            .setDaemon(true)
+            .build());
+        this.maxPermits = concurrency * 2; // running + queued
+        this.permits = new Semaphore(maxPermits);
+    }
+
+    /** Submit a task, blocking while the queue is full. */
+    public void submit(final Callable<?> task) throws MojoExecutionException {
+        rethrowFailure();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("interrupted while submitting task", e);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (firstFailure.get() == null) { // don't bother starting new work once something has failed
+                            task.call();
+                        }
+                    } catch (Throwable t) {
+                        firstFailure.compareAndSet(null, t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Wait for all submitted tasks to finish; rethrows the first failure (if any). */
+    public void awaitCompletion() throws MojoExecutionException {
+        try {
+            permits.acquire(maxPermits);
+            permits.release(maxPermits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("interrupted while waiting for tasks", e);
+        }
+        rethrowFailure();
+    }
+
+    /** Stop all worker threads; tasks that have not yet started are discarded. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void rethrowFailure() throws MojoExecutionException {
+        Throwable failure = firstFailure.get();
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof MojoExecutionException) {
+            throw (MojoExecutionException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new MojoExecutionException(failure.getMessage(), failure);
+    }
+
+}
@@ -19,4 +19,37 @@ public final class ExtraFileUtils {
         }
     }
 
+    /** Like {@link #createOrCleanDirectory(File)}, but keep the file <code>keep</code> (under <code>directory</code>). */
+    public static void createOrCleanDirectory(File directory, File keep) throws MojoExecutionException {
+        if (!keep.exists()) {
+            createOrCleanDirectory(directory);
+            return;
+        }
+        try {
+            cleanDirectoryExcept(directory, keep.getCanonicalFile());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to clean or create directory: " + directory, e);
+        }
+    }
+
+    private static void cleanDirectoryExcept(File directory, File keep) throws IOException {
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Failed to list " + directory);
+        }
+        for (File child : children) {
+            final File canonicalChild = child.getCanonicalFile();
+            if (canonicalChild.equals(keep)) {
+                continue;
+            }
+            if (child.isDirectory() && keep.getPath().startsWith(canonicalChild.getPath() + File.separator)) {
+                cleanDirectoryExcept(child, keep);
+            } else if (child.isDirectory()) {
+                FileUtils.deleteDirectory(child);
+            } else if (!child.delete()) {
+                throw new IOException("Failed to delete " + child);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,258 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates over every object of a (possibly paginated) listing without holding the whole listing in memory. Pages are
+ * fetched in the background while the caller works through earlier ones, but never more than
+ * <code>prefetchPages</code> pages ahead of it. A listing failure is rethrown by {@link #hasNext()}/{@link #next()}.
+ * <p/>
+ * A listing may be partitioned by "/"-delimited common prefixes (see
+ * {@link S3Utils#iterateAllObjects(AmazonS3, ListObjectsRequest, int, int, int)}); the partitions' pages are then
+ * handed over as they arrive, so objects are not in key order.
+ * <p/>
+ * Close the iterator if you stop before the end, so that the background threads stop fetching.
+ */
+public final class ObjectListingIterator implements Iterator<S3ObjectSummary>, Closeable {
+
+    /** Queued after the last page; an identity marker, so it must not be shared with a real (empty) page. */
+    private static final List<S3ObjectSummary> END = new ArrayList<S3ObjectSummary>(0);
+
+    private final BlockingQueue<Object> pages; // List<S3ObjectSummary> pages, then END or the Throwable that ended the listing
+    private final Thread fetcher;
+    private volatile boolean closed;
+    private Iterator<S3ObjectSummary> current = Collections.<S3ObjectSummary>emptyList().iterator();
+    private boolean exhausted;
+
+    ObjectListingIterator(final AmazonS3 s3Session, final ListObjectsRequest request, int prefetchPages,
+                          final int concurrency, final int maxDepth) {
+        if (prefetchPages < 1) {
+            throw new IllegalArgumentException("prefetchPages must be positive: " + prefetchPages);
+        }
+        this.pages = new ArrayBlockingQueue<Object>(prefetchPages);
+        this.fetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (concurrency < 2 || maxDepth < 1 || request.getDelimiter() != null) {
+                        fetchAll(s3Session, request);
+                    } else {
+                        new ParallelListing(s3Session, request, concurrency, maxDepth).run();
+                    }
+                    enqueue(END);
+                } catch (Throwable t) {
+                    if (!closed) {
+                        enqueue(t);
+                    }
+                }
+            }
+        }, "s3repo-list-prefetch");
+        this.fetcher.setDaemon(true);
+        this.fetcher.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            final Object page = take();
+            if (page == END) {
+                exhausted = true;
+                return false;
+            }
+            if (page instanceof Throwable) {
+                exhausted = true;
+                if (page instanceof RuntimeException) {
+                    throw (RuntimeException) page;
+                }
+                if (page instanceof Error) {
+                    throw (Error) page;
+                }
+                throw new AmazonClientException("failed to list objects", (Throwable) page);
+            }
+            @SuppressWarnings("unchecked")
+            final List<S3ObjectSummary> summaries = (List<S3ObjectSummary>) page;
+            current = summaries.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public S3ObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        exhausted = true;
+        fetcher.interrupt();
+        pages.clear();
+    }
+
+    private Object take() {
+        try {
+            return pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("interrupted while listing objects", e);
+        }
+    }
+
+    /** Page through <code>request</code>; answer false if the iterator was closed before the end. */
+    private boolean fetchAll(AmazonS3 s3Session, ListObjectsRequest request) {
+        ObjectListing listing = s3Session.listObjects(request);
+        while (enqueue(listing.getObjectSummaries())) {
+            if (!listing.isTruncated()) {
+                return true;
+            }
+            listing = s3Session.listNextBatchOfObjects(listing);
+        }
+        return false;
+    }
+
+    /** Wait for room in the queue; answer false (without queueing) once the iterator is closed. */
+    private boolean enqueue(Object page) {
+        try {
+            while (!closed) {
+                if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+        return false;
+    }
+
+    /**
+     * One prefix-partitioned listing: common prefixes are discovered with delimiter listings down to
+     * <code>maxDepth</code> levels, and each partition task queues the pages it lists (waiting for room, like a serial
+     * listing) as well as tasks for the partitions it discovers.
+     */
+    private final class ParallelListing {
+        private final AmazonS3 s3Session;
+        private final ListObjectsRequest request;
+        private final int maxDepth;
+        private final ExecutorService executor;
+        private final Queue<Future<?>> tasks = new ConcurrentLinkedQueue<Future<?>>();
+
+        private ParallelListing(AmazonS3 s3Session, ListObjectsRequest request, int concurrency, int maxDepth) {
+            this.s3Session = s3Session;
+            this.request = request;
+            this.maxDepth = maxDepth;
+            this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                .setNameFormat("s3repo-list-%d")
+                .setDaemon(true)
+                .build());
+        }
+
+        private void run() {
+            try {
+                submitPartition(StringUtils.defaultString(request.getPrefix()), 0);
+                // a task queues its sub-partitions before it completes, so once the queue is drained everything is done
+                Future<?> task;
+                while ((task = tasks.poll()) != null) {
+                    await(task);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void submitPartition(final String prefix, final int depth) {
+            tasks.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // list this level with a delimiter: objects directly under prefix, plus the next level's prefixes
+                    ObjectListing listing = s3Session.listObjects(newRequest(prefix).withDelimiter("/"));
+                    while (true) {
+                        if (!listing.getObjectSummaries().isEmpty() && !enqueue(listing.getObjectSummaries())) {
+                            return;
+                        }
+                        for (String commonPrefix : listing.getCommonPrefixes()) {
+                            if (depth + 1 < maxDepth) {
+                                submitPartition(commonPrefix, depth + 1);
+                            } else {
+                                submitLeaf(commonPrefix);
+                            }
+                        }
+                        if (!listing.isTruncated()) {
+                            break;
+                        }
+                        listing = s3Session.listNextBatchOfObjects(listing);
+                    }
+                }
+            }));
+        }
+
+        private void submitLeaf(final String prefix) {
+            tasks.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetchAll(s3Session, newRequest(prefix));
+                }
+            }));
+        }
+
+        private ListObjectsRequest newRequest(String prefix) {
+            ListObjectsRequest partition = new ListObjectsRequest()
+                .withBucketName(request.getBucketName())
+                .withPrefix(prefix);
+            if (request.getMaxKeys() != null) {
+                partition.setMaxKeys(request.getMaxKeys());
+            }
+            return partition;
+        }
+
+        private void await(Future<?> task) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("interrupted while listing objects", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new AmazonClientException("failed to list objects", e.getCause());
+            }
+        }
+    }
+
+}
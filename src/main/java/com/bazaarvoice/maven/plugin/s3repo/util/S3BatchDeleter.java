@@ -0,0 +1,120 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Deletes objects from one bucket with multi-object delete requests of up to {@link #MAX_KEYS_PER_REQUEST} keys, running
+ * up to <code>concurrency</code> requests at a time. A key that S3 fails to delete does not fail the rest of its batch;
+ * all such keys are logged with S3's reason and reported together by {@link #awaitCompletion()}.
+ */
+public final class S3BatchDeleter {
+
+    /** The most keys S3 accepts in one multi-object delete request. */
+    public static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    private final AmazonS3 s3Session;
+    private final String bucket;
+    private final Log log;
+    private final BoundedExecutor executor;
+    private List<String> batch = new ArrayList<String>();
+    private final Set<String> deletedKeys = Collections.synchronizedSet(new HashSet<String>());
+    /** Reasons for keys that could not be deleted, by key. */
+    private final Map<String, String> failedKeys = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+    public S3BatchDeleter(AmazonS3 s3Session, String bucket, int concurrency, Log log) {
+        this.s3Session = s3Session;
+        this.bucket = bucket;
+        this.log = log;
+        this.executor = new BoundedExecutor("delete", concurrency);
+    }
+
+    /** Queue <code>key</code> for deletion; a full batch is sent right away. */
+    public void delete(String key) throws MojoExecutionException {
+        batch.add(key);
+        if (batch.size() == MAX_KEYS_PER_REQUEST) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Send any partial batch and wait for all requests to finish. Fails if any key could not be deleted (after every
+     * other key has been tried); {@link #getDeletedKeys()} tells which ones were.
+     */
+    public void awaitCompletion() throws MojoExecutionException {
+        if (!batch.isEmpty()) {
+            submitBatch();
+        }
+        executor.awaitCompletion();
+        if (!failedKeys.isEmpty()) {
+            throw new MojoExecutionException("failed to delete " + failedKeys.size() + " object(s) from s3://" + bucket
+                + ", e.g. " + failedKeys.keySet().iterator().next() + " (" + failedKeys.values().iterator().next() + ")");
+        }
+    }
+
+    /** Answer the keys that were deleted so far. */
+    public Set<String> getDeletedKeys() {
+        synchronized (deletedKeys) {
+            return new HashSet<String>(deletedKeys);
+        }
+    }
+
+    /** Stop worker threads; batches that have not yet been sent are discarded. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void submitBatch() throws MojoExecutionException {
+        final List<String> keys = batch;
+        batch = new ArrayList<String>();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws MojoExecutionException {
+                deleteBatch(keys);
+                return null;
+            }
+        });
+    }
+
+    private void deleteBatch(List<String> keys) throws MojoExecutionException {
+        final DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withQuiet(true); // only errors are reported
+        final List<DeleteObjectsRequest.KeyVersion> keyVersions = new ArrayList<DeleteObjectsRequest.KeyVersion>(keys.size());
+        for (String key : keys) {
+            keyVersions.add(new DeleteObjectsRequest.KeyVersion(key));
+        }
+        request.setKeys(keyVersions);
+        final Set<String> failed = new HashSet<String>();
+        try {
+            s3Session.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                final String reason = error.getCode() + ": " + error.getMessage();
+                log.error("Failed to delete s3://" + bucket + "/" + error.getKey() + " (" + reason + ")");
+                failedKeys.put(error.getKey(), reason);
+                failed.add(error.getKey());
+            }
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to delete " + keys.size() + " object(s) from s3://" + bucket
+                + " (first key: " + keys.get(0) + ")", e);
+        }
+        for (String key : keys) {
+            if (!failed.contains(key)) {
+                deletedKeys.add(key);
+            }
+        }
+    }
+
+}
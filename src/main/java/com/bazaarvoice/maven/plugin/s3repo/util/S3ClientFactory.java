@@ -0,0 +1,184 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+
+import java.util.Arrays;
+
+/**
+ * Creates {@link AmazonS3Client}s with a tunable connection pool and transport settings. A client is thread-safe and
+ * holds its pool of (kept-alive) connections, so the goals share one client per build: {@link #getClient} hands out the
+ * client it created earlier in the same Maven session for an equal configuration.
+ * <p/>
+ * A configuration value of -1 (or null) leaves the SDK's default in place.
+ */
+public final class S3ClientFactory {
+
+    private String accessKey;
+    private String secretKey;
+    private int maxConnections = -1;
+    private long connectionTTL = -1;
+    private int socketTimeout = -1;
+    private int connectionTimeout = -1;
+    private boolean tcpKeepAlive;
+    private int maxErrorRetry = -1;
+    private String region;
+    private String endpoint;
+    private boolean pathStyleAccess;
+
+    /** Static credentials; if neither is given the default provider chain (environment, profile, instance role) is used. */
+    public S3ClientFactory withCredentials(String accessKey, String secretKey) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        return this;
+    }
+
+    /** Size of the connection pool; should be at least the total number of concurrent requests. */
+    public S3ClientFactory withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /** Milliseconds after which a pooled connection is no longer reused. */
+    public S3ClientFactory withConnectionTTL(long connectionTTL) {
+        this.connectionTTL = connectionTTL;
+        return this;
+    }
+
+    /** Milliseconds to wait for data on an open connection. */
+    public S3ClientFactory withSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+        return this;
+    }
+
+    /** Milliseconds to wait for a connection to be established. */
+    public S3ClientFactory withConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        return this;
+    }
+
+    public S3ClientFactory withTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+        return this;
+    }
+
+    /** How many times the SDK retries a request that failed with a retryable error. */
+    public S3ClientFactory withMaxErrorRetry(int maxErrorRetry) {
+        this.maxErrorRetry = maxErrorRetry;
+        return this;
+    }
+
+    /** Region name, e.g. "us-east-1". */
+    public S3ClientFactory withRegion(String region) {
+        this.region = region;
+        return this;
+    }
+
+    /** Endpoint of an S3-compatible service (or of a specific S3 endpoint); overrides the region's endpoint. */
+    public S3ClientFactory withEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        return this;
+    }
+
+    /** Address buckets as "endpoint/bucket" instead of "bucket.endpoint" (needed by most S3-compatible services). */
+    public S3ClientFactory withPathStyleAccess(boolean pathStyleAccess) {
+        this.pathStyleAccess = pathStyleAccess;
+        return this;
+    }
+
+    /**
+     * Answer the client created earlier in <code>session</code> with an equal configuration, or create (and remember)
+     * one. Without a session a new client is created each time.
+     */
+    public AmazonS3 getClient(RepositorySystemSession session) throws MojoExecutionException {
+        if (session == null) {
+            return newClient();
+        }
+        final SessionData data = session.getData();
+        final Object key = new SessionKey(this);
+        while (true) {
+            final Object existing = data.get(key);
+            if (existing != null) {
+                return (AmazonS3) existing;
+            }
+            final AmazonS3Client client = newClient();
+            if (data.set(key, null, client)) {
+                return client;
+            }
+            client.shutdown(); // another goal (parallel build) was faster
+        }
+    }
+
+    /** Create a new client with this configuration. */
+    public AmazonS3Client newClient() throws MojoExecutionException {
+        final ClientConfiguration configuration = new ClientConfiguration();
+        if (maxConnections > 0) {
+            configuration.setMaxConnections(maxConnections);
+        }
+        if (connectionTTL >= 0) {
+            configuration.setConnectionTTL(connectionTTL);
+        }
+        if (socketTimeout >= 0) {
+            configuration.setSocketTimeout(socketTimeout);
+        }
+        if (connectionTimeout >= 0) {
+            configuration.setConnectionTimeout(connectionTimeout);
+        }
+        configuration.setUseTcpKeepAlive(tcpKeepAlive);
+        if (maxErrorRetry >= 0) {
+            configuration.setMaxErrorRetry(maxErrorRetry);
+        }
+        final AWSCredentialsProvider credentials = accessKey != null || secretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        final AmazonS3Client client = new AmazonS3Client(credentials, configuration);
+        if (region != null && !region.isEmpty()) {
+            try {
+                client.setRegion(Region.getRegion(Regions.fromName(region)));
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException("unknown region: " + region, e);
+            }
+        }
+        if (endpoint != null && !endpoint.isEmpty()) {
+            client.setEndpoint(endpoint);
+        }
+        if (pathStyleAccess) {
+            client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        }
+        return client;
+    }
+
+    /** Identifies a configuration in {@link SessionData} (a snapshot, so that later changes to the factory don't matter). */
+    private static final class SessionKey {
+        private final Object[] values;
+
+        private SessionKey(S3ClientFactory factory) {
+            this.values = new Object[]{
+                S3ClientFactory.class, factory.accessKey, factory.secretKey, factory.maxConnections,
+                factory.connectionTTL, factory.socketTimeout, factory.connectionTimeout, factory.tcpKeepAlive,
+                factory.maxErrorRetry, factory.region, factory.endpoint, factory.pathStyleAccess};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SessionKey && Arrays.equals(values, ((SessionKey) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies objects server-side (nothing passes through this machine), up to <code>concurrency</code> requests at a time.
+ * Objects of at least <code>multipartThreshold</code> bytes (and always those over the 5 GB limit of a single copy
+ * request) are copied with a multipart upload whose parts of <code>partSize</code> bytes are copied concurrently.
+ * <p/>
+ * Every copy is written with {@link CannedAccessControlList#BucketOwnerFullControl}, like {@link S3Uploader}'s uploads.
+ */
+public final class S3Copier {
+
+    /** S3 rejects single-request copies of larger objects. */
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final AmazonS3 s3Session;
+    private final long partSize;
+    private final long multipartThreshold;
+    private final BoundedExecutor executor;
+    /** ETags of completed copies, by target key. */
+    private final Map<String, String> copiedETags = Collections.synchronizedMap(new HashMap<String, String>());
+    private final List<MultipartCopy> multipartCopies = new ArrayList<MultipartCopy>();
+
+    public S3Copier(AmazonS3 s3Session, int concurrency, long partSize, long multipartThreshold) {
+        if (partSize < 5 * 1024 * 1024 || partSize > MAX_SINGLE_COPY_SIZE) {
+            throw new IllegalArgumentException("part size must be between 5 MB and 5 GB: " + partSize);
+        }
+        this.s3Session = s3Session;
+        this.partSize = partSize;
+        this.multipartThreshold = Math.min(multipartThreshold, MAX_SINGLE_COPY_SIZE + 1);
+        this.executor = new BoundedExecutor("copy", concurrency);
+    }
+
+    /**
+     * Start copying <code>sourceBucket/sourceKey</code> to <code>targetBucket/targetKey</code>; blocks while too many
+     * requests are pending. <code>size</code> is the size of the source object, or -1 if it is not known (it is then
+     * looked up first).
+     */
+    public void copy(final String sourceBucket, final String sourceKey, final String targetBucket, final String targetKey, long size)
+            throws MojoExecutionException {
+        ObjectMetadata sourceMetadata = null;
+        try {
+            if (size < 0) {
+                sourceMetadata = s3Session.getObjectMetadata(sourceBucket, sourceKey);
+                size = sourceMetadata.getContentLength();
+            }
+            if (size < multipartThreshold) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        copiedETags.put(targetKey, s3Session.copyObject(new CopyObjectRequest(sourceBucket, sourceKey, targetBucket, targetKey)
+                            .withCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl)).getETag());
+                        return null;
+                    }
+                });
+                return;
+            }
+            if (sourceMetadata == null) {
+                sourceMetadata = s3Session.getObjectMetadata(sourceBucket, sourceKey);
+            }
+            startMultipartCopy(sourceBucket, sourceKey, targetBucket, targetKey, sourceMetadata);
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to copy s3://" + sourceBucket + "/" + sourceKey
+                + " to s3://" + targetBucket + "/" + targetKey, e);
+        }
+    }
+
+    /** Wait for all started copies to finish; fails on the first copy that did not succeed. */
+    public void awaitCompletion() throws MojoExecutionException {
+        try {
+            executor.awaitCompletion();
+        } catch (AmazonClientException e) {
+            throw new MojoExecutionException("failed to copy objects in s3", e);
+        }
+    }
+
+    /** Answer the ETag of each copy that has completed so far, by target key. */
+    public Map<String, String> getCopiedETags() {
+        synchronized (copiedETags) {
+            return new HashMap<String, String>(copiedETags);
+        }
+    }
+
+    /**
+     * Stop worker threads; copies that have not yet started are discarded and multipart copies that have not
+     * completed (because a copy failed) are aborted.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        abortIncompleteMultipartCopies();
+    }
+
+    private void startMultipartCopy(String sourceBucket, String sourceKey, String targetBucket, String targetKey,
+                                    ObjectMetadata sourceMetadata) throws MojoExecutionException {
+        // unlike a single-request copy, a multipart upload doesn't take the source object's metadata along
+        final ObjectMetadata targetMetadata = new ObjectMetadata();
+        targetMetadata.setUserMetadata(sourceMetadata.getUserMetadata());
+        if (sourceMetadata.getContentType() != null) {
+            targetMetadata.setContentType(sourceMetadata.getContentType());
+        }
+        if (sourceMetadata.getContentEncoding() != null) {
+            targetMetadata.setContentEncoding(sourceMetadata.getContentEncoding());
+        }
+        if (sourceMetadata.getCacheControl() != null) {
+            targetMetadata.setCacheControl(sourceMetadata.getCacheControl());
+        }
+        if (sourceMetadata.getContentDisposition() != null) {
+            targetMetadata.setContentDisposition(sourceMetadata.getContentDisposition());
+        }
+        final String uploadId = s3Session.initiateMultipartUpload(new InitiateMultipartUploadRequest(targetBucket, targetKey, targetMetadata)
+            .withCannedACL(CannedAccessControlList.BucketOwnerFullControl)).getUploadId();
+        final long size = sourceMetadata.getContentLength();
+        final int partCount = (int) ((size + partSize - 1) / partSize);
+        final MultipartCopy multipartCopy = new MultipartCopy(targetBucket, targetKey, uploadId, partCount);
+        multipartCopies.add(multipartCopy);
+        for (int i = 0; i < partCount; ++i) {
+            final CopyPartRequest request = new CopyPartRequest()
+                .withSourceBucketName(sourceBucket)
+                .withSourceKey(sourceKey)
+                .withDestinationBucketName(targetBucket)
+                .withDestinationKey(targetKey)
+                .withUploadId(uploadId)
+                .withPartNumber(i + 1)
+                .withFirstByte(i * partSize)
+                .withLastByte(Math.min(size, (i + 1) * partSize) - 1)
+                // every part must come from the same version of the source
+                .withMatchingETagConstraint(sourceMetadata.getETag());
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    final CopyPartResult result = s3Session.copyPart(request);
+                    if (result == null) { // the ETag constraint wasn't met
+                        throw new AmazonClientException("s3://" + request.getSourceBucketName() + "/"
+                            + request.getSourceKey() + " changed while it was being copied");
+                    }
+                    multipartCopy.partCopied(result.getPartETag());
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void abortIncompleteMultipartCopies() {
+        for (MultipartCopy multipartCopy : multipartCopies) {
+            if (!multipartCopy.isCompleted()) {
+                try {
+                    s3Session.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        multipartCopy.bucket, multipartCopy.key, multipartCopy.uploadId));
+                } catch (AmazonClientException e) {
+                    // best effort; an incomplete upload can also be removed by a bucket lifecycle rule
+                }
+            }
+        }
+    }
+
+    /** One multipart copy; the part that is copied last completes it. */
+    private final class MultipartCopy {
+        private final String bucket;
+        private final String key;
+        private final String uploadId;
+        private final PartETag[] parts;
+        private final AtomicInteger remainingParts;
+        private volatile boolean completed;
+
+        private MultipartCopy(String bucket, String key, String uploadId, int partCount) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.parts = new PartETag[partCount];
+            this.remainingParts = new AtomicInteger(partCount);
+        }
+
+        private void partCopied(PartETag part) {
+            synchronized (parts) {
+                parts[part.getPartNumber() - 1] = part;
+            }
+            if (remainingParts.decrementAndGet() == 0) {
+                final List<PartETag> partETags;
+                synchronized (parts) {
+                    partETags = new ArrayList<PartETag>(Arrays.asList(parts));
+                }
+                copiedETags.put(key, s3Session.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getETag());
+                completed = true;
+            }
+        }
+
+        private boolean isCompleted() {
+            return completed;
+        }
+    }
+
+}
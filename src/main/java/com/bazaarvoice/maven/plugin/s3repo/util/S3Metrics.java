@@ -0,0 +1,253 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the phases of a goal (e.g. "download", "createrepo", "upload") and counts, per phase, the S3 requests by type,
+ * the bytes read from and written to S3, and the objects read (GETs) and written (PUTs and completed multipart uploads).
+ * Requests are counted by a client that {@link #wrap}s the real one, so every request is counted, retries included, and
+ * attributed to the phase that was current when it was made. Phases run one after the other; a phase that is started
+ * again adds to its earlier totals.
+ * <p/>
+ * {@link #logSummary()} logs a table of the phases and {@link #writeJson} writes the same numbers, plus the requests by
+ * type, as JSON for tools that track them across builds.
+ */
+public final class S3Metrics {
+
+    private final String goal;
+    private final Log log;
+    private final long startTime = System.currentTimeMillis();
+    /** Phases by name, in the order in which they were first started. */
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private volatile Phase currentPhase;
+    private long currentPhaseStartTime;
+    private long endTime;
+
+    public S3Metrics(String goal, Log log) {
+        this.goal = goal;
+        this.log = log;
+    }
+
+    /** Answer a client that counts every call of <code>s3Session</code> against the current phase. */
+    public AmazonS3 wrap(final AmazonS3 s3Session) {
+        return S3Proxies.wrap(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return S3Proxies.invoke(s3Session, method, args);
+                }
+                final Phase phase = getCurrentPhase();
+                phase.countRequest(method.getName());
+                if (args != null && args.length == 1 && args[0] instanceof PutObjectRequest) {
+                    final PutObjectRequest request = (PutObjectRequest) args[0];
+                    phase.bytesOut.addAndGet(request.getFile() != null
+                        ? request.getFile().length()
+                        : request.getMetadata() != null ? request.getMetadata().getContentLength() : 0);
+                } else if (args != null && args.length == 1 && args[0] instanceof UploadPartRequest) {
+                    phase.bytesOut.addAndGet(((UploadPartRequest) args[0]).getPartSize());
+                }
+                final Object result = S3Proxies.invoke(s3Session, method, args);
+                if (method.getName().equals("putObject") || method.getName().equals("completeMultipartUpload")) {
+                    phase.filesOut.incrementAndGet();
+                } else if (result instanceof S3Object) {
+                    phase.filesIn.incrementAndGet();
+                    countContent((S3Object) result, phase);
+                }
+                return result;
+            }
+        });
+    }
+
+    /** End the current phase (if any) and start <code>name</code>. */
+    public synchronized void startPhase(String name) {
+        endPhase();
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        currentPhase = phase;
+        currentPhaseStartTime = System.currentTimeMillis();
+    }
+
+    /** End the current phase; requests made until the next phase starts are counted against "other". */
+    public synchronized void endPhase() {
+        final long now = System.currentTimeMillis();
+        if (currentPhase != null) {
+            currentPhase.millis.addAndGet(now - currentPhaseStartTime);
+            currentPhase = null;
+        }
+        endTime = now;
+    }
+
+    /** Log a table of the phases. */
+    public void logSummary() {
+        final List<Phase> snapshot = getPhases();
+        log.info("Phase summary (" + goal + ", " + getTotalMillis() + " ms in all):");
+        log.info(String.format("  %-24s %10s %9s %14s %14s %9s %9s",
+            "phase", "time (ms)", "requests", "bytes in", "bytes out", "files in", "files out"));
+        for (Phase phase : snapshot) {
+            log.info(String.format("  %-24s %10d %9d %14d %14d %9d %9d", phase.name, phase.millis.get(),
+                phase.getRequestCount(), phase.bytesIn.get(), phase.bytesOut.get(), phase.filesIn.get(), phase.filesOut.get()));
+        }
+    }
+
+    /** Write the metrics of every phase to <code>file</code> as JSON. */
+    public void writeJson(File file) throws IOException {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"goal\": ").append(quote(goal)).append(",\n");
+        json.append("  \"startTime\": ").append(startTime).append(",\n");
+        json.append("  \"totalMillis\": ").append(getTotalMillis()).append(",\n");
+        json.append("  \"phases\": [");
+        String separator = "\n";
+        for (Phase phase : getPhases()) {
+            json.append(separator);
+            json.append("    {\n");
+            json.append("      \"name\": ").append(quote(phase.name)).append(",\n");
+            json.append("      \"millis\": ").append(phase.millis.get()).append(",\n");
+            json.append("      \"requests\": {");
+            String requestSeparator = "";
+            for (Map.Entry<String, Long> requests : phase.getRequests().entrySet()) {
+                json.append(requestSeparator).append(quote(requests.getKey())).append(": ").append(requests.getValue());
+                requestSeparator = ", ";
+            }
+            json.append("},\n");
+            json.append("      \"bytesIn\": ").append(phase.bytesIn.get()).append(",\n");
+            json.append("      \"bytesOut\": ").append(phase.bytesOut.get()).append(",\n");
+            json.append("      \"filesIn\": ").append(phase.filesIn.get()).append(",\n");
+            json.append("      \"filesOut\": ").append(phase.filesOut.get()).append("\n");
+            json.append("    }");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            ExtraIOUtils.closeQuietly(writer);
+        }
+    }
+
+    private synchronized Phase getCurrentPhase() {
+        if (currentPhase != null) {
+            return currentPhase;
+        }
+        Phase other = phases.get("other");
+        if (other == null) {
+            other = new Phase("other");
+            phases.put("other", other);
+        }
+        return other;
+    }
+
+    private synchronized List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases.values());
+    }
+
+    private synchronized long getTotalMillis() {
+        return (currentPhase != null ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /** Count the bytes read from <code>object</code>'s content against <code>phase</code>. */
+    private static void countContent(S3Object object, final Phase phase) {
+        final S3ObjectInputStream content = object.getObjectContent();
+        if (content == null) {
+            return;
+        }
+        object.setObjectContent(new S3ObjectInputStream(new CountingInputStream(content) {
+            @Override
+            protected synchronized void afterRead(int n) {
+                super.afterRead(n);
+                if (n > 0) {
+                    phase.bytesIn.addAndGet(n);
+                }
+            }
+        }, content.getHttpRequest()));
+    }
+
+    private static String quote(String value) {
+        final StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final AtomicLong millis = new AtomicLong();
+        /** Requests by type (the name of the {@link AmazonS3} method). */
+        private final Map<String, AtomicLong> requests = new TreeMap<String, AtomicLong>();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong filesIn = new AtomicLong();
+        private final AtomicLong filesOut = new AtomicLong();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        private void countRequest(String type) {
+            AtomicLong count;
+            synchronized (requests) {
+                count = requests.get(type);
+                if (count == null) {
+                    count = new AtomicLong();
+                    requests.put(type, count);
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        private Map<String, Long> getRequests() {
+            final Map<String, Long> snapshot = new TreeMap<String, Long>();
+            synchronized (requests) {
+                for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+                    snapshot.put(entry.getKey(), entry.getValue().get());
+                }
+            }
+            return snapshot;
+        }
+
+        private long getRequestCount() {
+            long count = 0;
+            for (Long one : getRequests().values()) {
+                count += one;
+            }
+            return count;
+        }
+    }
+
+}
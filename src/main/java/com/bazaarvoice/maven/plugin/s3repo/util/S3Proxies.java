@@ -0,0 +1,29 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/** Plumbing of the clients that wrap an {@link AmazonS3} client (see {@link S3Retrier}, {@link S3Metrics}...). */
+final class S3Proxies {
+
+    private S3Proxies() {}
+
+    /** Answer a client whose every call is handled by <code>handler</code>. */
+    static AmazonS3 wrap(InvocationHandler handler) {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, handler);
+    }
+
+    /** Call <code>method</code> of <code>s3Session</code>, rethrowing whatever it throws as is. */
+    static Object invoke(AmazonS3 s3Session, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(s3Session, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
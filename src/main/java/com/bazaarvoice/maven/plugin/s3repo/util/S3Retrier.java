@@ -0,0 +1,267 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.maven.plugin.logging.Log;
+
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries S3 operations that fail with a retryable error (throttling, 5xx responses, timeouts and broken connections)
+ * with capped exponential backoff and full jitter: before retry <i>n</i> it sleeps a random time of up to
+ * <code>min(maxDelay, baseDelay * 2^(n-1))</code>, and at least half of that after a throttling response.
+ * <p/>
+ * Each operation is retried at most <code>maxRetries</code> times, and each kind of operation (e.g. "putObject",
+ * "download") may be retried at most <code>retryBudget</code> times in all; once a kind's budget is spent its
+ * operations fail on their first error, so that a run against a failing S3 fails fast instead of backing off for hours.
+ * <p/>
+ * Use {@link #wrap} to retry every call of an {@link AmazonS3} client and {@link #call} for operations that span more
+ * than one call (e.g. a GET and reading its content). Calls of a wrapped client made within {@link #call} are not
+ * retried on their own; the enclosing operation is.
+ */
+public final class S3Retrier {
+
+    /** A retryable operation. */
+    public interface Task<T, E extends Throwable> {
+        T run() throws E;
+    }
+
+    private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+        "SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded", "TooManyRequests"));
+    private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<String>(Arrays.asList(
+        "InternalError", "ServiceUnavailable", "RequestTimeout", "OperationAborted"));
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int retryBudget;
+    private final Log log;
+    private final Random random = new Random();
+    private final ThreadLocal<Boolean> inOperation = new ThreadLocal<Boolean>();
+    /** Statistics by kind of operation. */
+    private final Map<String, Stats> stats = new TreeMap<String, Stats>();
+
+    public S3Retrier(int maxRetries, long baseDelay, long maxDelay, int retryBudget, Log log) {
+        if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay || retryBudget < 0) {
+            throw new IllegalArgumentException("invalid retry settings: maxRetries=" + maxRetries + ", baseDelay="
+                + baseDelay + ", maxDelay=" + maxDelay + ", retryBudget=" + retryBudget);
+        }
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryBudget = retryBudget;
+        this.log = log;
+    }
+
+    /** Answer a client whose every call is retried as operation "&lt;method name&gt;". */
+    public AmazonS3 wrap(final AmazonS3 s3Session) {
+        return S3Proxies.wrap(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class || Boolean.TRUE.equals(inOperation.get())) {
+                    return S3Proxies.invoke(s3Session, method, args);
+                }
+                return call(method.getName(), describe(args), new Task<Object, Throwable>() {
+                    @Override
+                    public Object run() throws Throwable {
+                        return S3Proxies.invoke(s3Session, method, args);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Run <code>task</code>, retrying it after retryable errors; <code>target</code> (e.g. the object's key) is only
+     * used in log messages. The last error is rethrown once the task is out of retries.
+     */
+    public <T, E extends Throwable> T call(String operation, String target, Task<T, E> task) throws E {
+        final Stats operationStats = getStats(operation);
+        operationStats.calls.incrementAndGet();
+        final Boolean outerOperation = inOperation.get();
+        inOperation.set(Boolean.TRUE);
+        try {
+            for (int retry = 1; ; ++retry) {
+                final T result;
+                try {
+                    result = task.run();
+                } catch (Throwable t) {
+                    if (!isRetryable(t) || Thread.currentThread().isInterrupted()) {
+                        throw rethrow(t, task);
+                    }
+                    if (retry > maxRetries) {
+                        operationStats.exhausted.incrementAndGet();
+                        throw rethrow(t, task);
+                    }
+                    if (operationStats.retries.incrementAndGet() > retryBudget) {
+                        operationStats.retries.decrementAndGet();
+                        operationStats.overBudget.incrementAndGet();
+                        throw rethrow(t, task);
+                    }
+                    final long delay = backoff(retry, isThrottling(t));
+                    operationStats.backoff.addAndGet(delay);
+                    log.warn("Retrying " + operation + (target == null ? "" : " of " + target) + " in " + delay
+                        + " ms (retry " + retry + " of " + maxRetries + "): " + t);
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw rethrow(t, task);
+                    }
+                    continue;
+                }
+                return result;
+            }
+        } finally {
+            inOperation.set(outerOperation);
+        }
+    }
+
+    /** Log how many operations of each kind were retried (nothing if none were). */
+    public void logSummary() {
+        final Map<String, Stats> snapshot;
+        synchronized (stats) {
+            snapshot = new TreeMap<String, Stats>(stats);
+        }
+        long totalRetries = 0;
+        for (Stats one : snapshot.values()) {
+            totalRetries += one.retries.get() + one.overBudget.get();
+        }
+        if (totalRetries == 0) {
+            log.debug("No S3 operations were retried.");
+            return;
+        }
+        log.info("S3 retry summary:");
+        log.info(String.format("  %-24s %10s %8s %10s %10s %12s",
+            "operation", "calls", "retries", "exhausted", "overBudget", "backoff (ms)"));
+        for (Map.Entry<String, Stats> entry : snapshot.entrySet()) {
+            final Stats one = entry.getValue();
+            if (one.retries.get() + one.exhausted.get() + one.overBudget.get() == 0) {
+                continue;
+            }
+            log.info(String.format("  %-24s %10d %8d %10d %10d %12d", entry.getKey(), one.calls.get(),
+                one.retries.get(), one.exhausted.get(), one.overBudget.get(), one.backoff.get()));
+        }
+    }
+
+    /** Answer the number of retries so far of each kind of operation that was retried. */
+    public Map<String, Long> getRetries() {
+        final Map<String, Long> retries = new TreeMap<String, Long>();
+        synchronized (stats) {
+            for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                if (entry.getValue().retries.get() > 0) {
+                    retries.put(entry.getKey(), entry.getValue().retries.get());
+                }
+            }
+        }
+        return retries;
+    }
+
+    /**
+     * Answer true if <code>t</code> is a throttling or server-side error, a request timeout, or a network failure
+     * (wrapped by the SDK or not). Client errors (4xx) and interruptions are not retryable.
+     */
+    public static boolean isRetryable(Throwable t) {
+        if (t instanceof AmazonServiceException) {
+            final AmazonServiceException e = (AmazonServiceException) t;
+            return e.getStatusCode() >= 500 || e.getStatusCode() == 429
+                || THROTTLING_ERROR_CODES.contains(e.getErrorCode()) || RETRYABLE_ERROR_CODES.contains(e.getErrorCode());
+        }
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException) {
+                return true;
+            }
+            if (cause instanceof InterruptedIOException) {
+                return false; // the thread was interrupted
+            }
+            if (cause instanceof SocketException || cause instanceof EOFException || cause instanceof SSLException
+                || cause instanceof NoHttpResponseException || cause instanceof UnknownHostException
+                || cause instanceof org.apache.http.ConnectionClosedException
+                || cause instanceof org.apache.http.MalformedChunkCodingException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Answer true if <code>t</code> is a throttling response ("503 SlowDown", "429 Too Many Requests" and the like). */
+    public static boolean isThrottling(Throwable t) {
+        return t instanceof AmazonServiceException && (((AmazonServiceException) t).getStatusCode() == 429
+            || ((AmazonServiceException) t).getStatusCode() == 503
+            || THROTTLING_ERROR_CODES.contains(((AmazonServiceException) t).getErrorCode()));
+    }
+
+    private long backoff(int retry, boolean throttled) {
+        final long ceiling = Math.min(maxDelay, baseDelay << Math.min(retry - 1, 30));
+        final long floor = throttled ? ceiling / 2 : 0;
+        synchronized (random) {
+            return floor + (long) (random.nextDouble() * (ceiling - floor));
+        }
+    }
+
+    private Stats getStats(String operation) {
+        synchronized (stats) {
+            Stats operationStats = stats.get(operation);
+            if (operationStats == null) {
+                operationStats = new Stats();
+                stats.put(operation, operationStats);
+            }
+            return operationStats;
+        }
+    }
+
+    /** Rethrow <code>t</code>, which <code>task</code> threw, with its own type. */
+    @SuppressWarnings({"unchecked", "unused"})
+    private static <E extends Throwable> E rethrow(Throwable t, Task<?, E> task) throws E {
+        throw (E) t;
+    }
+
+    /** Describe a call by its bucket and key, if it has them. */
+    private static String describe(Object[] args) {
+        if (args == null || args.length == 0) {
+            return null;
+        }
+        if (args.length >= 2 && args[0] instanceof String && args[1] instanceof String) {
+            return "s3://" + args[0] + "/" + args[1];
+        }
+        try {
+            final Object bucket = args[0].getClass().getMethod("getBucketName").invoke(args[0]);
+            Object key = null;
+            try {
+                key = args[0].getClass().getMethod("getKey").invoke(args[0]);
+            } catch (NoSuchMethodException e) {
+                // e.g. a listing request
+            }
+            return "s3://" + bucket + "/" + (key != null ? key : "");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static final class Stats {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        /** Operations that failed after <code>maxRetries</code> retries. */
+        private final AtomicLong exhausted = new AtomicLong();
+        /** Operations that failed without a retry because the budget was spent. */
+        private final AtomicLong overBudget = new AtomicLong();
+        private final AtomicLong backoff = new AtomicLong();
+    }
+
+}
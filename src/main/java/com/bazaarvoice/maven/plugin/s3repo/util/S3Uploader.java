@@ -0,0 +1,322 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads files to S3, up to <code>concurrency</code> requests at a time. Files of at least
+ * <code>multipartThreshold</code> bytes are uploaded with a multipart upload whose parts of <code>partSize</code> bytes
+ * are uploaded concurrently; smaller files are uploaded with a single request but many of them run at once.
+ * <p/>
+ * Given an {@link UploadJournal}, every multipart upload and each of its completed parts are checkpointed, and a
+ * multipart upload of the same file that an earlier build left incomplete is resumed: its parts that S3 still has and
+ * whose ETags match the local file's content are not uploaded again. Without a journal, incomplete multipart uploads
+ * are aborted when the uploader is shut down.
+ * <p/>
+ * Every object is uploaded with {@link CannedAccessControlList#BucketOwnerFullControl}, as it always has been.
+ */
+public final class S3Uploader {
+
+    /** S3 rejects multipart uploads of more parts; larger files are uploaded in larger parts. */
+    private static final int MAX_PART_COUNT = 10000;
+    /** S3 rejects smaller parts (but the last) when the upload is completed, and larger parts when they are uploaded. */
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final AmazonS3 s3Session;
+    private final long partSize;
+    private final long multipartThreshold;
+    private final UploadJournal journal;
+    private final Log log;
+    private final BoundedExecutor executor;
+    /** ETags of completed uploads, by bucket key. */
+    private final Map<String, String> uploadedETags = Collections.synchronizedMap(new HashMap<String, String>());
+    private final List<MultipartUpload> multipartUploads = new ArrayList<MultipartUpload>();
+    private final AtomicInteger resumedParts = new AtomicInteger();
+
+    public S3Uploader(AmazonS3 s3Session, int concurrency, long partSize, long multipartThreshold) {
+        this(s3Session, concurrency, partSize, multipartThreshold, null, null);
+    }
+
+    public S3Uploader(AmazonS3 s3Session, int concurrency, long partSize, long multipartThreshold, UploadJournal journal, Log log) {
+        if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("part size must be between 5 MB and 5 GB: " + partSize);
+        }
+        if (multipartThreshold < partSize) {
+            throw new IllegalArgumentException("multipart threshold (" + multipartThreshold
+                + ") must be at least the part size (" + partSize + ")");
+        }
+        this.s3Session = s3Session;
+        this.partSize = partSize;
+        this.multipartThreshold = multipartThreshold;
+        this.journal = journal;
+        this.log = log;
+        this.executor = new BoundedExecutor("upload", concurrency);
+    }
+
+    /** Start uploading <code>file</code> to <code>bucket/key</code>; blocks while too many requests are pending. */
+    public void upload(final String bucket, final String key, final File file) throws MojoExecutionException {
+        final long size = file.length();
+        if (size < multipartThreshold) {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws MojoExecutionException {
+                    try {
+                        uploadedETags.put(key, s3Session.putObject(new PutObjectRequest(bucket, key, file)
+                            .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl)).getETag());
+                    } catch (AmazonClientException e) {
+                        throw failedToUpload(file, bucket, key, e);
+                    }
+                    return null;
+                }
+            });
+            return;
+        }
+        try {
+            startMultipartUpload(bucket, key, file, size);
+        } catch (AmazonClientException e) {
+            throw failedToUpload(file, bucket, key, e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to write upload journal", e);
+        }
+    }
+
+    /** Wait for all started uploads to finish; fails on the first upload that did not succeed. */
+    public void awaitCompletion() throws MojoExecutionException {
+        executor.awaitCompletion();
+        if (resumedParts.get() > 0 && log != null) {
+            log.info("Resumed incomplete multipart uploads of earlier builds, skipping " + resumedParts.get()
+                + " part(s) that had already been uploaded.");
+        }
+    }
+
+    /**
+     * Abort the incomplete multipart uploads journaled by earlier builds that were not resumed by this uploader (their
+     * files changed or are no longer uploaded). Call it once every file has been uploaded.
+     */
+    public void abortStaleUploads() throws MojoExecutionException {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.abortUnclaimedUploads(s3Session);
+        } catch (IOException e) {
+            throw new MojoExecutionException("failed to write upload journal", e);
+        }
+    }
+
+    /** Answer the ETag of each upload that has completed so far, by bucket key. */
+    public Map<String, String> getUploadedETags() {
+        synchronized (uploadedETags) {
+            return new HashMap<String, String>(uploadedETags);
+        }
+    }
+
+    /**
+     * Stop worker threads; uploads that have not yet started are discarded. Multipart uploads that have not completed
+     * (because an upload failed) are aborted, unless they are journaled to be resumed by the next build.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        int incomplete = 0;
+        for (MultipartUpload multipartUpload : multipartUploads) {
+            if (multipartUpload.isCompleted()) {
+                continue;
+            }
+            ++incomplete;
+            if (journal == null) {
+                try {
+                    s3Session.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        multipartUpload.bucket, multipartUpload.key, multipartUpload.uploadId));
+                } catch (AmazonClientException e) {
+                    // best effort; an incomplete upload can also be removed by a bucket lifecycle rule
+                }
+            }
+        }
+        if (incomplete > 0 && journal != null && log != null) {
+            log.info(incomplete + " incomplete multipart upload(s) are journaled in the staging directory;"
+                + " a build with the same staging directory will resume them.");
+        }
+    }
+
+    private void startMultipartUpload(final String bucket, final String key, final File file, final long size)
+            throws IOException, MojoExecutionException {
+        final long partSize = Math.max(this.partSize, (size + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+        final int partCount = (int) ((size + partSize - 1) / partSize);
+        final Map<Integer, String> resumableParts = new HashMap<Integer, String>();
+        String uploadId = null;
+        final UploadJournal.PendingUpload pending = journal != null ? journal.claim(bucket, key, size, partSize) : null;
+        if (pending != null) {
+            uploadId = pending.getUploadId();
+            try {
+                // only parts that S3 still has (with the journaled ETag) can be reused
+                final Map<Integer, String> uploadedParts = listParts(bucket, key, uploadId);
+                for (Map.Entry<Integer, String> part : pending.getPartETags().entrySet()) {
+                    if (part.getValue().equals(uploadedParts.get(part.getKey()))) {
+                        resumableParts.put(part.getKey(), part.getValue());
+                    }
+                }
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                // the upload was aborted (or completed) meanwhile, e.g. by a bucket lifecycle rule
+                journal.finished(uploadId);
+                uploadId = null;
+            }
+        }
+        if (uploadId == null) {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(Mimetypes.getInstance().getMimetype(file));
+            uploadId = s3Session.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)
+                .withCannedACL(CannedAccessControlList.BucketOwnerFullControl)).getUploadId();
+            if (journal != null) {
+                journal.started(uploadId, bucket, key, size, partSize);
+            }
+        }
+        final MultipartUpload multipartUpload = new MultipartUpload(bucket, key, uploadId, partCount);
+        multipartUploads.add(multipartUpload);
+        for (int i = 0; i < partCount; ++i) {
+            final int partNumber = i + 1;
+            final long offset = i * partSize;
+            final long length = Math.min(size, offset + partSize) - offset;
+            final String resumableETag = resumableParts.get(partNumber);
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws MojoExecutionException {
+                    try {
+                        if (resumableETag != null && resumableETag.equals(md5Hex(file, offset, length))) {
+                            resumedParts.incrementAndGet();
+                            multipartUpload.partUploaded(new PartETag(partNumber, resumableETag));
+                            return null;
+                        }
+                        final PartETag part = s3Session.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(multipartUpload.uploadId)
+                            .withPartNumber(partNumber)
+                            .withFile(file)
+                            .withFileOffset(offset)
+                            .withPartSize(length)).getPartETag();
+                        if (journal != null) {
+                            journal.partUploaded(multipartUpload.uploadId, part);
+                        }
+                        multipartUpload.partUploaded(part);
+                    } catch (AmazonClientException e) {
+                        throw failedToUpload(file, bucket, key, e);
+                    } catch (IOException e) {
+                        throw new MojoExecutionException("failed to upload " + file.getPath(), e);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /** Answer the ETags of the parts S3 has of the multipart upload <code>uploadId</code>, by part number. */
+    private Map<Integer, String> listParts(String bucket, String key, String uploadId) {
+        final Map<Integer, String> parts = new HashMap<Integer, String>();
+        final ListPartsRequest request = new ListPartsRequest(bucket, key, uploadId);
+        PartListing listing;
+        do {
+            listing = s3Session.listParts(request);
+            for (PartSummary part : listing.getParts()) {
+                parts.put(part.getPartNumber(), unquote(part.getETag()));
+            }
+            request.setPartNumberMarker(listing.getNextPartNumberMarker());
+        } while (listing.isTruncated());
+        return parts;
+    }
+
+    private static String md5Hex(File file, long offset, long length) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.skipFully(in, offset);
+            return DigestUtils.md5Hex(new BoundedInputStream(in, length));
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    private static String unquote(String eTag) {
+        return eTag != null && eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")
+            ? eTag.substring(1, eTag.length() - 1)
+            : eTag;
+    }
+
+    private static MojoExecutionException failedToUpload(File file, String bucket, String key, AmazonClientException e) {
+        return new MojoExecutionException("failed to upload " + file.getPath() + " to s3://" + bucket + "/" + key, e);
+    }
+
+    /** One multipart upload; the part that is uploaded last completes it. */
+    private final class MultipartUpload {
+        private final String bucket;
+        private final String key;
+        private final String uploadId;
+        private final PartETag[] parts;
+        private final AtomicInteger remainingParts;
+        private volatile boolean completed;
+
+        private MultipartUpload(String bucket, String key, String uploadId, int partCount) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.parts = new PartETag[partCount];
+            this.remainingParts = new AtomicInteger(partCount);
+        }
+
+        private void partUploaded(PartETag part) throws IOException {
+            synchronized (parts) {
+                parts[part.getPartNumber() - 1] = part;
+            }
+            if (remainingParts.decrementAndGet() == 0) {
+                final List<PartETag> partETags;
+                synchronized (parts) {
+                    partETags = new ArrayList<PartETag>(Arrays.asList(parts));
+                }
+                uploadedETags.put(key, s3Session.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getETag());
+                completed = true;
+                if (journal != null) {
+                    journal.finished(uploadId);
+                }
+            }
+        }
+
+        private boolean isCompleted() {
+            return completed;
+        }
+    }
+
+}
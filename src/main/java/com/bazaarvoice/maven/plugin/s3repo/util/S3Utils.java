@@ -1,16 +1,37 @@
 package com.bazaarvoice.maven.plugin.s3repo.util;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class S3Utils {
 
+    /** Pages fetched ahead of a consumer of {@link #iterateAllObjects(AmazonS3, ListObjectsRequest, int)}. */
+    public static final int DEFAULT_PREFETCH_PAGES = 2;
+
+    /** Suffix of the partial files that {@link #download} writes to. */
+    public static final String PARTIAL_DOWNLOAD_SUFFIX = ".part";
+
     private S3Utils() {}
 
     public static String toRepoRelativePath(S3ObjectSummary summary, S3RepositoryPath s3RepositoryPath) {
@@ -39,4 +60,144 @@ public final class S3Utils {
         return allResults;
     }
 
+    /**
+     * Like {@link #listAllObjects(AmazonS3, ListObjectsRequest)}, but lazily: pages are fetched in the background, at
+     * most <code>prefetchPages</code> ahead of the caller, so memory use is bounded by the page size rather than by
+     * the size of the listing and the caller can work on early pages while later ones are still being fetched.
+     * Close the iterator unless it is iterated to the end.
+     */
+    public static ObjectListingIterator iterateAllObjects(AmazonS3 s3Session, ListObjectsRequest request, int prefetchPages) {
+        return new ObjectListingIterator(s3Session, request, prefetchPages, 1, 0);
+    }
+
+    /**
+     * Like {@link #iterateAllObjects(AmazonS3, ListObjectsRequest, int)}, but the listing is partitioned by
+     * "/"-delimited common prefixes (discovered with delimiter listings down to <code>maxDepth</code> levels below the
+     * request's prefix) and the partitions are paged through with up to <code>concurrency</code> requests at a time.
+     * Pages are handed over as they arrive, so objects are <em>not</em> in key order. A serial listing is used if
+     * <code>concurrency</code> or <code>maxDepth</code> is less than 1 (or 2, for concurrency) or if the request
+     * already has a delimiter.
+     */
+    public static ObjectListingIterator iterateAllObjects(AmazonS3 s3Session, ListObjectsRequest request, int prefetchPages,
+                                                          int concurrency, int maxDepth) {
+        return new ObjectListingIterator(s3Session, request, prefetchPages, concurrency, maxDepth);
+    }
+
+    /**
+     * Answer true if <code>eTag</code> is what S3 reports for an object with the same content as <code>file</code>.
+     * A single-part upload's ETag is the MD5 of the content; a multipart upload's ETag is the MD5 of the concatenated
+     * part MD5s followed by "-" and the number of parts, which we can only reproduce if the object was uploaded with
+     * <code>partSize</code>. Any other ETag (e.g., for KMS-encrypted objects) never matches.
+     */
+    public static boolean matchesETag(File file, String eTag, long partSize) throws IOException {
+        if (StringUtils.isEmpty(eTag)) {
+            return false;
+        }
+        final String normalized = StringUtils.strip(eTag, "\"").toLowerCase();
+        final int dash = normalized.indexOf('-');
+        if (dash < 0) {
+            return matchesSinglePartETag(file, normalized);
+        }
+        final long parts = (file.length() + partSize - 1) / partSize;
+        if (!normalized.substring(dash + 1).equals(Long.toString(parts))) {
+            return false;
+        }
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            for (long i = 0; i < parts; ++i) {
+                partDigests.write(DigestUtils.md5(ByteStreams.limit(in, partSize)));
+            }
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+        return normalized.equals(DigestUtils.md5Hex(partDigests.toByteArray()) + "-" + parts);
+    }
+
+    /**
+     * Answer true if <code>eTag</code> is the MD5 of <code>file</code>'s content, i.e. what S3 reports for a single-part
+     * upload of it (without KMS or customer-key encryption).
+     */
+    public static boolean matchesSinglePartETag(File file, String eTag) throws IOException {
+        if (StringUtils.isEmpty(eTag)) {
+            return false;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            return StringUtils.strip(eTag, "\"").toLowerCase().equals(DigestUtils.md5Hex(in));
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Download <code>bucket/key</code>, an object of <code>size</code> bytes with the given ETag, to
+     * <code>targetFile</code>. The content is written to a partial file next to it (named after the ETag) that is
+     * renamed once it is complete. If an earlier attempt left a partial file for the same ETag, the download resumes at
+     * its end with a ranged GET that only succeeds while the object still has that ETag, so a broken connection costs
+     * no more than the bytes in flight; a resumed download of a single-part object is verified against its ETag (an MD5)
+     * before it is used. A download that ends early fails with an {@link EOFException}.
+     * <p/>
+     * If the object has changed since it was listed, its current content is downloaded from the start.
+     */
+    public static void download(AmazonS3 s3Session, String bucket, String key, String eTag, long size, File targetFile)
+            throws IOException {
+        final File partial = partialDownloadFile(targetFile, eTag);
+        long offset = partial.isFile() && !StringUtils.isEmpty(eTag) ? partial.length() : 0;
+        if (offset > size) {
+            offset = 0;
+        }
+        if (offset == 0 || offset < size) {
+            S3Object object = null;
+            if (offset > 0) {
+                object = s3Session.getObject(new GetObjectRequest(bucket, key)
+                    .withRange(offset, size - 1)
+                    .withMatchingETagConstraint(eTag));
+            }
+            if (object == null) { // nothing to resume, or the object changed since the partial file was written
+                offset = 0;
+                object = s3Session.getObject(new GetObjectRequest(bucket, key));
+            }
+            final long expectedLength = offset + object.getObjectMetadata().getContentLength();
+            final InputStream content = object.getObjectContent();
+            try {
+                final OutputStream out = new FileOutputStream(partial, offset > 0);
+                try {
+                    IOUtils.copyLarge(content, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                ExtraIOUtils.closeQuietly(content);
+            }
+            if (partial.length() != expectedLength) {
+                throw new EOFException("Downloaded " + partial.length() + " of " + expectedLength + " bytes of s3://" + bucket + "/" + key);
+            }
+        }
+        if (offset > 0 && StringUtils.strip(eTag, "\"").indexOf('-') < 0 && !matchesSinglePartETag(partial, eTag)) {
+            // corrupt partial file; start over
+            if (!partial.delete()) {
+                throw new IOException("Couldn't delete " + partial.getPath());
+            }
+            download(s3Session, bucket, key, eTag, size, targetFile);
+            return;
+        }
+        if (targetFile.exists() && !targetFile.delete()) {
+            throw new IOException("Couldn't replace " + targetFile.getPath());
+        }
+        if (!partial.renameTo(targetFile)) {
+            throw new IOException("Couldn't move " + partial.getPath() + " to " + targetFile.getPath());
+        }
+    }
+
+    /** Answer true if <code>file</code> is a partial download (see {@link #download}). */
+    public static boolean isPartialDownload(File file) {
+        return file.getName().endsWith(PARTIAL_DOWNLOAD_SUFFIX);
+    }
+
+    private static File partialDownloadFile(File targetFile, String eTag) {
+        final String tag = StringUtils.defaultString(eTag).replaceAll("[^0-9A-Za-z-]", "");
+        return new File(targetFile.getParentFile(), targetFile.getName() + "." + tag + PARTIAL_DOWNLOAD_SUFFIX);
+    }
+
 }
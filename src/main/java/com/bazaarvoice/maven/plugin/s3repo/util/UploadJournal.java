@@ -0,0 +1,264 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.google.common.io.Files;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checkpoints multipart uploads in the staging directory: the upload id of each multipart upload that was started and
+ * the ETag of each part as it completes. A later build with the same staging directory resumes the uploads that did
+ * not complete (see {@link S3Uploader}) instead of uploading those files from the start.
+ * <p/>
+ * The journal is a text file under the staging directory's {@value WellKnowns#S3REPO_FOLDERNAME} folder, which is
+ * never uploaded. Records are appended as uploads progress; opening the journal compacts it to the pending uploads.
+ */
+public final class UploadJournal implements Closeable {
+
+    private static final String HEADER = "# s3repo upload journal v1";
+    private static final String JOURNAL_PATH = WellKnowns.S3REPO_FOLDERNAME + "/uploads.journal";
+
+    /** A multipart upload that was started but neither completed nor aborted. */
+    public static final class PendingUpload {
+        private final String uploadId;
+        private final String bucket;
+        private final String key;
+        private final long size;
+        private final long partSize;
+        /** ETags of the uploaded parts, by part number. */
+        private final Map<Integer, String> partETags = new TreeMap<Integer, String>();
+
+        private PendingUpload(String uploadId, String bucket, String key, long size, long partSize) {
+            this.uploadId = uploadId;
+            this.bucket = bucket;
+            this.key = key;
+            this.size = size;
+            this.partSize = partSize;
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public Map<Integer, String> getPartETags() {
+            return Collections.unmodifiableMap(partETags);
+        }
+    }
+
+    private final Log log;
+    /** Pending uploads, by upload id. */
+    private final Map<String, PendingUpload> pendingUploads = new LinkedHashMap<String, PendingUpload>();
+    /** Ids of the pending uploads that were journaled by an earlier build and have not been resumed by this one. */
+    private final List<String> unclaimedUploadIds = new ArrayList<String>();
+    private Writer writer;
+
+    private UploadJournal(Log log) {
+        this.log = log;
+    }
+
+    /** Answer the journal file of <code>stagingDirectory</code>. */
+    public static File getFile(File stagingDirectory) {
+        return new File(stagingDirectory, JOURNAL_PATH);
+    }
+
+    /** Open the journal of <code>stagingDirectory</code>, creating it if needed. */
+    public static UploadJournal open(File stagingDirectory, Log log) throws IOException {
+        final UploadJournal journal = new UploadJournal(log);
+        final File file = getFile(stagingDirectory);
+        if (file.isFile()) {
+            journal.read(file);
+        }
+        journal.unclaimedUploadIds.addAll(journal.pendingUploads.keySet());
+        // rewrite it with only the pending uploads
+        Files.createParentDirs(file);
+        journal.writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        journal.writer.write(HEADER);
+        journal.writer.write('\n');
+        for (PendingUpload upload : journal.pendingUploads.values()) {
+            journal.appendStarted(upload);
+            for (Map.Entry<Integer, String> part : upload.partETags.entrySet()) {
+                journal.appendPart(upload.uploadId, part.getKey(), part.getValue());
+            }
+        }
+        journal.writer.flush();
+        return journal;
+    }
+
+    /**
+     * Abort the pending uploads journaled in <code>stagingDirectory</code> (if any) and delete the journal; for when the
+     * staging directory is cleaned without resuming them, which would leave them (and the storage of their parts)
+     * orphaned in the bucket.
+     */
+    public static void abortPendingUploads(File stagingDirectory, AmazonS3 s3Session, Log log) throws IOException {
+        final File file = getFile(stagingDirectory);
+        if (!file.isFile()) {
+            return;
+        }
+        final UploadJournal journal = new UploadJournal(log);
+        journal.read(file);
+        for (PendingUpload upload : journal.pendingUploads.values()) {
+            abort(s3Session, upload, log);
+        }
+        if (!file.delete()) {
+            log.warn("Couldn't delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Answer the pending upload of a file of <code>size</code> bytes to <code>bucket/key</code> in parts of
+     * <code>partSize</code> bytes that an earlier build journaled, if there is one (and claim it for this build);
+     * otherwise answer null.
+     */
+    public synchronized PendingUpload claim(String bucket, String key, long size, long partSize) {
+        for (String uploadId : unclaimedUploadIds) {
+            final PendingUpload upload = pendingUploads.get(uploadId);
+            if (upload.bucket.equals(bucket) && upload.key.equals(key) && upload.size == size && upload.partSize == partSize) {
+                unclaimedUploadIds.remove(uploadId);
+                return upload;
+            }
+        }
+        return null;
+    }
+
+    /** Abort the pending uploads journaled by an earlier build that this build did not resume (e.g. their files changed). */
+    public void abortUnclaimedUploads(AmazonS3 s3Session) throws IOException {
+        final List<PendingUpload> unclaimed = new ArrayList<PendingUpload>();
+        synchronized (this) {
+            for (String uploadId : unclaimedUploadIds) {
+                unclaimed.add(pendingUploads.get(uploadId));
+            }
+            unclaimedUploadIds.clear();
+        }
+        for (PendingUpload upload : unclaimed) {
+            abort(s3Session, upload, log);
+            finished(upload.uploadId);
+        }
+    }
+
+    /** Record that a multipart upload was started. */
+    public synchronized void started(String uploadId, String bucket, String key, long size, long partSize) throws IOException {
+        if (StringUtils.containsAny(uploadId + bucket + key, '\t', '\n', '\r')) {
+            return; // can't be recorded (or resumed)
+        }
+        final PendingUpload upload = new PendingUpload(uploadId, bucket, key, size, partSize);
+        pendingUploads.put(uploadId, upload);
+        appendStarted(upload);
+        writer.flush();
+    }
+
+    /** Record that a part of the multipart upload <code>uploadId</code> was uploaded. */
+    public synchronized void partUploaded(String uploadId, PartETag part) throws IOException {
+        final PendingUpload upload = pendingUploads.get(uploadId);
+        if (upload == null) {
+            return;
+        }
+        upload.partETags.put(part.getPartNumber(), part.getETag());
+        appendPart(uploadId, part.getPartNumber(), part.getETag());
+        writer.flush();
+    }
+
+    /** Record that the multipart upload <code>uploadId</code> was completed or aborted. */
+    public synchronized void finished(String uploadId) throws IOException {
+        if (pendingUploads.remove(uploadId) == null) {
+            return;
+        }
+        unclaimedUploadIds.remove(uploadId);
+        writer.write("D\t" + uploadId + '\n');
+        writer.flush();
+    }
+
+    /** Answer the number of uploads that were started but neither completed nor aborted. */
+    public synchronized int getPendingUploadCount() {
+        return pendingUploads.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        ExtraIOUtils.closeQuietly(writer);
+    }
+
+    private void read(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                log.warn("Ignoring unknown upload journal " + file.getPath());
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                try {
+                    if (fields[0].equals("U") && fields.length == 6) {
+                        pendingUploads.put(fields[1], new PendingUpload(fields[1], fields[2], fields[3],
+                            Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+                    } else if (fields[0].equals("P") && fields.length == 4 && pendingUploads.containsKey(fields[1])) {
+                        pendingUploads.get(fields[1]).partETags.put(Integer.parseInt(fields[2]), fields[3]);
+                    } else if (fields[0].equals("D") && fields.length == 2) {
+                        pendingUploads.remove(fields[1]);
+                    } else {
+                        break; // e.g. a line that was being written when the build was killed
+                    }
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        } finally {
+            ExtraIOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void appendStarted(PendingUpload upload) throws IOException {
+        writer.write("U\t" + upload.uploadId + '\t' + upload.bucket + '\t' + upload.key + '\t' + upload.size + '\t' + upload.partSize + '\n');
+    }
+
+    private void appendPart(String uploadId, int partNumber, String eTag) throws IOException {
+        writer.write("P\t" + uploadId + '\t' + partNumber + '\t' + eTag + '\n');
+    }
+
+    private static void abort(AmazonS3 s3Session, PendingUpload upload, Log log) {
+        log.info("Aborting incomplete multipart upload to s3://" + upload.bucket + "/" + upload.key + "...");
+        try {
+            s3Session.abortMultipartUpload(new AbortMultipartUploadRequest(upload.bucket, upload.key, upload.uploadId));
+        } catch (AmazonClientException e) {
+            // best effort; an incomplete upload can also be removed by a bucket lifecycle rule
+            log.warn("Couldn't abort multipart upload to s3://" + upload.bucket + "/" + upload.key + ": " + e.getMessage());
+        }
+    }
+
+}
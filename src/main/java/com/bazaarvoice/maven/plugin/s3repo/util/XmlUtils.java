@@ -18,6 +18,15 @@ public final class XmlUtils {
     /** Parse the provided {@link File} as XML, decompressing it first if it has a .gz file extension. */
     public static Document parseXmlFile(File file) throws MojoExecutionException {
         InputStream in = toInputStream(file);
+        try {
+            return parseXml(in);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /** Parse (uncompressed) XML from <code>in</code>; the caller closes the stream. */
+    public static Document parseXml(InputStream in) throws MojoExecutionException {
         try {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             factory.setNamespaceAware(true);
@@ -25,8 +34,6 @@ public final class XmlUtils {
             return builder.parse(in);
         } catch (Exception e) {
             throw new MojoExecutionException("failed to parse", e);
-        } finally {
-            ExtraIOUtils.closeQuietly(in);
         }
     }
 
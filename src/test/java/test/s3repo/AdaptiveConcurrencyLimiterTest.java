@@ -0,0 +1,112 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.util.AdaptiveConcurrencyLimiter;
+import com.google.common.base.Ticker;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+@Test
+public class AdaptiveConcurrencyLimiterTest {
+
+    public void testRaisesLimitWhileRequestsSucceed() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", new byte[]{1, 2, 3});
+        final ManualTicker ticker = new ManualTicker();
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8, ticker, new SystemStreamLog());
+        final AmazonS3 client = limiter.wrap(s3.client());
+        for (int round = 0; round < 10; ++round) {
+            // use every slot (a GET holds its slot until its content is read), each request taking 1 ms
+            final List<S3Object> objects = new ArrayList<S3Object>();
+            for (int i = limiter.getLimit(); i > 0; --i) {
+                objects.add(client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm")));
+            }
+            assertEquals(limiter.getInFlight(), objects.size());
+            ticker.advance(1000000);
+            for (S3Object object : objects) {
+                try {
+                    IOUtils.toByteArray(object.getObjectContent());
+                } finally {
+                    object.close();
+                }
+            }
+        }
+        assertEquals(limiter.getLimit(), 8);
+        assertEquals(limiter.getInFlight(), 0);
+        limiter.logSummary();
+    }
+
+    public void testHalvesLimitOnThrottling() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 8, new SystemStreamLog());
+        final AmazonS3 client = limiter.wrap(s3.client());
+        s3.failNextRequests(1);
+        getExpectingSlowDown(client);
+        assertEquals(limiter.getLimit(), 4);
+        // a burst of throttling responses to requests sent at the old limit cuts the limit once
+        s3.failNextRequests(3);
+        for (int i = 0; i < 3; ++i) {
+            getExpectingSlowDown(client);
+        }
+        assertEquals(limiter.getLimit(), 4);
+        Thread.sleep(100);
+        s3.failNextRequests(1);
+        getExpectingSlowDown(client);
+        assertEquals(limiter.getLimit(), 2);
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    public void testGetHoldsSlotUntilContentIsRead() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", new byte[]{1, 2, 3});
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, new SystemStreamLog());
+        final AmazonS3 client = limiter.wrap(s3.client());
+        final S3Object read = client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+        assertEquals(limiter.getInFlight(), 1);
+        assertEquals(IOUtils.toByteArray(read.getObjectContent()), new byte[]{1, 2, 3});
+        assertEquals(limiter.getInFlight(), 0);
+        final S3Object closed = client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+        assertEquals(limiter.getInFlight(), 1);
+        closed.close();
+        closed.close();
+        assertEquals(limiter.getInFlight(), 0);
+        // requests that aren't transfers are not limited
+        client.listObjects(new ListObjectsRequest().withBucketName("bucket").withPrefix("repo/"));
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    /** A clock that moves only when told to. */
+    private static final class ManualTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+
+    private static void getExpectingSlowDown(AmazonS3 client) {
+        try {
+            client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+            fail("expected a 503 SlowDown");
+        } catch (AmazonS3Exception e) {
+            assertEquals(e.getStatusCode(), 503);
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.util.BandwidthLimiter;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class BandwidthLimiterTest {
+
+    public void testOverdrawingWaits() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter(1000, new SystemStreamLog());
+        long start = System.nanoTime();
+        limiter.acquire(1000); // the bucket starts full
+        assertTrue(System.nanoTime() - start < 200000000L);
+        start = System.nanoTime();
+        limiter.acquire(500);
+        assertTrue(System.nanoTime() - start >= 400000000L);
+    }
+
+    public void testDownloadsAreLimited() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        final byte[] content = new byte[1500];
+        content[1499] = 7;
+        s3.putObject("repo/foo.rpm", content);
+        final BandwidthLimiter limiter = new BandwidthLimiter(1000, new SystemStreamLog());
+        final long start = System.nanoTime();
+        final S3Object object = limiter.wrap(s3.client()).getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+        try {
+            assertEquals(IOUtils.toByteArray(object.getObjectContent()), content);
+        } finally {
+            object.close();
+        }
+        assertTrue(System.nanoTime() - start >= 400000000L);
+        limiter.logSummary();
+    }
+
+}
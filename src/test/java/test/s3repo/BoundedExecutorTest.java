@@ -0,0 +1,146 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.BoundedExecutor;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class BoundedExecutorTest {
+
+    public void testRunsEveryTask() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final BoundedExecutor executor = new BoundedExecutor("test", 3);
+        try {
+            for (int i = 0; i < 100; ++i) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        ran.incrementAndGet();
+                        return null;
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(ran.get(), 100);
+    }
+
+    public void testSubmitBlocksWhileQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BoundedExecutor executor = new BoundedExecutor("test", 2);
+        try {
+            // two running and two queued tasks fill the executor
+            for (int i = 0; i < 4; ++i) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+            final CountDownLatch submitted = new CountDownLatch(1);
+            final Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                return null;
+                            }
+                        });
+                        submitted.countDown();
+                    } catch (MojoExecutionException e) {
+                        // the assertion below fails
+                    }
+                }
+            });
+            producer.start();
+            assertFalse(submitted.await(200, TimeUnit.MILLISECONDS), "submit should block while the queue is full");
+            release.countDown();
+            assertTrue(submitted.await(5, TimeUnit.SECONDS));
+            producer.join();
+            executor.awaitCompletion();
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    public void testFirstFailureIsRethrown() throws Exception {
+        final IOException failure = new IOException("broken");
+        final AtomicInteger ranAfterFailure = new AtomicInteger();
+        final BoundedExecutor executor = new BoundedExecutor("test", 1);
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    throw failure;
+                }
+            });
+            try {
+                // a single worker runs tasks in order, so these start (if at all) after the failure
+                for (int i = 0; i < 10; ++i) {
+                    executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            ranAfterFailure.incrementAndGet();
+                            return null;
+                        }
+                    });
+                }
+                executor.awaitCompletion();
+                fail("expected the task failure");
+            } catch (MojoExecutionException e) {
+                assertSame(e.getCause(), failure);
+            }
+            // the failure sticks: later calls rethrow it as well
+            try {
+                executor.awaitCompletion();
+                fail("expected the task failure");
+            } catch (MojoExecutionException e) {
+                assertSame(e.getCause(), failure);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(ranAfterFailure.get(), 0);
+    }
+
+    public void testRuntimeFailuresAreRethrownAsIs() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("bug");
+        final BoundedExecutor executor = new BoundedExecutor("test", 2);
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw failure;
+                }
+            });
+            try {
+                executor.awaitCompletion();
+                fail("expected the task failure");
+            } catch (IllegalStateException e) {
+                assertSame(e, failure);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
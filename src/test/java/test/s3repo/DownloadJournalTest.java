@@ -0,0 +1,69 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.support.DownloadJournal;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class DownloadJournalTest {
+
+    public void testKeepsCurrentFilesAcrossBuilds() throws Exception {
+        final File staging = Files.createTempDir();
+        final S3ObjectSummary foo = summary("repo/foo.rpm", "etag-foo", 3);
+        final S3ObjectSummary bar = summary("repo/sub/bar.rpm", "etag-bar", 4);
+        write(staging, "foo.rpm", 3);
+        write(staging, "sub/bar.rpm", 4);
+        write(staging, "repodata/repomd.xml", 10);
+
+        DownloadJournal journal = DownloadJournal.open(staging, new SystemStreamLog());
+        journal.record("foo.rpm", foo);
+        journal.record("sub/bar.rpm", bar);
+        journal.close();
+
+        // the next build: bar.rpm was changed locally, and there's an unfinished download
+        write(staging, "sub/bar.rpm", 5);
+        write(staging, "baz.rpm." + "etag-baz" + S3Utils.PARTIAL_DOWNLOAD_SUFFIX, 2);
+        journal = DownloadJournal.open(staging, new SystemStreamLog());
+        journal.cleanStagingDirectory();
+        assertTrue(new File(staging, "foo.rpm").isFile());
+        assertFalse(new File(staging, "sub/bar.rpm").exists());
+        assertFalse(new File(staging, "repodata/repomd.xml").exists());
+        assertTrue(new File(staging, "baz.rpm.etag-baz" + S3Utils.PARTIAL_DOWNLOAD_SUFFIX).isFile());
+
+        assertTrue(journal.isCurrent("foo.rpm", foo));
+        assertTrue(journal.isConfirmed("foo.rpm"));
+        assertFalse(journal.isCurrent("foo.rpm", summary("repo/foo.rpm", "etag-changed", 3)));
+        assertFalse(journal.contains("sub/bar.rpm"));
+        journal.close();
+
+        // foo.rpm is no longer in the repository
+        journal = DownloadJournal.open(staging, new SystemStreamLog());
+        journal.deleteUnconfirmedFiles();
+        journal.close();
+        assertFalse(new File(staging, "foo.rpm").exists());
+    }
+
+    private static S3ObjectSummary summary(String key, String eTag, long size) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("bucket");
+        summary.setKey(key);
+        summary.setETag(eTag);
+        summary.setSize(size);
+        return summary;
+    }
+
+    private static void write(File staging, String path, int size) throws Exception {
+        final File file = new File(staging, path);
+        Files.createParentDirs(file);
+        Files.write(new byte[size], file);
+    }
+
+}
@@ -0,0 +1,556 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for a single S3 bucket, implementing the {@link AmazonS3} operations the goals use, with S3's
+ * ETags (an MD5 for a single-part upload, the MD5 of the part MD5s and the number of parts for a multipart upload).
+ * Listings are paged with a configurable page size (small in tests, so that pagination is exercised), and requests can
+ * be made to fail in the ways S3 fails. The end-to-end benchmark layers simulated network costs over it (see
+ * bench.s3repo.SimulatedS3).
+ */
+public final class FakeS3 implements InvocationHandler {
+
+    private static final class StoredObject {
+        private final byte[] content; // null for an object created with a size only (all zeros)
+        private final long size;
+        private final String eTag;
+        private final Map<String, String> userMetadata;
+        private final Date lastModified = new Date();
+
+        private StoredObject(byte[] content, long size, String eTag, Map<String, String> userMetadata) {
+            this.content = content;
+            this.size = size;
+            this.eTag = eTag;
+            this.userMetadata = userMetadata;
+        }
+
+        private byte[] getContent() {
+            return content != null ? content : new byte[(int) size];
+        }
+    }
+
+    private static final class MultipartUpload {
+        private final String key;
+        private final Map<String, String> userMetadata;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        private MultipartUpload(String key, Map<String, String> userMetadata) {
+            this.key = key;
+            this.userMetadata = userMetadata;
+        }
+    }
+
+    private final String bucketName;
+    private final int pageSize;
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<String, StoredObject>();
+    private final AtomicInteger listRequests = new AtomicInteger();
+    private final List<String> getRequests = new CopyOnWriteArrayList<String>();
+    private final List<String> putRequests = new CopyOnWriteArrayList<String>();
+    private final Set<String> undeletableKeys = new CopyOnWriteArraySet<String>();
+    private final AtomicInteger deleteRequests = new AtomicInteger();
+    private final AtomicInteger copyRequests = new AtomicInteger();
+    private final AtomicInteger requestsToFail = new AtomicInteger();
+    /** Bytes after which the content of the next GET breaks off; negative if it doesn't. */
+    private final AtomicInteger nextContentBreaksAfter = new AtomicInteger(-1);
+    private final AtomicInteger uploadPartRequests = new AtomicInteger();
+    /** Number of UploadPart requests that succeed before the others fail; negative if they don't fail. */
+    private final AtomicInteger partUploadsBeforeFailure = new AtomicInteger(-1);
+    /** Multipart uploads in progress, by upload id. */
+    private final Map<String, MultipartUpload> multipartUploads = new ConcurrentHashMap<String, MultipartUpload>();
+
+    /** A bucket named <code>bucketName</code> whose listings have at most <code>pageSize</code> keys per page. */
+    public FakeS3(String bucketName, int pageSize) {
+        this.bucketName = bucketName;
+        this.pageSize = pageSize;
+    }
+
+    /** Answer a client of this bucket. */
+    public AmazonS3 client() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, this);
+    }
+
+    /** Store an object of <code>size</code> zeros (without the cost of holding them). */
+    public void putObject(String key, long size) {
+        objects.put(key, new StoredObject(null, size, DigestUtils.md5Hex(new byte[(int) size]), new HashMap<String, String>()));
+    }
+
+    public void putObject(String key, byte[] content) {
+        objects.put(key, new StoredObject(content, content.length, DigestUtils.md5Hex(content), new HashMap<String, String>()));
+    }
+
+    public void putObject(String key, File file) throws IOException {
+        putObject(key, Files.toByteArray(file));
+    }
+
+    /** Make multi-object deletes report an "AccessDenied" error for <code>key</code>. */
+    void denyDelete(String key) {
+        undeletableKeys.add(key);
+    }
+
+    /** Make the next <code>count</code> requests fail with a "503 SlowDown" response. */
+    void failNextRequests(int count) {
+        requestsToFail.set(count);
+    }
+
+    /** Make the content of the next GET break off with a connection reset after <code>bytes</code> bytes. */
+    void breakNextContentAfter(int bytes) {
+        nextContentBreaksAfter.set(bytes);
+    }
+
+    /** Make every UploadPart request after the next <code>count</code> fail with a "500 InternalError" response. */
+    void failPartUploadsAfter(int count) {
+        partUploadsBeforeFailure.set(count);
+    }
+
+    boolean exists(String key) {
+        return objects.containsKey(key);
+    }
+
+    /** Answer the content of <code>key</code> (zeros if it was created with a size only). */
+    byte[] getContent(String key) {
+        return getObject(key).getContent();
+    }
+
+    /** Number of CopyObject and UploadPartCopy requests. */
+    int getCopyRequests() {
+        return copyRequests.get();
+    }
+
+    /** Number of multipart uploads that were started but neither completed nor aborted. */
+    int getPendingMultipartUploads() {
+        return multipartUploads.size();
+    }
+
+    int getUploadPartRequests() {
+        return uploadPartRequests.get();
+    }
+
+    int getDeleteRequests() {
+        return deleteRequests.get();
+    }
+
+    int getListRequests() {
+        return listRequests.get();
+    }
+
+    /** Keys of all GET requests, in order. */
+    List<String> getGetRequests() {
+        return getRequests;
+    }
+
+    /** Keys of all PUT requests and multipart uploads (when started), in order. */
+    List<String> getPutRequests() {
+        return putRequests;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+        final String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            return name.equals("hashCode") ? System.identityHashCode(proxy) : "FakeS3(" + bucketName + ")";
+        }
+        if (name.equals("shutdown")) {
+            return null;
+        }
+        if (requestsToFail.getAndDecrement() > 0) {
+            throw error(503, "SlowDown", "Please reduce your request rate.");
+        }
+        if (name.equals("doesBucketExist") && args.length == 1) {
+            return bucketName.equals(args[0]);
+        }
+        if (name.equals("listObjects") && args.length == 1 && args[0] instanceof ListObjectsRequest) {
+            final ListObjectsRequest request = (ListObjectsRequest) args[0];
+            return list(request.getPrefix(), request.getDelimiter(), request.getMarker(),
+                request.getMaxKeys() != null ? Math.min(request.getMaxKeys(), pageSize) : pageSize);
+        }
+        if (name.equals("listNextBatchOfObjects") && args.length == 1 && args[0] instanceof ObjectListing) {
+            final ObjectListing previous = (ObjectListing) args[0];
+            return list(previous.getPrefix(), previous.getDelimiter(), previous.getNextMarker(), previous.getMaxKeys());
+        }
+        if (name.equals("getObject") && args.length == 2 && args[0] instanceof String) {
+            return get(new GetObjectRequest((String) args[0], (String) args[1]));
+        }
+        if (name.equals("getObject") && args.length == 1 && args[0] instanceof GetObjectRequest) {
+            return get((GetObjectRequest) args[0]);
+        }
+        if (name.equals("getObjectMetadata") && args.length == 2) {
+            return metadata(getObject((String) args[1]), -1);
+        }
+        if (name.equals("getObjectMetadata") && args.length == 1 && args[0] instanceof GetObjectMetadataRequest) {
+            return metadata(getObject(((GetObjectMetadataRequest) args[0]).getKey()), -1);
+        }
+        if (name.equals("putObject") && args.length == 1 && args[0] instanceof PutObjectRequest) {
+            return put((PutObjectRequest) args[0]);
+        }
+        if (name.equals("copyObject") && args.length == 1 && args[0] instanceof CopyObjectRequest) {
+            return copy((CopyObjectRequest) args[0]);
+        }
+        if (name.equals("initiateMultipartUpload") && args.length == 1) {
+            final InitiateMultipartUploadRequest request = (InitiateMultipartUploadRequest) args[0];
+            putRequests.add(request.getKey());
+            final String uploadId = UUID.randomUUID().toString();
+            multipartUploads.put(uploadId, new MultipartUpload(request.getKey(), userMetadata(request.getObjectMetadata())));
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setBucketName(request.getBucketName());
+            result.setKey(request.getKey());
+            result.setUploadId(uploadId);
+            return result;
+        }
+        if (name.equals("uploadPart") && args.length == 1) {
+            return uploadPart((UploadPartRequest) args[0]);
+        }
+        if (name.equals("listParts") && args.length == 1) {
+            final ListPartsRequest request = (ListPartsRequest) args[0];
+            final PartListing listing = new PartListing();
+            listing.setBucketName(request.getBucketName());
+            listing.setKey(request.getKey());
+            listing.setUploadId(request.getUploadId());
+            for (Map.Entry<Integer, byte[]> part : new TreeMap<Integer, byte[]>(getUpload(request.getUploadId()).parts).entrySet()) {
+                final PartSummary summary = new PartSummary();
+                summary.setPartNumber(part.getKey());
+                summary.setETag("\"" + DigestUtils.md5Hex(part.getValue()) + "\"");
+                summary.setSize(part.getValue().length);
+                listing.getParts().add(summary);
+            }
+            return listing;
+        }
+        if (name.equals("copyPart") && args.length == 1) {
+            return copyPart((CopyPartRequest) args[0]);
+        }
+        if (name.equals("completeMultipartUpload") && args.length == 1) {
+            return complete((CompleteMultipartUploadRequest) args[0]);
+        }
+        if (name.equals("abortMultipartUpload") && args.length == 1) {
+            if (multipartUploads.remove(((AbortMultipartUploadRequest) args[0]).getUploadId()) == null) {
+                throw error(404, "NoSuchUpload", "The specified upload does not exist.");
+            }
+            return null;
+        }
+        if (name.equals("deleteObject") && args.length == 2) {
+            objects.remove((String) args[1]);
+            return null;
+        }
+        if (name.equals("deleteObjects") && args.length == 1) {
+            return delete((DeleteObjectsRequest) args[0]);
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private StoredObject getObject(String key) {
+        final StoredObject object = objects.get(key);
+        if (object == null) {
+            throw error(404, "NoSuchKey", "The specified key does not exist.");
+        }
+        return object;
+    }
+
+    private MultipartUpload getUpload(String uploadId) {
+        final MultipartUpload upload = multipartUploads.get(uploadId);
+        if (upload == null) {
+            throw error(404, "NoSuchUpload", "The specified upload does not exist.");
+        }
+        return upload;
+    }
+
+    private ObjectListing list(String prefix, String delimiter, String marker, int maxKeys) {
+        listRequests.incrementAndGet();
+        final String actualPrefix = prefix == null ? "" : prefix;
+        final ObjectListing listing = new ObjectListing();
+        listing.setBucketName(bucketName);
+        listing.setPrefix(prefix);
+        listing.setDelimiter(delimiter);
+        listing.setMarker(marker);
+        listing.setMaxKeys(maxKeys);
+        final String start = marker != null && marker.compareTo(actualPrefix) > 0 ? marker : actualPrefix;
+        int count = 0;
+        String last = null;
+        for (Map.Entry<String, StoredObject> entry : objects.tailMap(start, !start.equals(marker)).entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(actualPrefix)) {
+                break;
+            }
+            if (last != null && key.compareTo(last) <= 0) {
+                continue; // rolled up into the last common prefix
+            }
+            if (count == maxKeys) {
+                listing.setTruncated(true);
+                listing.setNextMarker(last);
+                return listing;
+            }
+            final int delimiterIndex = delimiter == null || delimiter.isEmpty() ? -1 : key.indexOf(delimiter, actualPrefix.length());
+            if (delimiterIndex >= 0) {
+                // S3 rolls the whole common prefix up; continue after it
+                final String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                listing.getCommonPrefixes().add(commonPrefix);
+                last = commonPrefix + Character.MAX_VALUE;
+            } else {
+                final S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setBucketName(bucketName);
+                summary.setKey(key);
+                summary.setSize(entry.getValue().size);
+                summary.setETag(entry.getValue().eTag);
+                summary.setLastModified(entry.getValue().lastModified);
+                summary.setStorageClass("STANDARD");
+                listing.getObjectSummaries().add(summary);
+                last = key;
+            }
+            ++count;
+        }
+        return listing;
+    }
+
+    private S3Object get(GetObjectRequest request) {
+        final String key = request.getKey();
+        getRequests.add(key);
+        final StoredObject stored = getObject(key);
+        if (!request.getMatchingETagConstraints().isEmpty() && !request.getMatchingETagConstraints().contains(stored.eTag)) {
+            return null; // like the SDK does for "412 Precondition Failed"
+        }
+        final byte[] content = stored.getContent();
+        int from = 0;
+        int to = content.length;
+        if (request.getRange() != null) {
+            from = (int) Math.min(request.getRange()[0], content.length);
+            to = (int) Math.min(request.getRange()[1] + 1, content.length);
+        }
+        final S3Object object = new S3Object();
+        object.setBucketName(bucketName);
+        object.setKey(key);
+        object.setObjectMetadata(metadata(stored, to - from));
+        final int breaksAfter = nextContentBreaksAfter.getAndSet(-1);
+        final InputStream in = new ByteArrayInputStream(content, from, to - from);
+        object.setObjectContent(new S3ObjectInputStream(breaksAfter < 0 ? in : new FilterInputStream(in) {
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= breaksAfter) {
+                    throw new SocketException("Connection reset");
+                }
+                final int read = super.read(b, off, Math.min(len, breaksAfter - position));
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+        }, new HttpGet()));
+        return object;
+    }
+
+    private PutObjectResult put(PutObjectRequest request) throws IOException {
+        putRequests.add(request.getKey());
+        final byte[] content = request.getFile() != null
+            ? Files.toByteArray(request.getFile())
+            : ByteStreams.toByteArray(request.getInputStream());
+        final String eTag = DigestUtils.md5Hex(content);
+        objects.put(request.getKey(), new StoredObject(content, content.length, eTag, userMetadata(request.getMetadata())));
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag(eTag);
+        return result;
+    }
+
+    private CopyObjectResult copy(CopyObjectRequest request) {
+        copyRequests.incrementAndGet();
+        final StoredObject source = getObject(request.getSourceKey());
+        if (!request.getMatchingETagConstraints().isEmpty() && !request.getMatchingETagConstraints().contains(source.eTag)) {
+            return null;
+        }
+        final Map<String, String> userMetadata = request.getNewObjectMetadata() != null
+            ? userMetadata(request.getNewObjectMetadata())
+            : source.userMetadata;
+        objects.put(request.getDestinationKey(), new StoredObject(source.content, source.size, source.eTag, userMetadata));
+        final CopyObjectResult result = new CopyObjectResult();
+        result.setETag(source.eTag);
+        return result;
+    }
+
+    private UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+        uploadPartRequests.incrementAndGet();
+        if (partUploadsBeforeFailure.get() >= 0 && partUploadsBeforeFailure.getAndDecrement() == 0) {
+            partUploadsBeforeFailure.set(0);
+            throw error(500, "InternalError", "We encountered an internal error.");
+        }
+        final byte[] part = request.getFile() != null
+            ? readFile(request.getFile(), request.getFileOffset(), request.getPartSize())
+            : ByteStreams.toByteArray(ByteStreams.limit(request.getInputStream(), request.getPartSize()));
+        getUpload(request.getUploadId()).parts.put(request.getPartNumber(), part);
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(part));
+        return result;
+    }
+
+    private CopyPartResult copyPart(CopyPartRequest request) {
+        copyRequests.incrementAndGet();
+        final StoredObject source = getObject(request.getSourceKey());
+        if (!request.getMatchingETagConstraints().isEmpty() && !request.getMatchingETagConstraints().contains(source.eTag)) {
+            return null;
+        }
+        final byte[] content = source.getContent();
+        final int from = request.getFirstByte() != null ? request.getFirstByte().intValue() : 0;
+        final int to = request.getLastByte() != null ? request.getLastByte().intValue() + 1 : content.length;
+        final byte[] part = Arrays.copyOfRange(content, from, to);
+        getUpload(request.getUploadId()).parts.put(request.getPartNumber(), part);
+        final CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(part));
+        return result;
+    }
+
+    private CompleteMultipartUploadResult complete(CompleteMultipartUploadRequest request) {
+        final MultipartUpload upload = getUpload(request.getUploadId());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+            final byte[] part = upload.parts.get(partETag.getPartNumber());
+            if (part == null) {
+                throw error(400, "InvalidPart", "One or more of the specified parts could not be found.");
+            }
+            content.write(part, 0, part.length);
+            final byte[] digest = DigestUtils.md5(part);
+            partDigests.write(digest, 0, digest.length);
+        }
+        multipartUploads.remove(request.getUploadId());
+        // S3's multipart ETag: the MD5 of the parts' MD5s and the number of parts
+        final String eTag = DigestUtils.md5Hex(partDigests.toByteArray()) + "-" + request.getPartETags().size();
+        final byte[] bytes = content.toByteArray();
+        objects.put(upload.key, new StoredObject(bytes, bytes.length, eTag, upload.userMetadata));
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(bucketName);
+        result.setKey(upload.key);
+        result.setETag(eTag);
+        return result;
+    }
+
+    private DeleteObjectsResult delete(DeleteObjectsRequest request) {
+        deleteRequests.incrementAndGet();
+        if (request.getKeys().size() > 1000) {
+            throw error(400, "MalformedXML", "The XML you provided was not well-formed.");
+        }
+        final List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<DeleteObjectsResult.DeletedObject>();
+        final List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<MultiObjectDeleteException.DeleteError>();
+        for (DeleteObjectsRequest.KeyVersion keyVersion : request.getKeys()) {
+            if (undeletableKeys.contains(keyVersion.getKey())) {
+                final MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                error.setKey(keyVersion.getKey());
+                error.setCode("AccessDenied");
+                error.setMessage("Access Denied");
+                errors.add(error);
+                continue;
+            }
+            objects.remove(keyVersion.getKey());
+            final DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+            deletedObject.setKey(keyVersion.getKey());
+            deleted.add(deletedObject);
+        }
+        if (!errors.isEmpty()) {
+            throw new MultiObjectDeleteException(errors, deleted);
+        }
+        return new DeleteObjectsResult(deleted);
+    }
+
+    private static ObjectMetadata metadata(StoredObject stored, long contentLength) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength >= 0 ? contentLength : stored.size);
+        metadata.setHeader("ETag", stored.eTag);
+        metadata.setLastModified(stored.lastModified);
+        metadata.setUserMetadata(new HashMap<String, String>(stored.userMetadata));
+        return metadata;
+    }
+
+    private static Map<String, String> userMetadata(ObjectMetadata metadata) {
+        return metadata != null && metadata.getUserMetadata() != null
+            ? new HashMap<String, String>(metadata.getUserMetadata())
+            : new HashMap<String, String>();
+    }
+
+    private static byte[] readFile(File file, long offset, long length) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] content = new byte[(int) length];
+            in.seek(offset);
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static AmazonS3Exception error(int statusCode, String errorCode, String message) {
+        final AmazonS3Exception e = new AmazonS3Exception(message);
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+}
@@ -0,0 +1,87 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalArtifactCache;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class LocalArtifactCacheTest {
+
+    public void testStoreAndFetch() throws Exception {
+        final File dir = Files.createTempDir();
+        final LocalArtifactCache cache = new LocalArtifactCache(new File(dir, "cache"), 1000, new SystemStreamLog());
+        final File source = write(new File(dir, "foo.rpm"), 3);
+        cache.store("bucket", "repo/foo.rpm", "\"etag-foo\"", source);
+
+        final File target = new File(dir, "staging/foo.rpm");
+        assertTrue(cache.fetch("bucket", "repo/foo.rpm", "etag-foo", 3, target));
+        assertEquals(Files.toByteArray(target), Files.toByteArray(source));
+        // a changed object (another ETag), another key or another bucket is a different entry
+        assertFalse(cache.fetch("bucket", "repo/foo.rpm", "etag-foo2", 3, target));
+        assertFalse(cache.fetch("bucket", "repo/bar.rpm", "etag-foo", 3, target));
+        assertFalse(cache.fetch("other", "repo/foo.rpm", "etag-foo", 3, target));
+        // objects without an ETag are never cached
+        cache.store("bucket", "repo/bar.rpm", null, source);
+        assertFalse(cache.fetch("bucket", "repo/bar.rpm", null, 3, target));
+    }
+
+    public void testDropsEntriesOfAnotherSize() throws Exception {
+        final File dir = Files.createTempDir();
+        final File cacheDirectory = new File(dir, "cache");
+        final LocalArtifactCache cache = new LocalArtifactCache(cacheDirectory, 1000, new SystemStreamLog());
+        cache.store("bucket", "repo/foo.rpm", "etag-foo", write(new File(dir, "foo.rpm"), 10));
+        final File entry = ExtraIOUtils.listAllFiles(cacheDirectory).iterator().next();
+        // e.g., a build that ran out of disk space
+        final RandomAccessFile truncated = new RandomAccessFile(entry, "rw");
+        try {
+            truncated.setLength(4);
+        } finally {
+            truncated.close();
+        }
+
+        final File target = new File(dir, "staging/foo.rpm");
+        assertFalse(cache.fetch("bucket", "repo/foo.rpm", "etag-foo", 10, target));
+        assertFalse(entry.exists());
+        assertFalse(target.exists());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final File dir = Files.createTempDir();
+        final LocalArtifactCache cache = new LocalArtifactCache(new File(dir, "cache"), 25, new SystemStreamLog());
+        cache.store("bucket", "repo/a.rpm", "a", write(new File(dir, "a.rpm"), 10));
+        cache.store("bucket", "repo/b.rpm", "b", write(new File(dir, "b.rpm"), 10));
+        cache.store("bucket", "repo/c.rpm", "c", write(new File(dir, "c.rpm"), 10));
+        final File target = new File(dir, "staging/x.rpm");
+        for (String name : new String[]{"b", "c", "a"}) {
+            // file modification times may be as coarse as a second
+            Thread.sleep(1100);
+            assertTrue(cache.fetch("bucket", "repo/" + name + ".rpm", name, 10, target));
+        }
+
+        cache.evict();
+        assertFalse(cache.fetch("bucket", "repo/b.rpm", "b", 10, target));
+        assertTrue(cache.fetch("bucket", "repo/c.rpm", "c", 10, target));
+        assertTrue(cache.fetch("bucket", "repo/a.rpm", "a", 10, target));
+    }
+
+    private static File write(File file, int size) throws IOException {
+        Files.createParentDirs(file);
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            content[i] = (byte) (file.getName().hashCode() + i);
+        }
+        Files.write(content, file);
+        return file;
+    }
+
+}
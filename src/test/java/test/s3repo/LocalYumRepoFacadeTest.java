@@ -0,0 +1,122 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class LocalYumRepoFacadeTest {
+
+    private File repositoryRoot;
+
+    @BeforeMethod
+    public void createRepositoryRoot() {
+        repositoryRoot = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void deleteRepositoryRoot() throws IOException {
+        FileUtils.deleteDirectory(repositoryRoot);
+    }
+
+    public void testParseFileList() throws Exception {
+        writeRepoData("a.noarch.rpm", "sub/b.noarch.rpm");
+        final LocalYumRepoFacade facade = newFacade();
+        assertEquals(facade.parseFileListFromRepoMetadata(), Arrays.asList("a.noarch.rpm", "sub/b.noarch.rpm"));
+        assertEquals(facade.countPackages(), 2);
+    }
+
+    public void testMetadataChangesAreNoticed() throws Exception {
+        writeRepoData("a.noarch.rpm");
+        final LocalYumRepoFacade facade = newFacade();
+        assertEquals(facade.countPackages(), 1);
+        // e.g., createrepo rewrote the metadata
+        writeRepoData("a.noarch.rpm", "b.noarch.rpm", "c.noarch.rpm");
+        assertEquals(facade.parseFileListFromRepoMetadata(), Arrays.asList("a.noarch.rpm", "b.noarch.rpm", "c.noarch.rpm"));
+    }
+
+    public void testVerifyChecksums() throws Exception {
+        writeRepoData("a.noarch.rpm");
+        final LocalYumRepoFacade facade = newFacade();
+        facade.verifyRepoDataFileChecksums();
+        Files.write(gzip("corrupt"), new File(facade.repoDataDirectory(), "other.xml.gz"));
+        try {
+            facade.verifyRepoDataFileChecksums();
+            fail("expected checksum failure");
+        } catch (MojoExecutionException e) {
+            // expected
+        }
+    }
+
+    public void testRecordedDigestIsUsedUntilFileChanges() throws Exception {
+        writeRepoData("a.noarch.rpm");
+        final LocalYumRepoFacade facade = newFacade();
+        final File other = new File(facade.repoDataDirectory(), "other.xml.gz");
+        facade.recordDigest(other, "sha256", "not-the-real-digest");
+        try {
+            facade.verifyRepoDataFileChecksums();
+            fail("expected the recorded digest to be used");
+        } catch (MojoExecutionException e) {
+            // expected
+        }
+        // once the file changes, the recorded digest no longer applies
+        assertTrue(other.setLastModified(other.lastModified() - 10000));
+        facade.verifyRepoDataFileChecksums();
+    }
+
+    private LocalYumRepoFacade newFacade() {
+        return new LocalYumRepoFacade(repositoryRoot, "createrepo", "", new SystemStreamLog());
+    }
+
+    /** Write primary, filelists and other metadata declaring the given packages, plus a matching repomd.xml. */
+    private void writeRepoData(String... locations) throws IOException {
+        final File repodata = new File(repositoryRoot, "repodata");
+        repodata.mkdirs();
+        StringBuilder primary = new StringBuilder()
+            .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<metadata xmlns=\"http://linux.duke.edu/metadata/common\" packages=\"").append(locations.length).append("\">\n");
+        for (String location : locations) {
+            primary.append("<package type=\"rpm\"><name>").append(location).append("</name>")
+                .append("<location href=\"").append(location).append("\"/></package>\n");
+        }
+        primary.append("</metadata>\n");
+        StringBuilder repomd = new StringBuilder()
+            .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<repomd xmlns=\"http://linux.duke.edu/metadata/repo\">\n");
+        for (String type : new String[]{"primary", "filelists", "other"}) {
+            final byte[] content = gzip("primary".equals(type) ? primary.toString() : "<" + type + "/>");
+            Files.write(content, new File(repodata, type + ".xml.gz"));
+            repomd.append("<data type=\"").append(type).append("\">")
+                .append("<checksum type=\"sha256\">").append(DigestUtils.sha256Hex(content)).append("</checksum>")
+                .append("<location href=\"repodata/").append(type).append(".xml.gz\"/>")
+                .append("</data>\n");
+        }
+        repomd.append("</repomd>\n");
+        Files.write(repomd.toString().getBytes("UTF-8"), new File(repodata, "repomd.xml"));
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,79 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.PrimaryMetadataParser;
+import com.bazaarvoice.maven.plugin.s3repo.support.YumPackage;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class PrimaryMetadataParserTest {
+
+    private static final String PRIMARY =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<metadata xmlns=\"http://linux.duke.edu/metadata/common\" xmlns:rpm=\"http://linux.duke.edu/metadata/rpm\" packages=\"2\">\n"
+            + "<package type=\"rpm\">\n"
+            + "  <name>foo</name>\n"
+            + "  <arch>noarch</arch>\n"
+            + "  <version epoch=\"0\" ver=\"1.0\" rel=\"1\"/>\n"
+            + "  <checksum type=\"sha256\" pkgid=\"YES\">abc123</checksum>\n"
+            + "  <summary>Foo</summary>\n"
+            + "  <size package=\"1234\" installed=\"10\" archive=\"20\"/>\n"
+            + "  <location href=\"sub/foo-1.0.noarch.rpm\"/>\n"
+            + "  <format>\n"
+            + "    <rpm:license>ASL</rpm:license>\n"
+            + "    <rpm:provides><rpm:entry name=\"foo\"/></rpm:provides>\n"
+            + "  </format>\n"
+            + "</package>\n"
+            + "<package type=\"rpm\">\n"
+            + "  <name>bar</name>\n"
+            + "  <arch>x86_64</arch>\n"
+            + "  <version epoch=\"1\" ver=\"2.0\" rel=\"3\"/>\n"
+            + "  <location href=\"bar-2.0-3.x86_64.rpm\"/>\n"
+            + "</package>\n"
+            + "</metadata>\n";
+
+    public void testParse() throws Exception {
+        final List<YumPackage> packages = parse(PRIMARY);
+        assertEquals(packages.size(), 2);
+
+        final YumPackage foo = packages.get(0);
+        assertEquals(foo.getName(), "foo");
+        assertEquals(foo.getArch(), "noarch");
+        assertEquals(foo.getEpoch(), "0");
+        assertEquals(foo.getVersion(), "1.0");
+        assertEquals(foo.getRelease(), "1");
+        assertEquals(foo.getChecksumType(), "sha256");
+        assertEquals(foo.getChecksum(), "abc123");
+        assertEquals(foo.getPackageSize(), 1234L);
+        assertEquals(foo.getLocation(), "sub/foo-1.0.noarch.rpm");
+
+        final YumPackage bar = packages.get(1);
+        assertEquals(bar.getName(), "bar");
+        assertEquals(bar.getEpoch(), "1");
+        assertEquals(bar.getPackageSize(), -1L);
+        assertEquals(bar.getLocation(), "bar-2.0-3.x86_64.rpm");
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(parse("<metadata xmlns=\"http://linux.duke.edu/metadata/common\" packages=\"0\"/>").size(), 0);
+    }
+
+    private static List<YumPackage> parse(String xml) throws MojoExecutionException, UnsupportedEncodingException {
+        final List<YumPackage> packages = new ArrayList<YumPackage>();
+        PrimaryMetadataParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new PrimaryMetadataParser.Visitor() {
+            @Override
+            public void visit(YumPackage yumPackage) {
+                packages.add(yumPackage);
+            }
+        });
+        return packages;
+    }
+
+}
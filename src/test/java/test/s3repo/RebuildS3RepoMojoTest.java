@@ -0,0 +1,135 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.bazaarvoice.maven.plugin.s3repo.rebuild.RebuildS3RepoMojo;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class RebuildS3RepoMojoTest {
+
+    public void testRelocationCopiesOnlyMissingPackages() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        // packages well beyond the 64 KB header prefix that headersOnly stages
+        final byte[] foo = rpm("foo");
+        final byte[] bar = rpm("bar");
+        s3.putObject("source/foo/foo-1.0-1.noarch.rpm", foo);
+        s3.putObject("source/bar/bar-1.0-1.noarch.rpm", bar);
+        // relocated by an earlier build
+        s3.putObject("target/bar/bar-1.0-1.noarch.rpm", bar);
+
+        final RebuildS3RepoMojo mojo = newMojo(s3.client());
+        set(mojo, "s3RepositoryPath", "s3://bucket/source");
+        set(mojo, "s3TargetRepositoryPath", "s3://bucket/target");
+        set(mojo, "stagingDirectory", Files.createTempDir());
+        set(mojo, "headersOnly", true);
+        set(mojo, "serverSideCopy", true);
+        set(mojo, "doNotValidate", true); // the source has no metadata yet
+        mojo.execute();
+
+        // only the missing package is copied, in full; nothing staged from the source is uploaded
+        assertEquals(s3.getCopyRequests(), 1);
+        assertTrue(Arrays.equals(s3.getContent("target/foo/foo-1.0-1.noarch.rpm"), foo));
+        assertTrue(Arrays.equals(s3.getContent("target/bar/bar-1.0-1.noarch.rpm"), bar));
+        assertFalse(s3.getPutRequests().isEmpty());
+        for (String key : s3.getPutRequests()) {
+            assertFalse(key.endsWith(".rpm"), key);
+        }
+        assertTrue(s3.exists("target/repodata/repomd.xml"));
+        assertTrue(Arrays.equals(s3.getContent("source/foo/foo-1.0-1.noarch.rpm"), foo));
+    }
+
+    public void testCacheFailureDoesNotFailDownload() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        final byte[] foo = rpm("foo");
+        s3.putObject("repo/foo/foo-1.0-1.noarch.rpm", foo);
+        final File dir = Files.createTempDir();
+        // a cache that can't be written to, like one on a full disk
+        final File cacheDirectory = new File(dir, "cache");
+        Files.write(new byte[0], cacheDirectory);
+
+        final RebuildS3RepoMojo mojo = newMojo(s3.client());
+        set(mojo, "s3RepositoryPath", "s3://bucket/repo");
+        set(mojo, "stagingDirectory", new File(dir, "staging"));
+        set(mojo, "useCache", true);
+        set(mojo, "cacheDirectory", cacheDirectory);
+        set(mojo, "createrepo", "true"); // any command that succeeds; the metadata is beside the point
+        set(mojo, "doNotValidate", true);
+        set(mojo, "doNotUpload", true);
+        set(mojo, "uploadMetadataOnly", false); // there is no repodata directory to look at
+        mojo.execute();
+
+        assertTrue(Arrays.equals(Files.toByteArray(new File(dir, "staging/foo/foo-1.0-1.noarch.rpm")), foo));
+        assertEquals(s3.getGetRequests(), Arrays.asList("repo/foo/foo-1.0-1.noarch.rpm"));
+    }
+
+    /** Answer a rebuild goal against <code>s3Session</code>, with the parameters' default values (as Maven sets them). */
+    private static RebuildS3RepoMojo newMojo(final AmazonS3 s3Session) throws Exception {
+        final RebuildS3RepoMojo mojo = new RebuildS3RepoMojo() {
+            @Override
+            protected AmazonS3 newS3Client() {
+                return s3Session;
+            }
+        };
+        mojo.setLog(new SystemStreamLog());
+        set(mojo, "maxErrorRetry", 5);
+        set(mojo, "retryBaseDelay", 200L);
+        set(mojo, "retryMaxDelay", 20000L);
+        set(mojo, "retryBudget", 500);
+        set(mojo, "maxConcurrency", 32);
+        set(mojo, "allowCreateRepository", true);
+        set(mojo, "uploadMetadataOnly", true);
+        set(mojo, "createrepo", "createrepo");
+        set(mojo, "excludes", "");
+        set(mojo, "createrepoOpts", "");
+        set(mojo, "downloadConcurrency", 8);
+        set(mojo, "uploadConcurrency", 8);
+        set(mojo, "multipartUploadThreshold", 33554432L);
+        set(mojo, "uploadPartSize", 16777216L);
+        set(mojo, "skipUnchangedUploads", true);
+        set(mojo, "resumeDownloads", true);
+        set(mojo, "resumeUploads", true);
+        set(mojo, "listConcurrency", 8);
+        set(mojo, "listDepth", 2);
+        set(mojo, "multipartCopyThreshold", 1073741824L);
+        set(mojo, "copyPartSize", 268435456L);
+        set(mojo, "deleteConcurrency", 4);
+        return mojo;
+    }
+
+    private static byte[] rpm(String name) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(RepoDataGeneratorTest.rpm(name, "1.0", "1", "noarch"));
+        final byte[] payload = new byte[256 * 1024];
+        new Random(name.hashCode()).nextBytes(payload);
+        out.write(payload);
+        return out.toByteArray();
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                final Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // declared by a superclass
+            }
+        }
+        throw new IllegalArgumentException("no such field: " + name);
+    }
+
+}
@@ -0,0 +1,109 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.support.PrimaryMetadataParser;
+import com.bazaarvoice.maven.plugin.s3repo.support.RemoteYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.YumPackage;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+@Test
+public class RemoteYumRepoFacadeTest {
+
+    private static final String REPOMD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<repomd xmlns=\"http://linux.duke.edu/metadata/repo\">\n"
+        + "  <data type=\"primary\">\n"
+        + "    <checksum type=\"sha256\">abc</checksum>\n"
+        + "    <location href=\"repodata/abc-primary.xml.gz\"/>\n"
+        + "  </data>\n"
+        + "  <data type=\"filelists\">\n"
+        + "    <checksum type=\"sha256\">def</checksum>\n"
+        + "    <location href=\"repodata/def-filelists.xml.gz\"/>\n"
+        + "  </data>\n"
+        + "</repomd>\n";
+
+    private static final String PRIMARY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<metadata xmlns=\"http://linux.duke.edu/metadata/common\" packages=\"2\">\n"
+        + "  <package type=\"rpm\"><name>foo</name><arch>noarch</arch><location href=\"foo-1.0-1.noarch.rpm\"/></package>\n"
+        + "  <package type=\"rpm\"><name>bar</name><arch>x86_64</arch><location href=\"sub/bar-2.0-1.x86_64.rpm\"/></package>\n"
+        + "</metadata>\n";
+
+    public void testVisitPackagesReadsOnlyRepomdAndPrimary() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        s3.putObject("repo/repodata/repomd.xml", REPOMD.getBytes("UTF-8"));
+        s3.putObject("repo/repodata/abc-primary.xml.gz", gzip(PRIMARY));
+        s3.putObject("repo/repodata/def-filelists.xml.gz", gzip("<filelists/>"));
+        s3.putObject("repo/repodata/old-primary.sqlite.bz2", 1000);
+
+        final List<String> locations = new ArrayList<String>();
+        new RemoteYumRepoFacade(s3.client(), S3RepositoryPath.parse("s3://bucket/repo"), newRetrier())
+            .visitPackages(new PrimaryMetadataParser.Visitor() {
+                @Override
+                public void visit(YumPackage yumPackage) {
+                    locations.add(yumPackage.getLocation());
+                }
+            });
+
+        assertEquals(locations, Arrays.asList("foo-1.0-1.noarch.rpm", "sub/bar-2.0-1.x86_64.rpm"));
+        assertEquals(s3.getGetRequests(), Arrays.asList("repo/repodata/repomd.xml", "repo/repodata/abc-primary.xml.gz"));
+        assertEquals(s3.getListRequests(), 0);
+    }
+
+    public void testMissingRepomd() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        try {
+            new RemoteYumRepoFacade(s3.client(), S3RepositoryPath.parse("s3://bucket"), newRetrier()).loadRepoMetadata();
+            fail("expected failure");
+        } catch (MojoExecutionException e) {
+            // expected
+        }
+        assertEquals(s3.getGetRequests(), Arrays.asList("repodata/repomd.xml"));
+    }
+
+    public void testBrokenReadOfPrimaryIsRetried() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        s3.putObject("repo/repodata/repomd.xml", REPOMD.replace("abc-primary.xml.gz", "abc-primary.xml").getBytes("UTF-8"));
+        s3.putObject("repo/repodata/abc-primary.xml", PRIMARY.getBytes("UTF-8"));
+        final RemoteYumRepoFacade facade = new RemoteYumRepoFacade(s3.client(), S3RepositoryPath.parse("s3://bucket/repo"), newRetrier());
+        facade.loadRepoMetadata();
+
+        // the connection breaks after the first package was visited
+        s3.breakNextContentAfter(PRIMARY.indexOf("<package type=\"rpm\"><name>bar"));
+        final List<String> locations = new ArrayList<String>();
+        facade.visitPackages(new PrimaryMetadataParser.Visitor() {
+            @Override
+            public void visit(YumPackage yumPackage) {
+                locations.add(yumPackage.getLocation());
+            }
+        });
+
+        assertEquals(locations, Arrays.asList("foo-1.0-1.noarch.rpm", "sub/bar-2.0-1.x86_64.rpm"));
+        assertEquals(s3.getGetRequests(), Arrays.asList("repo/repodata/repomd.xml", "repo/repodata/abc-primary.xml",
+            "repo/repodata/abc-primary.xml"));
+    }
+
+    private static S3Retrier newRetrier() {
+        return new S3Retrier(3, 1, 10, 100, new SystemStreamLog());
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+}
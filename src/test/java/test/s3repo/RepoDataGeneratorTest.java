@@ -0,0 +1,235 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.PrimaryMetadataParser;
+import com.bazaarvoice.maven.plugin.s3repo.support.RpmDescription;
+import com.bazaarvoice.maven.plugin.s3repo.support.RpmHeader;
+import com.bazaarvoice.maven.plugin.s3repo.support.YumPackage;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class RepoDataGeneratorTest {
+
+    private File repositoryRoot;
+
+    @BeforeMethod
+    public void createRepositoryRoot() {
+        repositoryRoot = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void deleteRepositoryRoot() throws IOException {
+        FileUtils.deleteDirectory(repositoryRoot);
+    }
+
+    public void testReadRpmHeader() throws Exception {
+        final byte[] rpm = rpm("foo", "1.0", "1", "noarch");
+        final RpmHeader header = RpmHeader.read(new ByteArrayInputStream(rpm));
+        assertEquals(header.getString(RpmHeader.NAME), "foo");
+        assertEquals(header.getString(RpmHeader.VERSION), "1.0");
+        assertEquals(header.getNumber(RpmHeader.EPOCH, 0), 0L);
+        assertEquals(header.getStringArray(RpmHeader.BASENAMES), new String[]{"foo", "foo.conf"});
+        assertEquals(header.getHeaderStart(), 96L + 16);
+        assertEquals(header.getHeaderEnd(), (long) rpm.length - 4 /*payload*/);
+    }
+
+    public void testRequiredPrefixLength() throws Exception {
+        final byte[] rpm = rpm("foo", "1.0", "1", "noarch");
+        final long headerEnd = rpm.length - 4;
+        // lead + signature preamble, then the header preamble, then the whole header
+        assertEquals(RpmHeader.requiredPrefixLength(rpm, 10), 96L + 16);
+        assertEquals(RpmHeader.requiredPrefixLength(rpm, 96 + 16), 96L + 16 + 16);
+        assertEquals(RpmHeader.requiredPrefixLength(rpm, 96 + 16 + 16), headerEnd);
+        assertEquals(RpmHeader.requiredPrefixLength(rpm, rpm.length), headerEnd);
+        // the header alone is enough to read it
+        final byte[] prefix = Arrays.copyOf(rpm, (int) headerEnd);
+        assertEquals(RpmHeader.read(new ByteArrayInputStream(prefix)).getString(RpmHeader.NAME), "foo");
+    }
+
+    public void testCreateRepoFromDescriptions() throws Exception {
+        final RpmHeader header = RpmHeader.read(new ByteArrayInputStream(rpm("foo", "1.0", "1", "noarch")));
+        final LocalYumRepoFacade facade = newFacade();
+        facade.generateRepoData(Collections.singletonList(writeRpm("old-1.0-1.noarch.rpm", "old", "1.0", "1", "noarch")));
+        // e.g., the package is in S3 only and its checksum is its (single-part) ETag
+        facade.createRepoFromDescriptions(Collections.singletonList(
+            new RpmDescription(header, "md5", "0123456789abcdef0123456789abcdef", 12345, 1400000000, "foo-1.0-1.noarch.rpm")));
+
+        facade.verifyRepoDataFileChecksums();
+        final List<YumPackage> packages = primaryPackages(facade);
+        assertEquals(packages.size(), 1);
+        assertEquals(packages.get(0).getLocation(), "foo-1.0-1.noarch.rpm");
+        assertEquals(packages.get(0).getChecksumType(), "md5");
+        assertEquals(packages.get(0).getChecksum(), "0123456789abcdef0123456789abcdef");
+        assertEquals(packages.get(0).getPackageSize(), 12345L);
+    }
+
+    public void testCreateRepository() throws Exception {
+        final File rpm = writeRpm("sub/foo-1.0-1.noarch.rpm", "foo", "1.0", "1", "noarch");
+        final LocalYumRepoFacade facade = newFacade();
+        facade.generateRepoData(Collections.singletonList(rpm));
+
+        assertTrue(facade.isRepoDataExists());
+        facade.verifyRepoDataFileChecksums();
+        final List<YumPackage> packages = primaryPackages(facade);
+        assertEquals(packages.size(), 1);
+        assertEquals(packages.get(0).getName(), "foo");
+        assertEquals(packages.get(0).getArch(), "noarch");
+        assertEquals(packages.get(0).getVersion(), "1.0");
+        assertEquals(packages.get(0).getLocation(), "sub/foo-1.0-1.noarch.rpm");
+        assertEquals(packages.get(0).getChecksum(), DigestUtils.sha256Hex(Files.toByteArray(rpm)));
+        assertEquals(packages.get(0).getPackageSize(), rpm.length());
+        // files are listed in filelists; only /etc files make it into primary
+        final String filelists = gunzip(new File(facade.repoDataDirectory(), "filelists.xml.gz"));
+        assertTrue(filelists.contains("<file>/usr/share/foo</file>"), filelists);
+        assertTrue(filelists.contains("<file>/etc/foo.conf</file>"), filelists);
+        final String primary = gunzip(new File(facade.repoDataDirectory(), "primary.xml.gz"));
+        assertTrue(primary.contains("<file>/etc/foo.conf</file>"), primary);
+        assertTrue(!primary.contains("/usr/share/foo"), primary);
+    }
+
+    public void testUpdateRepositoryWithoutExistingPackages() throws Exception {
+        final LocalYumRepoFacade facade = newFacade();
+        facade.generateRepoData(Arrays.asList(
+            writeRpm("foo-1.0-1.noarch.rpm", "foo", "1.0", "1", "noarch"),
+            writeRpm("bar-2.0-1.x86_64.rpm", "bar", "2.0", "1", "x86_64")));
+        // existing packages are carried over from the metadata; they needn't exist locally
+        assertTrue(new File(repositoryRoot, "foo-1.0-1.noarch.rpm").delete());
+        assertTrue(new File(repositoryRoot, "bar-2.0-1.x86_64.rpm").delete());
+
+        facade.generateRepoData(Collections.singletonList(writeRpm("baz-3.0-1.noarch.rpm", "baz", "3.0", "1", "noarch")));
+
+        facade.verifyRepoDataFileChecksums();
+        assertEquals(facade.parseFileListFromRepoMetadata(),
+            Arrays.asList("foo-1.0-1.noarch.rpm", "bar-2.0-1.x86_64.rpm", "baz-3.0-1.noarch.rpm"));
+        assertEquals(facade.countPackages(), 3);
+        final String other = gunzip(new File(facade.repoDataDirectory(), "other.xml.gz"));
+        assertTrue(other.contains("packages=\"3\""), other);
+    }
+
+    private LocalYumRepoFacade newFacade() {
+        return new LocalYumRepoFacade(repositoryRoot, "createrepo", "", new SystemStreamLog());
+    }
+
+    private static List<YumPackage> primaryPackages(LocalYumRepoFacade facade) throws Exception {
+        final List<YumPackage> packages = new ArrayList<YumPackage>();
+        facade.visitPackages(new PrimaryMetadataParser.Visitor() {
+            @Override
+            public void visit(YumPackage yumPackage) {
+                packages.add(yumPackage);
+            }
+        });
+        return packages;
+    }
+
+    private File writeRpm(String path, String name, String version, String release, String arch) throws IOException {
+        final File file = new File(repositoryRoot, path);
+        file.getParentFile().mkdirs();
+        Files.write(rpm(name, version, release, arch), file);
+        return file;
+    }
+
+    /** Build a minimal RPM: lead, empty signature, a header with a few tags and a dummy payload. */
+    static byte[] rpm(String name, String version, String release, String arch) throws IOException {
+        final HeaderBuilder header = new HeaderBuilder()
+            .string(RpmHeader.NAME, name)
+            .string(RpmHeader.VERSION, version)
+            .string(RpmHeader.RELEASE, release)
+            .string(RpmHeader.ARCH, arch)
+            .string(RpmHeader.SOURCERPM, name + "-" + version + "-" + release + ".src.rpm")
+            .int32(RpmHeader.FILEMODES, 0100644, 0100644)
+            .int32(RpmHeader.DIRINDEXES, 0, 1)
+            .stringArray(RpmHeader.BASENAMES, "foo", "foo.conf")
+            .stringArray(RpmHeader.DIRNAMES, "/usr/share/", "/etc/");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBuffer lead = ByteBuffer.allocate(RpmHeader.LEAD_SIZE);
+        lead.putInt(0xedabeedb);
+        out.write(lead.array());
+        out.write(new HeaderBuilder().build()); // signature
+        out.write(header.build());
+        out.write(new byte[]{1, 2, 3, 4}); // payload
+        return out.toByteArray();
+    }
+
+    private static String gunzip(File file) throws IOException {
+        final InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class HeaderBuilder {
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int count;
+
+        HeaderBuilder string(int tag, String value) throws IOException {
+            entry(tag, 6, 1);
+            data.write(value.getBytes("UTF-8"));
+            data.write(0);
+            return this;
+        }
+
+        HeaderBuilder stringArray(int tag, String... values) throws IOException {
+            entry(tag, 8, values.length);
+            for (String value : values) {
+                data.write(value.getBytes("UTF-8"));
+                data.write(0);
+            }
+            return this;
+        }
+
+        HeaderBuilder int32(int tag, int... values) throws IOException {
+            while (data.size() % 4 != 0) {
+                data.write(0);
+            }
+            entry(tag, 4, values.length);
+            for (int value : values) {
+                data.write(ByteBuffer.allocate(4).putInt(value).array());
+            }
+            return this;
+        }
+
+        private void entry(int tag, int type, int valueCount) throws IOException {
+            index.write(ByteBuffer.allocate(16).putInt(tag).putInt(type).putInt(data.size()).putInt(valueCount).array());
+            ++count;
+        }
+
+        byte[] build() {
+            final ByteBuffer header = ByteBuffer.allocate(RpmHeader.PREAMBLE_SIZE + index.size() + data.size());
+            header.putInt(0x8eade801).putInt(0).putInt(count).putInt(data.size());
+            header.put(index.toByteArray()).put(data.toByteArray());
+            return header.array();
+        }
+    }
+
+}
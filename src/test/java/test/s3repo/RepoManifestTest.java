@@ -0,0 +1,140 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepoManifest;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+@Test
+public class RepoManifestTest {
+
+    public void testRoundTrip() throws Exception {
+        RepoManifest manifest = new RepoManifest();
+        manifest.put("repodata/repomd.xml", 1234, "\"0123456789abcdef0123456789abcdef\"", 1400000000000L);
+        manifest.put("sub/odd\tname.rpm", 5, "abc-2", 1);
+        manifest.put("a.rpm", 10, null, 2);
+
+        RepoManifest read = roundTrip(manifest);
+        assertEquals(read.size(), 3);
+        assertEquals(read.get("repodata/repomd.xml").getSize(), 1234L);
+        assertEquals(read.get("repodata/repomd.xml").getETag(), "0123456789abcdef0123456789abcdef");
+        assertEquals(read.get("repodata/repomd.xml").getLastModified(), 1400000000000L);
+        assertEquals(read.get("sub/odd\tname.rpm").getETag(), "abc-2");
+        assertEquals(read.get("a.rpm").getETag(), "");
+    }
+
+    public void testIgnoresFoldersAndOwnFiles() {
+        RepoManifest manifest = new RepoManifest();
+        manifest.put("sub/", 0, "x", 0);
+        manifest.put(".s3repo/manifest.gz", 10, "x", 0);
+        manifest.put("a.rpm", 10, "x", 0);
+        assertEquals(manifest.size(), 1);
+        manifest.remove("a.rpm");
+        assertNull(manifest.get("a.rpm"));
+    }
+
+    public void testToObjectSummaries() {
+        RepoManifest manifest = new RepoManifest();
+        manifest.put("b.rpm", 2, "bb", 2000);
+        manifest.put("a.rpm", 1, "aa", 1000);
+        List<S3ObjectSummary> summaries = manifest.toObjectSummaries(S3RepositoryPath.parse("s3://bucket/repo"));
+        assertEquals(summaries.size(), 2);
+        assertEquals(summaries.get(0).getBucketName(), "bucket");
+        assertEquals(summaries.get(0).getKey(), "repo/a.rpm");
+        assertEquals(summaries.get(0).getSize(), 1L);
+        assertEquals(summaries.get(0).getETag(), "aa");
+        assertEquals(summaries.get(0).getLastModified().getTime(), 1000L);
+        assertEquals(summaries.get(1).getKey(), "repo/b.rpm");
+    }
+
+    public void testLoadRetriesBrokenRead() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        final S3RepositoryPath repo = S3RepositoryPath.parse("s3://bucket/repo");
+        final S3Retrier retrier = new S3Retrier(3, 1, 10, 100, new SystemStreamLog());
+        assertNull(RepoManifest.load(s3.client(), repo, retrier));
+        final RepoManifest manifest = new RepoManifest();
+        manifest.put("a.rpm", 10, "aa", 1000);
+        manifest.put("b.rpm", 20, "bb", 2000);
+        manifest.save(s3.client(), repo);
+
+        s3.breakNextContentAfter(10);
+        final RepoManifest loaded = RepoManifest.load(s3.client(), repo, retrier);
+        assertEquals(loaded.size(), 2);
+        assertEquals(retrier.getRetries(), Collections.singletonMap("download", 1L));
+    }
+
+    public void testVisitsOnlyRecordedObjects() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        final S3RepositoryPath repo = S3RepositoryPath.parse("s3://bucket/repo");
+        s3.putObject("repo/a.rpm", 10);
+        s3.putObject("repo/sub/", 0);
+        s3.putObject("repo/.s3repo/manifest.gz", 20);
+        final List<String> visited = new ArrayList<String>();
+        final RepoManifest manifest = RepoManifest.fetch(s3.client(), newRetrier(), repo, true, 1, 0,
+            new SystemStreamLog(), new RepoManifest.Visitor() {
+                @Override
+                public void visit(S3ObjectSummary summary) {
+                    visited.add(summary.getKey());
+                }
+            });
+        assertEquals(visited, Collections.singletonList("repo/a.rpm"));
+        assertEquals(manifest.size(), 1);
+    }
+
+    public void testLoadCurrentNeverLists() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        final S3RepositoryPath repo = S3RepositoryPath.parse("s3://bucket/repo");
+        final byte[] repomd = "<repomd/>".getBytes("UTF-8");
+        s3.putObject("repo/repodata/repomd.xml", repomd);
+        s3.putObject("repo/a.rpm", 10);
+        final RepoManifest manifest = new RepoManifest();
+        manifest.put("repodata/repomd.xml", repomd.length, "stale", 1000);
+        manifest.put("a.rpm", 10, "aa", 1000);
+        manifest.save(s3.client(), repo);
+        assertNull(RepoManifest.loadCurrent(s3.client(), newRetrier(), repo));
+
+        manifest.put("repodata/repomd.xml", repomd.length, DigestUtils.md5Hex(repomd), 1000);
+        manifest.save(s3.client(), repo);
+        assertEquals(RepoManifest.loadCurrent(s3.client(), newRetrier(), repo).size(), 2);
+        assertEquals(s3.getListRequests(), 0);
+    }
+
+    public void testRejectsOtherContent() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write("not a manifest\n".getBytes("UTF-8"));
+        out.close();
+        try {
+            RepoManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+            fail("expected failure");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static S3Retrier newRetrier() {
+        return new S3Retrier(3, 1, 10, 100, new SystemStreamLog());
+    }
+
+    private static RepoManifest roundTrip(RepoManifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        return RepoManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+}
@@ -0,0 +1,69 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.S3BatchDeleter;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class S3BatchDeleterTest {
+
+    public void testDeletesInBatches() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        for (int i = 0; i < 2500; ++i) {
+            s3.putObject("repo/pkg" + i + ".rpm", 1);
+        }
+        s3.putObject("repo/keep.rpm", 1);
+
+        final S3BatchDeleter deleter = new S3BatchDeleter(s3.client(), "bucket", 2, new SystemStreamLog());
+        try {
+            for (int i = 0; i < 2500; ++i) {
+                deleter.delete("repo/pkg" + i + ".rpm");
+            }
+            deleter.awaitCompletion();
+        } finally {
+            deleter.shutdown();
+        }
+
+        assertEquals(s3.getDeleteRequests(), 3);
+        assertEquals(deleter.getDeletedKeys().size(), 2500);
+        assertFalse(s3.exists("repo/pkg0.rpm"));
+        assertFalse(s3.exists("repo/pkg2499.rpm"));
+        assertTrue(s3.exists("repo/keep.rpm"));
+    }
+
+    public void testReportsKeysThatWereNotDeleted() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        s3.putObject("a.rpm", 1);
+        s3.putObject("b.rpm", 1);
+        s3.putObject("c.rpm", 1);
+        s3.denyDelete("b.rpm");
+
+        final S3BatchDeleter deleter = new S3BatchDeleter(s3.client(), "bucket", 2, new SystemStreamLog());
+        try {
+            deleter.delete("a.rpm");
+            deleter.delete("b.rpm");
+            deleter.delete("c.rpm");
+            deleter.awaitCompletion();
+            fail("expected failure");
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage().contains("b.rpm (AccessDenied: Access Denied)"), e.getMessage());
+        } finally {
+            deleter.shutdown();
+        }
+
+        final Set<String> deleted = deleter.getDeletedKeys();
+        assertEquals(deleted.size(), 2);
+        assertTrue(deleted.contains("a.rpm"));
+        assertTrue(deleted.contains("c.rpm"));
+        assertTrue(s3.exists("b.rpm"));
+    }
+
+}
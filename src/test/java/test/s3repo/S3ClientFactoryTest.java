@@ -0,0 +1,42 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3ClientFactory;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystemSession;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+@Test
+public class S3ClientFactoryTest {
+
+    public void testOneClientPerSessionAndConfiguration() throws Exception {
+        final RepositorySystemSession session = new DefaultRepositorySystemSession();
+        final AmazonS3Client client = (AmazonS3Client) newFactory().getClient(session);
+        try {
+            assertSame(newFactory().getClient(session), client);
+
+            final AmazonS3Client other = (AmazonS3Client) newFactory().withMaxConnections(8).getClient(session);
+            assertNotSame(other, client);
+            other.shutdown();
+
+            final AmazonS3Client unshared = (AmazonS3Client) newFactory().getClient(new DefaultRepositorySystemSession());
+            assertNotSame(unshared, client);
+            unshared.shutdown();
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private static S3ClientFactory newFactory() {
+        return new S3ClientFactory()
+            .withCredentials("access", "secret")
+            .withMaxConnections(16)
+            .withSocketTimeout(1000)
+            .withEndpoint("http://localhost:9000")
+            .withPathStyleAccess(true);
+    }
+
+}
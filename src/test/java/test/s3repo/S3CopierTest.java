@@ -0,0 +1,52 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Copier;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class S3CopierTest {
+
+    private static final int MB = 1024 * 1024;
+
+    public void testCopiesSmallAndLargeObjects() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 1000);
+        final byte[] large = new byte[11 * MB + 3];
+        new Random(42).nextBytes(large);
+        s3.putObject("repo/large.rpm", large);
+        s3.putObject("repo/small1.rpm", new byte[]{1, 2, 3});
+        s3.putObject("repo/small2.rpm", new byte[]{4, 5});
+
+        final S3Copier copier = new S3Copier(s3.client(), 4, 5 * MB, 10 * MB);
+        try {
+            copier.copy("bucket", "repo/large.rpm", "bucket", "repo/large-copy.rpm", large.length);
+            copier.copy("bucket", "repo/small1.rpm", "bucket", "repo/small1-copy.rpm", 3);
+            copier.copy("bucket", "repo/small2.rpm", "bucket", "repo/small2-copy.rpm", -1); // size looked up
+            copier.awaitCompletion();
+        } finally {
+            copier.shutdown();
+        }
+
+        assertTrue(Arrays.equals(s3.getContent("repo/large-copy.rpm"), large));
+        assertTrue(Arrays.equals(s3.getContent("repo/small1-copy.rpm"), new byte[]{1, 2, 3}));
+        assertTrue(Arrays.equals(s3.getContent("repo/small2-copy.rpm"), new byte[]{4, 5}));
+        // three parts for the large object, one request for each small one
+        assertEquals(s3.getCopyRequests(), 5);
+        assertEquals(s3.getPendingMultipartUploads(), 0);
+        // S3's multipart ETag: the MD5 of the parts' MD5s and the number of parts
+        final ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        for (int offset = 0; offset < large.length; offset += 5 * MB) {
+            partDigests.write(DigestUtils.md5(Arrays.copyOfRange(large, offset, Math.min(offset + 5 * MB, large.length))));
+        }
+        assertEquals(copier.getCopiedETags().get("repo/large-copy.rpm"), DigestUtils.md5Hex(partDigests.toByteArray()) + "-3");
+        assertEquals(copier.getCopiedETags().size(), 3);
+    }
+
+}
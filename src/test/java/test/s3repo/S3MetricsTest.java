@@ -0,0 +1,56 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Metrics;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class S3MetricsTest {
+
+    public void testCountsRequestsAndBytesByPhase() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", new byte[1000]);
+        final S3Metrics metrics = new S3Metrics("rebuild-repo", new SystemStreamLog());
+        final AmazonS3 client = metrics.wrap(s3.client());
+
+        metrics.startPhase("download");
+        for (int i = 0; i < 2; ++i) {
+            final S3Object object = client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+            try {
+                IOUtils.toByteArray(object.getObjectContent());
+            } finally {
+                object.close();
+            }
+        }
+        metrics.startPhase("upload");
+        final File file = File.createTempFile("s3repo", ".rpm");
+        Files.write(new byte[300], file);
+        client.putObject(new PutObjectRequest("bucket", "repo/bar.rpm", file));
+        // a phase that is started again adds to its totals
+        metrics.startPhase("download");
+        client.getObjectMetadata("bucket", "repo/foo.rpm");
+        metrics.endPhase();
+
+        metrics.logSummary();
+        final File json = new File(Files.createTempDir(), "target/s3repo-metrics.json");
+        metrics.writeJson(json);
+        final String written = Files.toString(json, Charsets.UTF_8).replaceAll("\\s+", "");
+        assertTrue(written.startsWith("{\"goal\":\"rebuild-repo\","), written);
+        assertTrue(written.contains("\"name\":\"download\",\"millis\":"), written);
+        assertTrue(written.contains("\"requests\":{\"getObject\":2,\"getObjectMetadata\":1},\"bytesIn\":2000,\"bytesOut\":0,"
+            + "\"filesIn\":2,\"filesOut\":0}"), written);
+        assertTrue(written.contains("\"requests\":{\"putObject\":1},\"bytesIn\":0,\"bytesOut\":300,\"filesIn\":0,\"filesOut\":1}"), written);
+    }
+
+}
@@ -0,0 +1,118 @@
+package test.s3repo;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Retrier;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class S3RetrierTest {
+
+    public void testClassification() {
+        final AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+        slowDown.setStatusCode(503);
+        slowDown.setErrorCode("SlowDown");
+        assertTrue(S3Retrier.isRetryable(slowDown));
+        final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        assertFalse(S3Retrier.isRetryable(notFound));
+        assertTrue(S3Retrier.isRetryable(new AmazonClientException("Unable to execute HTTP request",
+            new SocketTimeoutException("Read timed out"))));
+        assertFalse(S3Retrier.isRetryable(new AmazonClientException("Interrupted", new InterruptedIOException())));
+        assertFalse(S3Retrier.isRetryable(new IOException("Truncated RPM header")));
+    }
+
+    public void testRetriesUntilSuccess() throws Exception {
+        final S3Retrier retrier = new S3Retrier(3, 1, 10, 100, new SystemStreamLog());
+        final AtomicInteger attempts = new AtomicInteger();
+        final String result = retrier.call("download", "key", new S3Retrier.Task<String, IOException>() {
+            @Override
+            public String run() throws IOException {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return "done";
+            }
+        });
+        assertEquals(result, "done");
+        assertEquals(attempts.get(), 3);
+        assertEquals(retrier.getRetries(), Collections.singletonMap("download", 2L));
+        retrier.logSummary();
+    }
+
+    public void testGivesUpAfterMaxRetries() {
+        final S3Retrier retrier = new S3Retrier(2, 1, 10, 100, new SystemStreamLog());
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            retrier.call("download", "key", new S3Retrier.Task<Void, IOException>() {
+                @Override
+                public Void run() throws IOException {
+                    attempts.incrementAndGet();
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            });
+            fail("expected the last error to be rethrown");
+        } catch (IOException e) {
+            assertTrue(e instanceof SocketTimeoutException);
+        }
+        assertEquals(attempts.get(), 3);
+    }
+
+    public void testRetryBudget() throws Exception {
+        final S3Retrier retrier = new S3Retrier(5, 1, 10, 2, new SystemStreamLog());
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", new byte[]{1, 2, 3});
+        final AmazonS3 client = retrier.wrap(s3.client());
+
+        s3.failNextRequests(2);
+        final S3Object object = client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+        assertEquals(object.getObjectMetadata().getContentLength(), 3);
+
+        // the budget of getObject retries is spent
+        s3.failNextRequests(1);
+        try {
+            client.getObject(new GetObjectRequest("bucket", "repo/foo.rpm"));
+            fail("expected a failure without retries");
+        } catch (AmazonS3Exception e) {
+            assertEquals(e.getErrorCode(), "SlowDown");
+        }
+        retrier.logSummary();
+    }
+
+    public void testNestedCallsAreRetriedOnce() throws Exception {
+        final S3Retrier retrier = new S3Retrier(1, 1, 10, 100, new SystemStreamLog());
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", 3);
+        final AmazonS3 client = retrier.wrap(s3.client());
+        s3.failNextRequests(2);
+        try {
+            retrier.call("download", "repo/foo.rpm", new S3Retrier.Task<Void, RuntimeException>() {
+                @Override
+                public Void run() {
+                    client.getObjectMetadata("bucket", "repo/foo.rpm");
+                    return null;
+                }
+            });
+            fail("expected the second failure to be rethrown");
+        } catch (AmazonS3Exception e) {
+            // the download was attempted twice; the inner calls were not retried on their own
+        }
+        assertEquals(client.getObjectMetadata("bucket", "repo/foo.rpm").getContentLength(), 3);
+    }
+
+}
@@ -0,0 +1,157 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Uploader;
+import com.bazaarvoice.maven.plugin.s3repo.util.UploadJournal;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class S3UploaderTest {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    public void testResumesIncompleteMultipartUpload() throws Exception {
+        final File staging = Files.createTempDir();
+        final byte[] content = randomBytes(6 * PART_SIZE);
+        final File file = new File(staging, "foo.rpm");
+        Files.write(content, file);
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+
+        // the first build fails after uploading 2 of 6 parts
+        s3.failPartUploadsAfter(2);
+        UploadJournal journal = UploadJournal.open(staging, new SystemStreamLog());
+        S3Uploader uploader = new S3Uploader(s3.client(), 1, PART_SIZE, 2 * PART_SIZE, journal, new SystemStreamLog());
+        try {
+            uploader.upload("bucket", "repo/foo.rpm", file);
+            uploader.awaitCompletion();
+            fail("expected the upload to fail");
+        } catch (MojoExecutionException e) {
+            // expected
+        } finally {
+            uploader.shutdown();
+            journal.close();
+        }
+        assertEquals(s3.getPendingMultipartUploads(), 1); // kept to be resumed
+        assertFalse(s3.exists("repo/foo.rpm"));
+
+        // the next build uploads only the parts that are missing
+        s3.failPartUploadsAfter(-1);
+        final int partUploads = s3.getUploadPartRequests();
+        journal = UploadJournal.open(staging, new SystemStreamLog());
+        uploader = new S3Uploader(s3.client(), 4, PART_SIZE, 2 * PART_SIZE, journal, new SystemStreamLog());
+        try {
+            uploader.upload("bucket", "repo/foo.rpm", file);
+            uploader.awaitCompletion();
+            uploader.abortStaleUploads();
+        } finally {
+            uploader.shutdown();
+            journal.close();
+        }
+        assertEquals(s3.getUploadPartRequests() - partUploads, 4);
+        assertTrue(Arrays.equals(s3.getContent("repo/foo.rpm"), content));
+        assertEquals(s3.getPendingMultipartUploads(), 0);
+        assertEquals(UploadJournal.open(staging, new SystemStreamLog()).getPendingUploadCount(), 0);
+    }
+
+    public void testAbortsIncompleteUploads() throws Exception {
+        final File staging = Files.createTempDir();
+        final File file = new File(staging, "foo.rpm");
+        Files.write(randomBytes(3 * PART_SIZE), file);
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+
+        // without a journal a failed multipart upload is aborted
+        s3.failPartUploadsAfter(2);
+        S3Uploader uploader = new S3Uploader(s3.client(), 1, PART_SIZE, 2 * PART_SIZE);
+        try {
+            uploader.upload("bucket", "repo/foo.rpm", file);
+            uploader.awaitCompletion();
+            fail("expected the upload to fail");
+        } catch (MojoExecutionException e) {
+            // expected
+        } finally {
+            uploader.shutdown();
+        }
+        assertEquals(s3.getPendingMultipartUploads(), 0);
+
+        // a journaled upload of a file that changed since is aborted once everything else was uploaded
+        s3.failPartUploadsAfter(2);
+        UploadJournal journal = UploadJournal.open(staging, new SystemStreamLog());
+        uploader = new S3Uploader(s3.client(), 1, PART_SIZE, 2 * PART_SIZE, journal, new SystemStreamLog());
+        try {
+            uploader.upload("bucket", "repo/foo.rpm", file);
+            uploader.awaitCompletion();
+            fail("expected the upload to fail");
+        } catch (MojoExecutionException e) {
+            // expected
+        } finally {
+            uploader.shutdown();
+            journal.close();
+        }
+        assertEquals(s3.getPendingMultipartUploads(), 1);
+        s3.failPartUploadsAfter(-1);
+        Files.write(randomBytes(3 * PART_SIZE + 1024), file);
+        journal = UploadJournal.open(staging, new SystemStreamLog());
+        uploader = new S3Uploader(s3.client(), 1, PART_SIZE, 2 * PART_SIZE, journal, new SystemStreamLog());
+        try {
+            uploader.upload("bucket", "repo/foo.rpm", file);
+            uploader.awaitCompletion();
+            assertEquals(s3.getPendingMultipartUploads(), 1);
+            uploader.abortStaleUploads();
+        } finally {
+            uploader.shutdown();
+            journal.close();
+        }
+        assertEquals(s3.getPendingMultipartUploads(), 0);
+        assertEquals(s3.getContent("repo/foo.rpm").length, 3 * PART_SIZE + 1024);
+
+        // cleaning the staging directory without resuming aborts what is left
+        s3.failPartUploadsAfter(2);
+        journal = UploadJournal.open(staging, new SystemStreamLog());
+        uploader = new S3Uploader(s3.client(), 1, PART_SIZE, 2 * PART_SIZE, journal, new SystemStreamLog());
+        try {
+            uploader.upload("bucket", "repo/bar.rpm", file);
+            uploader.awaitCompletion();
+            fail("expected the upload to fail");
+        } catch (MojoExecutionException e) {
+            // expected
+        } finally {
+            uploader.shutdown();
+            journal.close();
+        }
+        assertEquals(s3.getPendingMultipartUploads(), 1);
+        UploadJournal.abortPendingUploads(staging, s3.client(), new SystemStreamLog());
+        assertEquals(s3.getPendingMultipartUploads(), 0);
+        assertFalse(UploadJournal.getFile(staging).exists());
+    }
+
+    public void testRejectsPartSizesS3Rejects() {
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        for (long[] sizes : new long[][]{{PART_SIZE - 1, 2 * PART_SIZE}, {6L * 1024 * 1024 * 1024, 7L * 1024 * 1024 * 1024},
+                {PART_SIZE, PART_SIZE - 1}}) {
+            try {
+                new S3Uploader(s3.client(), 1, sizes[0], sizes[1]);
+                fail("expected part size " + sizes[0] + " and threshold " + sizes[1] + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,170 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.bazaarvoice.maven.plugin.s3repo.util.ObjectListingIterator;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class S3UtilsTest {
+
+    public void testSinglePartETag() throws IOException {
+        final byte[] content = "hello, world".getBytes("UTF-8");
+        final File file = writeTempFile(content);
+        assertTrue(S3Utils.matchesETag(file, DigestUtils.md5Hex(content), 5));
+        assertTrue(S3Utils.matchesETag(file, "\"" + DigestUtils.md5Hex(content) + "\"", 5));
+        assertFalse(S3Utils.matchesETag(file, DigestUtils.md5Hex("something else"), 5));
+        assertFalse(S3Utils.matchesETag(file, null, 5));
+        assertTrue(S3Utils.matchesSinglePartETag(file, "\"" + DigestUtils.md5Hex(content) + "\""));
+        assertFalse(S3Utils.matchesSinglePartETag(file, DigestUtils.md5Hex(content) + "-1"));
+    }
+
+    public void testMultipartETag() throws IOException {
+        final byte[] content = "hello, world".getBytes("UTF-8"); // 12 bytes => 3 parts of 5 bytes
+        final File file = writeTempFile(content);
+        final byte[] partDigests = new byte[3 * 16];
+        System.arraycopy(DigestUtils.md5(Arrays.copyOfRange(content, 0, 5)), 0, partDigests, 0, 16);
+        System.arraycopy(DigestUtils.md5(Arrays.copyOfRange(content, 5, 10)), 0, partDigests, 16, 16);
+        System.arraycopy(DigestUtils.md5(Arrays.copyOfRange(content, 10, 12)), 0, partDigests, 32, 16);
+        final String eTag = DigestUtils.md5Hex(partDigests) + "-3";
+        assertTrue(S3Utils.matchesETag(file, eTag, 5));
+        // a different part size cannot reproduce the ETag
+        assertFalse(S3Utils.matchesETag(file, eTag, 6));
+    }
+
+    public void testParallelListing() {
+        final FakeS3 s3 = new FakeS3("bucket", 3);
+        final List<String> expected = new ArrayList<String>();
+        expected.add("repo/repodata/repomd.xml");
+        expected.add("repo/top.rpm");
+        for (int team = 0; team < 5; ++team) {
+            for (String arch : new String[]{"noarch", "x86_64"}) {
+                for (int i = 0; i < 4; ++i) {
+                    expected.add("repo/team" + team + "/" + arch + "/pkg" + i + ".rpm");
+                }
+            }
+        }
+        for (String key : expected) {
+            s3.putObject(key, 1);
+        }
+        s3.putObject("other/pkg.rpm", 1); // outside the prefix
+        Collections.sort(expected);
+
+        for (int depth = 0; depth <= 3; ++depth) {
+            final ObjectListingIterator listed = S3Utils.iterateAllObjects(s3.client(),
+                new ListObjectsRequest().withBucketName("bucket").withPrefix("repo/"), 2, 4, depth);
+            final List<String> keys = new ArrayList<String>();
+            while (listed.hasNext()) {
+                keys.add(listed.next().getKey());
+            }
+            // partitions are handed over as they are listed, not in key order
+            Collections.sort(keys);
+            assertEquals(keys, expected, "depth " + depth);
+        }
+    }
+
+    public void testParallelListingWaitsForConsumer() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 2);
+        for (int team = 0; team < 10; ++team) {
+            for (int i = 0; i < 20; ++i) {
+                s3.putObject("repo/team" + team + "/pkg" + i + ".rpm", 1);
+            }
+        }
+        final ObjectListingIterator iterator = S3Utils.iterateAllObjects(s3.client(),
+            new ListObjectsRequest().withBucketName("bucket").withPrefix("repo/"), 1, 2, 1);
+        try {
+            assertTrue(iterator.hasNext());
+            Thread.sleep(200);
+            // the (five page) discovery listing, then a page per listing thread and one queued page
+            assertTrue(s3.getListRequests() <= 10, s3.getListRequests() + " list requests");
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                ++count;
+            }
+            assertEquals(count, 200);
+        } finally {
+            iterator.close();
+        }
+    }
+
+    public void testIterateAllObjects() throws Exception {
+        final FakeS3 s3 = new FakeS3("bucket", 2);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; ++i) {
+            expected.add("repo/pkg" + (char) ('a' + i) + ".rpm");
+            s3.putObject(expected.get(i), 1);
+        }
+        final ListObjectsRequest request = new ListObjectsRequest().withBucketName("bucket").withPrefix("repo/");
+
+        final ObjectListingIterator iterator = S3Utils.iterateAllObjects(s3.client(), request, 2);
+        try {
+            assertTrue(iterator.hasNext());
+            Thread.sleep(200);
+            // the page being consumed, two prefetched pages and one waiting for room in the queue
+            assertTrue(s3.getListRequests() <= 4, s3.getListRequests() + " list requests");
+            final List<String> keys = new ArrayList<String>();
+            while (iterator.hasNext()) {
+                keys.add(iterator.next().getKey());
+            }
+            assertEquals(keys, expected);
+            assertEquals(s3.getListRequests(), 10);
+        } finally {
+            iterator.close();
+        }
+    }
+
+    public void testDownloadResumesPartialFile() throws IOException {
+        final byte[] content = new byte[1000];
+        new Random(1).nextBytes(content);
+        final String eTag = DigestUtils.md5Hex(content);
+        final FakeS3 s3 = new FakeS3("bucket", 10);
+        s3.putObject("repo/foo.rpm", content);
+        final File directory = Files.createTempDir();
+        final File target = new File(directory, "foo.rpm");
+
+        // an earlier attempt got 400 bytes
+        Files.write(Arrays.copyOf(content, 400), new File(directory, "foo.rpm." + eTag + S3Utils.PARTIAL_DOWNLOAD_SUFFIX));
+        S3Utils.download(s3.client(), "bucket", "repo/foo.rpm", eTag, content.length, target);
+        assertTrue(Arrays.equals(Files.toByteArray(target), content));
+        assertEquals(directory.list().length, 1);
+
+        // a corrupt partial file is detected and the download starts over
+        final byte[] corrupt = Arrays.copyOf(content, 400);
+        corrupt[7] ^= 1;
+        Files.write(corrupt, new File(directory, "foo.rpm." + eTag + S3Utils.PARTIAL_DOWNLOAD_SUFFIX));
+        S3Utils.download(s3.client(), "bucket", "repo/foo.rpm", eTag, content.length, target);
+        assertTrue(Arrays.equals(Files.toByteArray(target), content));
+        assertEquals(directory.list().length, 1);
+
+        // the object changed since the partial file was written: the ranged GET is refused and the whole object read
+        final byte[] changed = Arrays.copyOf(content, 500);
+        s3.putObject("repo/foo.rpm", changed);
+        Files.write(Arrays.copyOf(content, 400), new File(directory, "foo.rpm." + eTag + S3Utils.PARTIAL_DOWNLOAD_SUFFIX));
+        S3Utils.download(s3.client(), "bucket", "repo/foo.rpm", eTag, content.length, target);
+        assertTrue(Arrays.equals(Files.toByteArray(target), changed));
+        assertEquals(directory.list().length, 1);
+    }
+
+    private static File writeTempFile(byte[] content) throws IOException {
+        final File file = File.createTempFile("s3utils", ".bin");
+        file.deleteOnExit();
+        Files.write(content, file);
+        return file;
+    }
+
+}